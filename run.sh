@@ -6,4 +6,4 @@ stty raw -echo
 
 trap "stty $STTY_ORIG" EXIT
 
-java -cp ./build/libs/apple1emu.jar a1em.Apple1 
+java -cp ./build/libs/apple1emu.jar a1em.Apple1 "$@"
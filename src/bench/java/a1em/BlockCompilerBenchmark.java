@@ -0,0 +1,78 @@
+package a1em;
+
+/**
+ * Compares the interpreter with compiled blocks on long-running programs:
+ * an Integer BASIC loop, a fig-Forth loop, and the Woz Monitor dumping
+ * memory. Each machine is booted, given its program, and then run for a
+ * number of cycles with step() or runBlock(). Reports the best effective
+ * clock rate in MHz of several rounds.
+ */
+public class BlockCompilerBenchmark {
+
+  private static final int ROUNDS = 10;
+  private static final long CYCLES = 50000000;
+
+  private static final String BASIC_PROGRAM =
+    "10 FOR I=1 TO 30000\n" +
+    "20 X=I/3*2+I MOD 7\n" +
+    "30 NEXT I\n" +
+    "40 GOTO 10\n" +
+    "RUN\n";
+  private static final String FORTH_PROGRAM =
+    ": T BEGIN 100 0 DO I DROP LOOP 0 UNTIL ;\nT\n";
+  private static final String MONITOR_COMMAND = "0.CFFF\n";
+
+  private static double measure(
+    String software,
+    String program,
+    boolean compiled
+  ) throws Exception {
+    Apple1 machine = TestMachines.boot(software, program);
+    M6502 cpu = machine.getCpu();
+    cpu.setBlockCompilation(compiled);
+    double best = 0;
+    for (int i = 0; i < ROUNDS; i++) {
+      long end = cpu.cycles + CYCLES;
+      long start = System.nanoTime();
+      while (cpu.cycles < end) {
+        if (compiled) {
+          cpu.runBlock();
+        } else {
+          cpu.step();
+        }
+        if (software == null && !machine.hasKey()) {
+          TestMachines.type(machine, MONITOR_COMMAND);
+        }
+      }
+      long elapsed = System.nanoTime() - start;
+      best = Math.max(best, CYCLES * 1e3 / elapsed);
+    }
+    if (compiled) {
+      System.out.printf(
+        "  (%d blocks compiled, %d invalidated)%n",
+        cpu.getBlocksCompiled(),
+        cpu.getBlocksInvalidated()
+      );
+    }
+    return best;
+  }
+
+  private static void report(String name, String software, String program)
+    throws Exception {
+    double interpreted = measure(software, program, false);
+    double compiled = measure(software, program, true);
+    System.out.printf(
+      "%-14s interpreted %7.1f MHz, compiled %7.1f MHz (%.2fx)%n",
+      name,
+      interpreted,
+      compiled,
+      compiled / interpreted
+    );
+  }
+
+  public static void main(String args[]) throws Exception {
+    report("Integer BASIC", "software/a1basic.mon", BASIC_PROGRAM);
+    report("fig-Forth", "software/fig6502.mon", FORTH_PROGRAM);
+    report("Woz Monitor", null, MONITOR_COMMAND);
+  }
+}
@@ -0,0 +1,116 @@
+package a1em;
+
+import java.io.File;
+
+/**
+ * Compares the instruction throughput of the table-driven core in
+ * M6502.step() with the original interpreter in M6502.stepReference(), by
+ * running the Klaus functional test to completion on each. The table-driven
+ * core is measured both through a plain Memory and through PagedMemory,
+ * which the CPU accesses directly. Each configuration is measured in its own
+ * JVM so the JIT profiles don't interfere.
+ */
+public class CoreBenchmark {
+
+  private static final int SUCCESS_PC = 0x3469;
+  private static final int ROUNDS = 20;
+
+  private static M6502 newCpu(int[] image, boolean paged) {
+    if (paged) {
+      PagedMemory mem = new PagedMemory();
+      for (int i = 0; i < image.length; i++) {
+        mem.poke(i, image[i]);
+      }
+      return new M6502(mem, 0x400);
+    }
+    final int[] mem = image.clone();
+    return new M6502(
+      new M6502.Memory() {
+        public int read(int where) {
+          return mem[where];
+        }
+
+        public void write(int where, int what) {
+          mem[where] = what;
+        }
+      },
+      0x400
+    );
+  }
+
+  // Returns the number of instructions executed
+  private static long runOnce(int[] image, String config) {
+    M6502 cpu = newCpu(image, config.equals("paged"));
+    long count = 0;
+    if (config.equals("reference")) {
+      while (cpu.pc != SUCCESS_PC) {
+        cpu.stepReference();
+        count++;
+      }
+    } else {
+      while (cpu.pc != SUCCESS_PC) {
+        cpu.step();
+        count++;
+      }
+    }
+    return count;
+  }
+
+  private static double measure(String config) {
+    ResourceHelper resources = new ResourceHelper();
+    int[] image = resources.loadBinaryResource("rom.functional", 65536);
+    double best = 0;
+    for (int i = 0; i < ROUNDS; i++) {
+      long start = System.nanoTime();
+      long count = runOnce(image, config);
+      long elapsed = System.nanoTime() - start;
+      best = Math.max(best, count * 1e9 / elapsed);
+    }
+    return best;
+  }
+
+  private static double fork(String config) throws Exception {
+    String java =
+      System.getProperty("java.home") +
+      File.separator +
+      "bin" +
+      File.separator +
+      "java";
+    Process p = new ProcessBuilder(
+      java,
+      "-cp",
+      System.getProperty("java.class.path"),
+      CoreBenchmark.class.getName(),
+      config
+    )
+      .redirectError(ProcessBuilder.Redirect.INHERIT)
+      .start();
+    String result = new String(p.getInputStream().readAllBytes()).trim();
+    if (p.waitFor() != 0) {
+      throw new IllegalStateException("Benchmark of " + config + " failed");
+    }
+    return Double.parseDouble(result);
+  }
+
+  private static void report(String name, double ips, double reference) {
+    System.out.printf(
+      "%-24s %8.2f MIPS (%.2fx)%n",
+      name,
+      ips / 1e6,
+      ips / reference
+    );
+  }
+
+  public static void main(String args[]) throws Exception {
+    if (args.length > 0) {
+      System.out.println(measure(args[0]));
+      return;
+    }
+    double reference = fork("reference");
+    double table = fork("table");
+    double paged = fork("paged");
+    report("stepReference()", reference, reference);
+    report("step()", table, reference);
+    report("step() with PagedMemory", paged, reference);
+  }
+}
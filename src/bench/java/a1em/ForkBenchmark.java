@@ -0,0 +1,55 @@
+package a1em;
+
+import java.io.OutputStream;
+
+/**
+ * Forks many machines from one with Integer BASIC loaded, and reports the
+ * heap used per fork, both right after forking and after each fork has run
+ * a small BASIC program, which dirties a few pages. The number of forks
+ * defaults to 100000 and can be passed as an argument.
+ */
+public class ForkBenchmark {
+
+  private static final String PROGRAM = "10 PRINT \"HI\"\nRUN\n";
+
+  private static long usedHeap() {
+    Runtime rt = Runtime.getRuntime();
+    for (int i = 0; i < 3; i++) {
+      System.gc();
+    }
+    return rt.totalMemory() - rt.freeMemory();
+  }
+
+  public static void main(String args[]) throws Exception {
+    int forks = (args.length > 0) ? Integer.parseInt(args[0]) : 100000;
+    Apple1 base = new Apple1(OutputStream.nullOutputStream(), 0);
+    TestMachines.loadListing(base, "software/a1basic.mon");
+    TestMachines.runUntilIdle(base);
+
+    Apple1[] machines = new Apple1[forks];
+    long before = usedHeap();
+    long start = System.nanoTime();
+    for (int i = 0; i < forks; i++) {
+      machines[i] = base.fork(OutputStream.nullOutputStream());
+    }
+    long elapsed = System.nanoTime() - start;
+    long forked = usedHeap();
+    System.out.printf(
+      "%d forks: %.2f us and %d bytes each (a full copy is %d bytes)%n",
+      forks,
+      elapsed / 1e3 / forks,
+      (forked - before) / forks,
+      PagedMemory.SIZE
+    );
+
+    for (Apple1 machine : machines) {
+      TestMachines.type(machine, PROGRAM);
+      TestMachines.runUntilIdle(machine);
+    }
+    long ran = usedHeap();
+    System.out.printf(
+      "after running a program: %d bytes each%n",
+      (ran - before) / forks
+    );
+  }
+}
@@ -0,0 +1,111 @@
+package a1em;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+/**
+ * Starts many Apple 1 machines, each on its own virtual thread, and waits
+ * for all of them to go idle at the monitor prompt. Reports the memory and
+ * threads they use, then types a command into every machine and measures
+ * how long it takes for all of them to run it and go idle again. Run with
+ * -PbenchMain=a1em.IdleMachinesBenchmark, on Java 21 or later to get
+ * virtual threads (older JVMs fall back to one platform thread per
+ * machine). The number of machines defaults to 10000 and can be passed as
+ * an argument.
+ */
+public class IdleMachinesBenchmark {
+
+  private static final long TIMEOUT_NANOS = 120_000_000_000L;
+
+  // Resident set size in KB from /proc, or -1 where that is not available
+  private static long rssKb() {
+    Path status = Paths.get("/proc/self/status");
+    try {
+      for (String line : Files.readAllLines(status)) {
+        if (line.startsWith("VmRSS:")) {
+          return Long.parseLong(line.replaceAll("[^0-9]", ""));
+        }
+      }
+    } catch (IOException | NumberFormatException e) {
+      // Not Linux
+    }
+    return -1;
+  }
+
+  private static long waitUntilIdle(Apple1Host host, int machines) {
+    long start = System.nanoTime();
+    while (host.getIdleCount() < machines) {
+      if (System.nanoTime() - start > TIMEOUT_NANOS) {
+        throw new IllegalStateException(
+          "Only " + host.getIdleCount() + " machines went idle"
+        );
+      }
+      try {
+        Thread.sleep(10);
+      } catch (InterruptedException e) {
+        throw new IllegalStateException(e);
+      }
+    }
+    return System.nanoTime() - start;
+  }
+
+  private static void report(String what, long nanos) {
+    System.gc();
+    Runtime rt = Runtime.getRuntime();
+    System.out.printf(
+      "%-10s %8.1f ms, RSS %6d MB, heap %6d MB, %d carriers, %d platform threads%n",
+      what,
+      nanos / 1e6,
+      rssKb() / 1024,
+      (rt.totalMemory() - rt.freeMemory()) >> 20,
+      VirtualThreads.carrierCount(),
+      ManagementFactory.getThreadMXBean().getThreadCount()
+    );
+  }
+
+  public static void main(String args[]) throws Exception {
+    int machines = (args.length > 0) ? Integer.parseInt(args[0]) : 10000;
+    System.out.println(
+      machines +
+      " machines on " +
+      (VirtualThreads.isSupported() ? "virtual" : "platform") +
+      " threads, Java " +
+      System.getProperty("java.version")
+    );
+    report("baseline", 0);
+
+    // Every machine warns when the monitor sets up the PIA at reset
+    PrintStream err = System.err;
+    System.setErr(new PrintStream(OutputStream.nullOutputStream()));
+    Apple1Host host = new Apple1Host(0, Pacer.APPLE1_HZ, true);
+    Apple1[] started = new Apple1[machines];
+    long start = System.nanoTime();
+    for (int i = 0; i < machines; i++) {
+      started[i] = host.start(null, OutputStream.nullOutputStream());
+    }
+    waitUntilIdle(host, machines);
+    System.setErr(err);
+    report("startup", System.nanoTime() - start);
+
+    Thread.sleep(2000);
+    long cycles = host.getTotalCycles();
+    report("idle 2s", 2_000_000_000L);
+    if (host.getTotalCycles() != cycles) {
+      System.out.println("warning: idle machines kept running");
+    }
+
+    // Dump a page of the ROM on every machine
+    for (Apple1 machine : started) {
+      for (char ch : "FF00.FFFF\n".toCharArray()) {
+        machine.typeKey(ch);
+      }
+    }
+    report("command", waitUntilIdle(host, machines));
+    host.close();
+  }
+}
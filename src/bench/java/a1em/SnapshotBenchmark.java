@@ -0,0 +1,60 @@
+package a1em;
+
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+/**
+ * Measures how long it takes to start a session from a snapshot with Integer
+ * BASIC loaded: reading the snapshot file, creating a machine and restoring
+ * it, and then running one BASIC command, which touches only a few pages
+ * of RAM. Also measures restoring from a snapshot that was read once and
+ * is shared, as Apple1Host does.
+ */
+public class SnapshotBenchmark {
+
+  private static final int ROUNDS = 2000;
+
+  private static void report(String what, long[] nanos) {
+    Arrays.sort(nanos);
+    System.out.printf(
+      "%-28s median %7.1f us, 99%% %7.1f us%n",
+      what,
+      nanos[nanos.length / 2] / 1e3,
+      nanos[nanos.length * 99 / 100] / 1e3
+    );
+  }
+
+  public static void main(String args[]) throws Exception {
+    Apple1 base = new Apple1(OutputStream.nullOutputStream(), 0);
+    TestMachines.loadListing(base, "software/a1basic.mon");
+    TestMachines.runUntilIdle(base);
+    Path file = Files.createTempFile("basic", ".snapshot");
+    base.snapshot().write(file);
+
+    long[] restore = new long[ROUNDS];
+    long[] command = new long[ROUNDS];
+    long[] shared = new long[ROUNDS];
+    for (int i = 0; i < ROUNDS; i++) {
+      long start = System.nanoTime();
+      Apple1 machine = new Apple1(OutputStream.nullOutputStream(), 0);
+      machine.restore(Snapshot.read(file));
+      restore[i] = System.nanoTime() - start;
+      TestMachines.type(machine, "PRINT 6*7\n");
+      TestMachines.runUntilIdle(machine);
+      command[i] = System.nanoTime() - start;
+    }
+    Snapshot snapshot = Snapshot.read(file);
+    for (int i = 0; i < ROUNDS; i++) {
+      long start = System.nanoTime();
+      Apple1 machine = new Apple1(OutputStream.nullOutputStream(), 0);
+      machine.restore(snapshot);
+      shared[i] = System.nanoTime() - start;
+    }
+    Files.delete(file);
+    report("read and restore", restore);
+    report("restore and PRINT 6*7", command);
+    report("restore a shared snapshot", shared);
+  }
+}
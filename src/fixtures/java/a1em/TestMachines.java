@@ -0,0 +1,73 @@
+package a1em;
+
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Reader;
+
+/**
+ * Ways of setting up memory and driving a machine on the calling thread,
+ * shared by the tests and the benchmarks.
+ */
+final class TestMachines {
+
+  // Far more cycles than any test or benchmark takes to go idle
+  static final long IDLE_BUDGET = 1000000000L;
+
+  private TestMachines() {}
+
+  /** Copies bytes into mem from origin, such as a small program. */
+  static void load(PagedMemory mem, int origin, int... bytes) {
+    for (int i = 0; i < bytes.length; i++) {
+      mem.poke(origin + i, bytes[i]);
+    }
+  }
+
+  /** Runs machine until it is idle, and fails if it does not get there. */
+  static void runUntilIdle(Apple1 machine) {
+    M6502.StopReason reason = machine.runUntilIdle(IDLE_BUDGET);
+    if (reason != M6502.StopReason.IO_WAIT) {
+      throw new IllegalStateException("Stopped with " + reason);
+    }
+  }
+
+  /**
+   * Types text into machine. Whenever the keyboard buffer is full the
+   * machine runs until it is idle, so any amount of text can be typed.
+   */
+  static void type(Apple1 machine, String text) {
+    for (int i = 0; i < text.length(); i++) {
+      while (!machine.offerKey(text.charAt(i))) {
+        runUntilIdle(machine);
+      }
+    }
+  }
+
+  /** Loads a Woz Monitor listing into machine. */
+  static void loadListing(Apple1 machine, String file) throws IOException {
+    try (Reader in = new FileReader(file)) {
+      machine.fastLoad(in);
+    }
+  }
+
+  /**
+   * Creates a machine with no display, loads software into it if that is
+   * not null, and once it is idle types program. Returns when the program
+   * has read every key, so it is left running a program that never waits.
+   */
+  static Apple1 boot(String software, String program) throws IOException {
+    Apple1 machine = new Apple1(OutputStream.nullOutputStream(), 0);
+    if (software != null) {
+      loadListing(machine, software);
+    }
+    while ((program != null) || machine.hasKey()) {
+      machine.resume();
+      machine.runSlice();
+      if (machine.isIdle() && (program != null)) {
+        type(machine, program);
+        program = null;
+      }
+    }
+    return machine;
+  }
+}
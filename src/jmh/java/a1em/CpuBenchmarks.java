@@ -0,0 +1,279 @@
+package a1em;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.results.Result;
+import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * JMH benchmarks of CPU throughput on realistic workloads. Each invocation
+ * runs BATCH instructions, so the primary score is nanoseconds per
+ * instruction. The emulated cycles are counted as well, and main() prints
+ * both as a table along with the effective clock rate in MHz (a real Apple 1
+ * runs at 1.023 MHz).
+ *
+ * <p>The workloads are the Klaus functional test, a CPU-bound Integer BASIC
+ * program, a fig-Forth loop, the Woz Monitor dumping memory, and a loop of
+ * arithmetic that sets flags on almost every instruction. The core
+ * parameter selects step(), step() with the decode cache on, or the original
+ * stepReference().
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class CpuBenchmarks {
+
+  static final int BATCH = 10000;
+
+  private static final int FUNCTIONAL_START = 0x400;
+  private static final int FUNCTIONAL_SUCCESS = 0x3469;
+
+  private static final String BASIC_PROGRAM =
+    "10 FOR I=1 TO 30000\n" +
+    "20 X=I/3*2+I MOD 7\n" +
+    "30 NEXT I\n" +
+    "40 GOTO 10\n" +
+    "RUN\n";
+  private static final String FORTH_PROGRAM =
+    ": T BEGIN 100 0 DO I DROP LOOP 0 UNTIL ;\nT\n";
+  // Stops short of the I/O page, since reading $D010 would take a key
+  private static final String MONITOR_COMMAND = "0.CFFF\n";
+  // prettier-ignore
+  private static final int[] ALU_PROGRAM = {
+    0xa2, 0x00, //       $0300 LDX #$00
+    0xa0, 0x00, //       $0302 LDY #$00
+    0x18, //             $0304 CLC
+    0x8a, //             $0305 TXA
+    0x69, 0x37, //       $0306 ADC #$37
+    0x65, 0x10, //       $0308 ADC $10
+    0xe5, 0x11, //       $030A SBC $11
+    0xc9, 0x80, //       $030C CMP #$80
+    0x2a, //             $030E ROL A
+    0x85, 0x10, //       $030F STA $10
+    0xe8, //             $0311 INX
+    0x88, //             $0312 DEY
+    0xd0, 0xef, //       $0313 BNE $0304
+    0x4c, 0x00, 0x03, // $0315 JMP $0300
+  };
+
+  @Param({ "step", "decodeCache", "stepReference" })
+  public String core;
+
+  /** Cycles and instructions run, reported next to the timing. */
+  @State(Scope.Thread)
+  @AuxCounters(AuxCounters.Type.EVENTS)
+  public static class Counters {
+
+    public long cycles;
+    public long instructions;
+
+    @Setup(Level.Iteration)
+    public void clear() {
+      cycles = 0;
+      instructions = 0;
+    }
+  }
+
+  /** The functional test, restarted from a clean image when it passes. */
+  @State(Scope.Thread)
+  public static class Functional {
+
+    ByteBuffer image;
+    PagedMemory mem;
+    M6502 cpu;
+
+    @Setup(Level.Trial)
+    public void setup() {
+      int[] bytes = new ResourceHelper()
+        .loadBinaryResource("rom.functional", PagedMemory.SIZE);
+      image = ByteBuffer.allocate(PagedMemory.SIZE);
+      for (int b : bytes) {
+        image.put((byte) b);
+      }
+      mem = new PagedMemory();
+      cpu = new M6502(mem, FUNCTIONAL_START);
+      restart();
+    }
+
+    void restart() {
+      mem.restore(image);
+      cpu.flushDecodeCache();
+      cpu.pc = FUNCTIONAL_START;
+    }
+  }
+
+  /** A machine that has been given a program to run forever. */
+  public abstract static class Machine {
+
+    Apple1 machine;
+    M6502 cpu;
+
+    void boot(String software, String program) throws IOException {
+      machine = TestMachines.boot(software, program);
+      cpu = machine.getCpu();
+    }
+  }
+
+  @State(Scope.Thread)
+  public static class Basic extends Machine {
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+      boot("software/a1basic.mon", BASIC_PROGRAM);
+    }
+  }
+
+  @State(Scope.Thread)
+  public static class Forth extends Machine {
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+      boot("software/fig6502.mon", FORTH_PROGRAM);
+    }
+  }
+
+  @State(Scope.Thread)
+  public static class Monitor extends Machine {
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+      machine = new Apple1(OutputStream.nullOutputStream(), 0);
+      cpu = machine.getCpu();
+      TestMachines.type(machine, MONITOR_COMMAND);
+    }
+  }
+
+  /** A loop of arithmetic, logic and compares, run on a bare CPU. */
+  @State(Scope.Thread)
+  public static class Alu {
+
+    M6502 cpu;
+
+    @Setup(Level.Trial)
+    public void setup() {
+      PagedMemory mem = new PagedMemory();
+      TestMachines.load(mem, 0x300, ALU_PROGRAM);
+      cpu = new M6502(mem, 0x300);
+    }
+  }
+
+  private void run(M6502 cpu, Counters counters) {
+    long start = cpu.cycles;
+    if (core.equals("decodeCache") && !cpu.usesDecodeCache()) {
+      cpu.setDecodeCache(true);
+    }
+    if (core.equals("stepReference")) {
+      for (int i = 0; i < BATCH; i++) {
+        cpu.stepReference();
+      }
+    } else {
+      for (int i = 0; i < BATCH; i++) {
+        cpu.step();
+      }
+    }
+    counters.cycles += cpu.cycles - start;
+    counters.instructions += BATCH;
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(BATCH)
+  public void functionalTest(Functional state, Counters counters) {
+    run(state.cpu, counters);
+    if (state.cpu.pc == FUNCTIONAL_SUCCESS) {
+      state.restart();
+    }
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(BATCH)
+  public void integerBasic(Basic state, Counters counters) {
+    run(state.cpu, counters);
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(BATCH)
+  public void figForth(Forth state, Counters counters) {
+    run(state.cpu, counters);
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(BATCH)
+  public void monitorDump(Monitor state, Counters counters) {
+    run(state.cpu, counters);
+    // Start another dump before this one ends, so the monitor never waits
+    if (!state.machine.hasKey()) {
+      TestMachines.type(state.machine, MONITOR_COMMAND);
+    }
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(BATCH)
+  public void aluLoop(Alu state, Counters counters) {
+    run(state.cpu, counters);
+  }
+
+  /**
+   * Runs the benchmarks and prints ns/instruction and effective MHz. With
+   * arguments, runs JMH's own command line instead.
+   */
+  public static void main(String args[]) throws Exception {
+    if (args.length > 0) {
+      org.openjdk.jmh.Main.main(args);
+      return;
+    }
+    Collection<RunResult> results = new Runner(
+      new OptionsBuilder().include(CpuBenchmarks.class.getName()).build()
+    )
+      .run();
+    System.out.printf(
+      "%n%-32s %18s %9s %8s%n",
+      "Benchmark",
+      "ns/instruction",
+      "MHz",
+      "MIPS"
+    );
+    for (RunResult r : results) {
+      Result<?> time = r.getPrimaryResult();
+      double cycles = r.getSecondaryResults().get("cycles").getScore();
+      double instructions = r
+        .getSecondaryResults()
+        .get("instructions")
+        .getScore();
+      double nsPerInstruction = time.getScore();
+      double cyclesPerInstruction = cycles / instructions;
+      System.out.printf(
+        "%-32s %8.3f +- %6.3f %9.1f %8.1f%n",
+        r.getParams().getBenchmark().replaceFirst(".*\\.", "") +
+        " (" +
+        r.getParams().getParam("core") +
+        ")",
+        nsPerInstruction,
+        time.getScoreError(),
+        cyclesPerInstruction * 1e3 / nsPerInstruction,
+        1e3 / nsPerInstruction
+      );
+    }
+  }
+}
@@ -1,57 +1,149 @@
 package a1em;
 
+import java.io.FileReader;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.LockSupport;
 
+/**
+ * One Apple 1 machine: a 6502, 64K of RAM with the monitor ROM at $FF00, and
+ * the PIA that connects the keyboard and display. Each instance is
+ * independent, so one JVM can run many of them (see Apple1Host). main() runs
+ * a single machine on the console.
+ */
 public class Apple1 implements M6502.Memory {
 
-  private int[] mem;
-  private static M6502 cpu;
-  private static ConcurrentLinkedQueue<Integer> keyBuffer;
+  // Time slice between pacing checks
+  static final long SLICE_NANOS = 10000000L;
 
-  private static void err(String s) {
+  // A keyboard status read that finds no key within this many cycles of the
+  // previous one counts as part of a polling loop. The monitor's loop
+  // (LDA $D011 / BPL) takes 7 cycles.
+  private static final long POLL_LOOP_CYCLES = 32;
+  // Number of consecutive polling loop reads before the CPU is parked
+  private static final int IDLE_POLLS = 64;
+
+  // Addresses listed in the profile report
+  private static final int PROFILE_TOP = 20;
+  // Instructions kept by --trace-file without --trace
+  private static final int DEFAULT_TRACE = 64;
+
+  /** Keys that can be typed ahead of the program reading them. */
+  public static final int KEY_BUFFER_SIZE = 1024;
+
+  // Display output is batched, and held for at most this long. A display
+  // stream is given at most this many bytes between calls to flush().
+  static final int DISPLAY_BUFFER_SIZE = 4096;
+  private static final long DISPLAY_DELAY_NANOS = 5000000L;
+
+  // The monitor ROM at $FF00, loaded once for all machines
+  private static final byte[] ROM = new ResourceHelper()
+    .loadBytes("rom.apple1", 256);
+
+  private final PagedMemory mem;
+  private final M6502 cpu;
+  private final ByteRingBuffer keyBuffer;
+  private final DisplayOutput display;
+  private final Pacer pacer;
+  private int lastOut;
+  // Thread parked in run() waiting for a key, if any
+  private volatile Thread cpuThread;
+  private volatile boolean stopRequested;
+  // Work for the thread in run(), from invokeLater()
+  private final ConcurrentLinkedQueue<Runnable> tasks =
+    new ConcurrentLinkedQueue<>();
+  private long lastPollCycles;
+  private int emptyPolls;
+  private boolean keyboardIdle;
+  private volatile boolean displayHeld;
+  private long idleStartNanos;
+  private long idleCyclesSkipped;
+  private Runnable keyReadListener;
+
+  private void err(String s) {
+    display.flush();
     System.err.println(s);
-    System.out.println(cpu.dump());
-    System.exit(1);
+    System.err.println(cpu.dump());
+    cpu.halt();
   }
 
   private static void warn(String s) {
     System.err.println(s);
   }
 
-  public Apple1() {
-    mem = new int[65536];
-    cpu = new M6502(this, 0xff00);
-    keyBuffer = new ConcurrentLinkedQueue<>();
+  /**
+   * Creates a machine that writes its display to out and runs at hz cycles
+   * per second (0 for unlimited).
+   */
+  public Apple1(OutputStream out, double hz) {
+    this(out, hz, new PagedMemory());
+    mem.load(0xff00, ROM);
+  }
 
-    ResourceHelper resources = new ResourceHelper();
-    int[] bios = resources.loadBinaryResource("rom.apple1", 256);
-    int a = 0xff00;
-    for (int i = 0; i < 256; i++) {
-      mem[a] = bios[i];
-      a++;
-    }
+  private Apple1(OutputStream out, double hz, PagedMemory mem) {
+    pacer = new Pacer(hz, SLICE_NANOS);
+    this.mem = mem;
+    // The PIA is decoded anywhere in $D000-$DFFF
+    mem.mapDevice(0xd0, 0xdf, this);
+    cpu = new M6502(mem, 0xff00);
+    keyBuffer = new ByteRingBuffer(KEY_BUFFER_SIZE);
+    display = new DisplayOutput(out, DISPLAY_BUFFER_SIZE, DISPLAY_DELAY_NANOS);
+  }
+
+  public M6502 getCpu() {
+    return cpu;
+  }
+
+  public PagedMemory getMemory() {
+    return mem;
   }
 
   // Read
   private int doIO(int where) {
     if (where == 0xd010) {
       /* Keyboard input */
-      if (keyBuffer.isEmpty()) {
+      // This assumed that 0x80 was already or'd in, and that
+      // '\n' was translated to '\r' beforehand. This is done
+      // when the key is read;
+      int key = keyBuffer.poll();
+      if (key < 0) {
         return 0;
-      } else {
-        // This assumed that 0x80 was already or'd in, and that
-        // '\n' was translated to '\r' beforehand. This is done
-        // when the key is read;
-        return keyBuffer.remove();
       }
+      if (keyReadListener != null) {
+        keyReadListener.run();
+      }
+      return key;
     } else if (where == 0xd011) {
       /* Keyboard status */
-      return (keyBuffer.isEmpty()) ? 1 : 0x80;
+      if (!keyBuffer.isEmpty()) {
+        emptyPolls = 0;
+        return 0x80;
+      }
+      if (cpu.cycles - lastPollCycles <= POLL_LOOP_CYCLES) {
+        emptyPolls++;
+        if (emptyPolls >= IDLE_POLLS) {
+          keyboardIdle = true;
+          idleStartNanos = System.nanoTime();
+          cpu.requestStop(M6502.StopReason.IO_WAIT);
+        }
+      } else {
+        emptyPolls = 0;
+      }
+      lastPollCycles = cpu.cycles;
+      return 1;
     } else if ((where == 0xd0f2) || (where == 0xd012)) {
       /* Display output */
       // Bit 8 of the last output was cleared when it was written
-      return mem[0xd012];
+      return lastOut;
     } else if (where == 0xd013) {
       /* Display status */
       warn("Read from display status");
@@ -75,14 +167,14 @@ public class Apple1 implements M6502.Memory {
       return;
     } else if ((where == 0xd0f2) || (where == 0xd012)) {
       /* Display output */
-      mem[0xd012] = what & 0x7f;
-      char ch = (char) mem[0xd012];
+      lastOut = what & 0x7f;
+      char ch = (char) lastOut;
       if (ch == '\r') {
-        System.out.print("\r\n");
+        display.write('\r');
+        display.write('\n');
       } else {
-        System.out.print(ch);
+        display.write(ch);
       }
-      System.out.flush();
       return;
     } else if (where == 0xd013) {
       /* Display status */
@@ -92,59 +184,601 @@ public class Apple1 implements M6502.Memory {
     err("Write to Unknown I/O Address: " + where);
   }
 
+  // The I/O pages are mapped to this object, so only $Dxxx accesses arrive
+  // here. RAM is handled by PagedMemory and the CPU directly.
   public int read(int where) {
-    if ((where == 0) || (where == 1)) {
-      warn("Read from " + where);
-    }
-    if ((where >= 0xd000) && (where < 0xe000)) return doIO(where);
-    if ((where < 0) || (where > 65536)) err("Read out of range: " + where);
-    return mem[where];
+    return doIO(where);
   }
 
   public void write(int where, int what) {
-    if ((where == 0) || (where == 1)) {
-      warn("Write to " + where);
+    doIO(where, what);
+  }
+
+  /**
+   * Queues a key typed on the keyboard. Newlines become carriage returns and
+   * letters are upper cased, as on the real keyboard. If KEY_BUFFER_SIZE
+   * keys are already waiting, waits for the program to read one, so this
+   * must not be called on the thread running the machine; use offerKey()
+   * there. Keys must be typed from one thread at a time.
+   */
+  public void typeKey(int ch) {
+    try {
+      keyBuffer.put(toKey(ch));
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return;
+    }
+    LockSupport.unpark(cpuThread);
+  }
+
+  /**
+   * Queues a key like typeKey(), unless KEY_BUFFER_SIZE keys are already
+   * waiting, in which case the key is dropped and this returns false.
+   */
+  public boolean offerKey(int ch) {
+    if (!keyBuffer.offer(toKey(ch))) {
+      return false;
+    }
+    LockSupport.unpark(cpuThread);
+    return true;
+  }
+
+  /**
+   * Sets a callback for the thread running the machine to call each time the
+   * program reads a key, such as to tell whatever types the keys that there
+   * is room for more. Call this before the machine starts.
+   */
+  public void setKeyReadListener(Runnable listener) {
+    keyReadListener = listener;
+  }
+
+  /** Returns how many more keys can be queued before the buffer is full. */
+  public int getKeySpace() {
+    return keyBuffer.remaining();
+  }
+
+  private static int toKey(int ch) {
+    // Translate newline to carriage return
+    if (ch == 10) {
+      ch = 13;
+    }
+    return Character.toUpperCase(ch) | 0x80;
+  }
+
+  public boolean hasKey() {
+    return !keyBuffer.isEmpty();
+  }
+
+  public boolean isHalted() {
+    return cpu.halt;
+  }
+
+  /** Returns true while the program is spinning, waiting for a key. */
+  public boolean isIdle() {
+    return keyboardIdle;
+  }
+
+  /**
+   * Makes the machine wait for its display, whose reader is behind: the CPU
+   * stops after the current instruction, and no more time slices run until
+   * releaseDisplay() is called. Output already buffered is not written until
+   * then. Call this on the thread running the machine, such as from the
+   * display stream's flush().
+   */
+  public void holdDisplay() {
+    displayHeld = true;
+    cpu.requestStop(M6502.StopReason.IO_WAIT);
+  }
+
+  /**
+   * Lets a machine waiting for its display run again. May be called from
+   * any thread; a machine in a host must also be woken with
+   * Apple1Host.wake().
+   */
+  public void releaseDisplay() {
+    displayHeld = false;
+    LockSupport.unpark(cpuThread);
+  }
+
+  /** Returns true while the machine is waiting for its display. */
+  public boolean isDisplayHeld() {
+    return displayHeld;
+  }
+
+  /**
+   * Returns the number of emulated cycles that were skipped while the CPU was
+   * parked waiting for a key, instead of spinning in the keyboard polling
+   * loop.
+   */
+  public long getIdleCyclesSkipped() {
+    return idleCyclesSkipped;
+  }
+
+  /**
+   * Runs one time slice, stopping early if the CPU halts, the program goes
+   * idle waiting for a key, or the display is held. Breakpoints and
+   * watchpoints are reported on stderr and the slice goes on. Does not
+   * sleep; see nanosUntilNextSlice().
+   */
+  public void runSlice() {
+    if (!keyboardIdle && !displayHeld) {
+      long end = cpu.cycles + pacer.sliceCycles();
+      M6502.StopReason reason = cpu.run(end - cpu.cycles);
+      while (
+        (reason == M6502.StopReason.BREAKPOINT) ||
+        (reason == M6502.StopReason.WATCHPOINT)
+      ) {
+        reportStop(reason);
+        reason = cpu.run(end - cpu.cycles);
+      }
+      if (reason == M6502.StopReason.JUMP_TO_SELF) {
+        // The program will loop there until reset, so the rest of the slice
+        // passes at once
+        cpu.cycles = end;
+      }
     }
-    if ((where >= 0xd000) && (where < 0xe000)) {
-      doIO(where, what);
+    finishSlice();
+  }
+
+  private void reportStop(M6502.StopReason reason) {
+    if (reason == M6502.StopReason.BREAKPOINT) {
+      System.err.printf("%nBreakpoint at $%04X%n", cpu.pc);
+    } else {
+      System.err.printf(
+        "%nWatchpoint: %s $%04X%n",
+        cpu.watchWasWrite() ? "write to" : "read from",
+        cpu.getWatchAddress()
+      );
+    }
+    System.err.println(cpu.dump());
+  }
+
+  /**
+   * Runs without keeping to the clock until the program has read every key
+   * and is waiting for another, the CPU halts or jumps to itself, the
+   * display is held, or the given number of cycles has run. Returns why it
+   * stopped. For tests and tools that give a machine its input up front.
+   */
+  public M6502.StopReason runUntilIdle(long budget) {
+    long end = cpu.cycles + budget;
+    M6502.StopReason reason;
+    do {
+      resume();
+      reason = cpu.run(end - cpu.cycles);
+    } while (
+      (reason == M6502.StopReason.IO_WAIT) &&
+      !keyBuffer.isEmpty() &&
+      !displayHeld
+    );
+    finishSlice();
+    return reason;
+  }
+
+  private void finishSlice() {
+    if (displayHeld) {
+      // The rest waits until there is room for it
       return;
     }
-    if ((where < 0) || (where > 65536)) err("Write out of range: " + where);
-    if ((what < 0) || (what > 256)) err("Write value out of range: " + what);
-    mem[where] = what;
+    if (keyboardIdle) {
+      display.flush();
+    } else {
+      display.flushIfDue();
+    }
+  }
+
+  /** Returns how long to wait before the next slice to keep to the clock. */
+  public long nanosUntilNextSlice() {
+    return pacer.delayNanos(cpu.cycles);
+  }
+
+  /**
+   * Leaves the idle state. The cycle count moves forward by the time spent
+   * idle, so the program sees the same elapsed time it would have spent
+   * polling the keyboard, and pacing stays in step with the wall clock.
+   */
+  public void resume() {
+    if (!keyboardIdle) {
+      return;
+    }
+    long skipped = idleCycles();
+    cpu.cycles += skipped;
+    idleCyclesSkipped += skipped;
+    keyboardIdle = false;
+    emptyPolls = 0;
+  }
+
+  // Cycles that have passed since the machine went idle
+  private long idleCycles() {
+    if (!keyboardIdle) {
+      return 0;
+    }
+    double hz = pacer.isUnlimited() ? Pacer.APPLE1_HZ : pacer.getHz();
+    return (long) ((System.nanoTime() - idleStartNanos) * hz / 1e9);
   }
 
-  public void mainLoop() {
+  /**
+   * Returns how long an idle machine can wait before the next event
+   * scheduled on its CPU is due, counting the time it has been idle, or -1
+   * if no event is scheduled. Call resume() once it is due.
+   */
+  public long nanosUntilEvent() {
+    long next = cpu.nextEventCycle();
+    if (next == Long.MAX_VALUE) {
+      return -1;
+    }
+    double hz = pacer.isUnlimited() ? Pacer.APPLE1_HZ : pacer.getHz();
+    long cycles = next - cpu.cycles - idleCycles();
+    return (cycles <= 0) ? 0 : (long) (cycles * 1e9 / hz);
+  }
+
+  /**
+   * Runs the machine on the calling thread until the CPU halts or stop() is
+   * called, parking the thread whenever the program is idle waiting for a
+   * key or for the next scheduled event, or the display is held.
+   */
+  public void run() {
+    cpuThread = Thread.currentThread();
+    pacer.reset(cpu.cycles);
+    while (!cpu.halt && !stopRequested) {
+      runTasks();
+      runSlice();
+      if (displayHeld) {
+        while (displayHeld && tasks.isEmpty() && !stopRequested) {
+          LockSupport.park(this);
+        }
+      } else if (keyboardIdle) {
+        long wait;
+        while (
+          keyBuffer.isEmpty() &&
+          tasks.isEmpty() &&
+          !stopRequested &&
+          ((wait = nanosUntilEvent()) != 0)
+        ) {
+          if (wait < 0) {
+            LockSupport.park(this);
+          } else {
+            LockSupport.parkNanos(this, wait);
+          }
+        }
+        resume();
+      } else {
+        pacer.sync(cpu.cycles);
+      }
+    }
+    display.flush();
+    if (cpu.halt && (cpu.getTracer() != null)) {
+      System.err.println();
+      System.err.println("Last instructions:");
+      try {
+        cpu.getTracer().dump(System.err, Integer.MAX_VALUE);
+      } catch (IOException ignored) {
+        // Nowhere left to report it
+      }
+    }
+    cpuThread = null;
+  }
+
+  /**
+   * Loads a Woz Monitor listing straight into memory and, if it ends with a
+   * run command, starts the program. Call this before run() or from the
+   * thread running the machine.
+   */
+  public void fastLoad(Reader in) throws IOException {
+    int start = MonLoader.load(in, mem);
+    cpu.flushDecodeCache();
+    if (start >= 0) {
+      resume();
+      cpu.pc = start;
+    }
+  }
+
+  /**
+   * Captures the state of the machine. Call this before run() or from the
+   * thread running the machine.
+   */
+  public Snapshot snapshot() {
+    ByteBuffer ram = ByteBuffer.allocate(PagedMemory.SIZE);
+    mem.save(ram);
+    ram.flip();
+    return new Snapshot(cpu, lastOut, keyBuffer.toArray(), ram);
+  }
+
+  /**
+   * Puts the machine in the state captured by a snapshot. RAM is only copied
+   * from the snapshot as the program touches it, so this is fast even for a
+   * snapshot that was just read from a file. Call this before run() or from
+   * the thread running the machine.
+   */
+  public void restore(Snapshot snapshot) {
+    cpu.pc = snapshot.pc;
+    cpu.a = snapshot.a;
+    cpu.x = snapshot.x;
+    cpu.y = snapshot.y;
+    cpu.setSP(snapshot.sp);
+    cpu.setFlags(snapshot.flags);
+    cpu.halt = snapshot.halt;
+    cpu.cycles = snapshot.cycles;
+    mem.restore(snapshot.memory);
+    cpu.flushDecodeCache();
+    lastOut = snapshot.lastOut;
+    keyBuffer.clear();
+    for (byte key : snapshot.keys) {
+      if (!keyBuffer.offer(key)) {
+        warn("Keys in snapshot do not fit in the keyboard buffer");
+        break;
+      }
+    }
+    keyboardIdle = false;
+    emptyPolls = 0;
+    lastPollCycles = cpu.cycles;
+    pacer.reset(cpu.cycles);
+  }
+
+  /**
+   * Creates a machine in the same state as this one, writing its display to
+   * out. The two share memory pages until either one writes to them (see
+   * PagedMemory.fork()), so a fork costs little more than the pages it
+   * dirties. Call this before run() or from the thread running the machine.
+   */
+  public Apple1 fork(OutputStream out) {
+    Apple1 child = new Apple1(out, pacer.getHz(), mem.fork());
+    child.cpu.copyState(cpu);
+    child.lastOut = lastOut;
+    for (byte key : keyBuffer.toArray()) {
+      child.keyBuffer.offer(key);
+    }
+    child.pacer.reset(cpu.cycles);
+    return child;
+  }
+
+  /**
+   * Makes run() return at the end of the current time slice, waking it if it
+   * is parked. The machine can then be saved with snapshot().
+   */
+  public void stop() {
+    stopRequested = true;
+    LockSupport.unpark(cpuThread);
+  }
+
+  /**
+   * Runs task on the thread in run(), between time slices, waking it if it
+   * is idle. This is how another thread, such as a user interface, loads
+   * programs or inspects the CPU without locking. May be called from any
+   * thread; tasks run in the order they were given.
+   */
+  public void invokeLater(Runnable task) {
+    tasks.add(task);
+    LockSupport.unpark(cpuThread);
+  }
+
+  private void runTasks() {
+    Runnable task;
+    while ((task = tasks.poll()) != null) {
+      task.run();
+    }
+  }
+
+  /**
+   * Prints a report of where the CPU has spent its time to System.err, and
+   * writes the full profile to csv. The CPU must have a profiler (see
+   * M6502.setProfiler()). Call this before or after run(), or from the
+   * thread running the machine with invokeLater().
+   */
+  public void writeProfile(Path csv) {
+    Profiler profiler = cpu.getProfiler();
+    System.err.print(profiler.report(cpu, PROFILE_TOP));
+    try (Writer out = Files.newBufferedWriter(csv)) {
+      profiler.writeCsv(cpu, out);
+    } catch (IOException e) {
+      System.err.println("Cannot write " + csv + ": " + e);
+    }
+  }
+
+  /**
+   * Runs on the console until the end of input or ^D, then saves a snapshot
+   * to saveTo if it is not null. If profileTo is not null, the CPU is
+   * profiled, and the profile is written there on ^P and on exit.
+   */
+  public void mainLoop(Path saveTo, Path profileTo) {
+    if (profileTo != null) {
+      cpu.setProfiler(new Profiler());
+    }
     Runnable readKeyboard = () -> {
       try {
         while (true) {
           int ch = System.in.read();
-          if (ch < 0) {
-            System.exit(0);
-          }
           // If we run with "stty raw -echo", we need to intercept ^D
           // to gracefully quit
-          if (ch == 4) {
-            System.exit(0);
+          if ((ch < 0) || (ch == 4)) {
+            break;
           }
-          // Translate newline to carriage return
-          if (ch == 10) {
-            ch = 13;
+          if ((ch == 16) && (profileTo != null)) {
+            invokeLater(() -> writeProfile(profileTo));
+            continue;
           }
-          ch = Character.toUpperCase(ch) | 0x80;
-          keyBuffer.add(ch);
+          typeKey(ch);
         }
       } catch (IOException ignored) {}
+      stop();
     };
     Thread keyThread = new Thread(readKeyboard);
+    keyThread.setDaemon(true);
     keyThread.start();
-    while (true) {
-      cpu.step();
+    run();
+    if (profileTo != null) {
+      writeProfile(profileTo);
     }
+    if (cpu.getTracer() != null) {
+      try {
+        cpu.getTracer().close();
+      } catch (IOException e) {
+        System.err.println("Cannot write trace: " + e);
+      }
+    }
+    if (cpu.halt) {
+      System.exit(1);
+    }
+    if (saveTo != null) {
+      try {
+        snapshot().write(saveTo);
+      } catch (IOException e) {
+        System.err.println("Cannot save " + saveTo + ": " + e);
+        System.exit(1);
+      }
+    }
+    System.exit(0);
+  }
+
+  // Parses a hex address, with or without a leading $
+  private static int parseAddress(String s) {
+    int where = Integer.parseInt(s.startsWith("$") ? s.substring(1) : s, 16);
+    if ((where < 0) || (where >= PagedMemory.SIZE)) {
+      throw new IllegalArgumentException("Bad address " + s);
+    }
+    return where;
+  }
+
+  private static void usage() {
+    System.err.println(
+      "Usage: Apple1 [--speed=<multiple>|max] [--load=<file>]\n" +
+      "              [--snapshot=<file>] [--save=<file>] [--compile]\n" +
+      "              [--profile=<file>] [--trace=<n>] [--trace-file=<file>]\n" +
+      "              [--break=<addr>[:<condition>]] [--watch=<addr>[:r|w|rw]]"
+    );
+    System.err.println("  --speed     clock rate as a multiple of 1.023 MHz");
+    System.err.println("              (default 1), or max for unlimited");
+    System.err.println("  --load      load a Woz Monitor listing (.mon) into");
+    System.err.println("              memory at startup instead of typing it");
+    System.err.println("  --snapshot  start from a snapshot saved with --save");
+    System.err.println("  --save      save a snapshot on exit (^D)");
+    System.err.println("  --compile   compile hot code to JVM bytecode");
+    System.err.println("  --profile   count instructions by address, and on");
+    System.err.println("              ^P and exit, print the busiest and");
+    System.err.println("              write them all to a CSV file");
+    System.err.println("  --trace     keep the last n instructions, and print");
+    System.err.println("              them if the CPU halts");
+    System.err.println("  --trace-file");
+    System.err.println("              write every instruction to a file,");
+    System.err.println("              which a1em.Tracer prints");
+    System.err.println("  --break     print the registers before running the");
+    System.err.println("              instruction at a hex address, if the");
+    System.err.println("              condition (such as A==$8D) holds");
+    System.err.println("  --watch     print the registers when an instruction");
+    System.err.println("              writes (default) or reads an address");
+    System.exit(1);
   }
 
   public static void main(String args[]) {
-    Apple1 me = new Apple1();
-    me.mainLoop();
+    String speed = "1";
+    String load = null;
+    String snapshot = null;
+    String save = null;
+    boolean compile = false;
+    String profile = null;
+    int trace = 0;
+    String traceFile = null;
+    List<String> breaks = new ArrayList<>();
+    List<String> watches = new ArrayList<>();
+    for (String arg : args) {
+      if (arg.startsWith("--speed=")) {
+        speed = arg.substring("--speed=".length());
+      } else if (arg.startsWith("--load=")) {
+        load = arg.substring("--load=".length());
+      } else if (arg.startsWith("--snapshot=")) {
+        snapshot = arg.substring("--snapshot=".length());
+      } else if (arg.startsWith("--save=")) {
+        save = arg.substring("--save=".length());
+      } else if (arg.equals("--compile")) {
+        compile = true;
+      } else if (arg.startsWith("--profile=")) {
+        profile = arg.substring("--profile=".length());
+      } else if (arg.startsWith("--trace=")) {
+        try {
+          trace = Integer.parseInt(arg.substring("--trace=".length()));
+        } catch (NumberFormatException e) {
+          usage();
+        }
+      } else if (arg.startsWith("--trace-file=")) {
+        traceFile = arg.substring("--trace-file=".length());
+      } else if (arg.startsWith("--break=")) {
+        breaks.add(arg.substring("--break=".length()));
+      } else if (arg.startsWith("--watch=")) {
+        watches.add(arg.substring("--watch=".length()));
+      } else {
+        usage();
+      }
+    }
+    double hz = 0;
+    try {
+      hz = Pacer.parseHz(speed);
+    } catch (IllegalArgumentException e) {
+      usage();
+    }
+    Apple1 me = new Apple1(System.out, hz);
+    me.getCpu().setBlockCompilation(compile);
+    if ((trace > 0) || (traceFile != null)) {
+      Tracer tracer = new Tracer((trace > 0) ? trace : DEFAULT_TRACE);
+      if (traceFile != null) {
+        try {
+          tracer.streamTo(Paths.get(traceFile));
+        } catch (IOException e) {
+          System.err.println("Cannot write " + traceFile + ": " + e);
+          System.exit(1);
+        }
+      }
+      me.getCpu().setTracer(tracer);
+    }
+    try {
+      for (String b : breaks) {
+        int colon = b.indexOf(':');
+        if (colon < 0) {
+          me.getCpu().addBreakpoint(parseAddress(b));
+        } else {
+          me
+            .getCpu()
+            .addBreakpoint(
+              parseAddress(b.substring(0, colon)),
+              b.substring(colon + 1)
+            );
+        }
+      }
+      for (String w : watches) {
+        int colon = w.indexOf(':');
+        String access = (colon < 0) ? "w" : w.substring(colon + 1);
+        if (!access.matches("r|w|rw")) {
+          usage();
+        }
+        me
+          .getCpu()
+          .watch(
+            parseAddress((colon < 0) ? w : w.substring(0, colon)),
+            access.contains("r"),
+            access.contains("w")
+          );
+      }
+    } catch (IllegalArgumentException e) {
+      System.err.println(e.getMessage());
+      usage();
+    }
+    if (snapshot != null) {
+      try {
+        me.restore(Snapshot.read(Paths.get(snapshot)));
+      } catch (IOException e) {
+        System.err.println("Cannot restore " + snapshot + ": " + e);
+        System.exit(1);
+      }
+    }
+    if (load != null) {
+      try (Reader in = new FileReader(load)) {
+        me.fastLoad(in);
+      } catch (IOException e) {
+        System.err.println("Cannot load " + load + ": " + e);
+        System.exit(1);
+      }
+    }
+    me.mainLoop(
+      (save == null) ? null : Paths.get(save),
+      (profile == null) ? null : Paths.get(profile)
+    );
   }
 }
@@ -0,0 +1,456 @@
+package a1em;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Paths;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs many independent Apple 1 machines in one JVM on a fixed pool of
+ * worker threads. Each machine runs one time slice at a time, and is then
+ * rescheduled when its clock says the next slice is due. A machine that is
+ * idle waiting for a key is not scheduled at all until input arrives, so
+ * idle machines cost no CPU. Nor is one whose display is held (see
+ * Apple1.holdDisplay()) until it is released and woken.
+ *
+ * <p>Alternatively, each machine can get its own virtual thread running
+ * Apple1.run(). A machine waiting for a key then parks, which frees the
+ * carrier thread, so thousands of mostly idle machines share a few
+ * carriers.
+ *
+ * <p>In the pool, input streams are read by a second pool of as many
+ * threads, one chunk at a time while there is room in the machine's
+ * keyboard buffer. Once the buffer is full, reading stops until the machine
+ * has taken a key, so a busy program holds up nobody else's input. A
+ * machine on its own virtual thread has another one that reads its input,
+ * waiting in Apple1.typeKey() while the buffer is full.
+ */
+public class Apple1Host implements AutoCloseable {
+
+  // Null when each machine has its own virtual thread
+  private final ScheduledExecutorService pool;
+  private final ExecutorService readers;
+  private final double hz;
+  private final Map<Apple1, Slot> slots = new ConcurrentHashMap<>();
+  private final AtomicInteger machinesStarted = new AtomicInteger();
+
+  // A machine and its streams. Only one worker runs a slot at a time: the
+  // slot is either queued in the pool, running, or parked.
+  private final class Slot implements Runnable {
+
+    final Apple1 machine;
+    final InputStream in;
+    final OutputStream out;
+    final AtomicBoolean parked = new AtomicBoolean();
+    // True while a read is queued or running, and for good once the input
+    // has ended
+    final AtomicBoolean reading = new AtomicBoolean();
+    private final byte[] inputBuffer = new byte[256];
+    // The thread in readAll(), if there is one
+    volatile Thread reader;
+
+    Slot(Apple1 machine, InputStream in, OutputStream out) {
+      this.machine = machine;
+      this.in = in;
+      this.out = out;
+    }
+
+    // Starts a read on the reader pool unless one is under way or the
+    // keyboard buffer is full. Whoever finds it full stops reading, and the
+    // machine calls this again after its next slice.
+    void readMore() {
+      while (reading.compareAndSet(false, true)) {
+        if (machine.getKeySpace() > 0) {
+          readers.execute(this::readInput);
+          return;
+        }
+        reading.set(false);
+        // An empty buffer means the machine took every key before it could
+        // see that a read was under way
+        if (machine.hasKey()) {
+          return;
+        }
+      }
+    }
+
+    // Reads as many keys as there is room for, on the reader pool
+    void readInput() {
+      int n;
+      try {
+        int room = Math.min(machine.getKeySpace(), inputBuffer.length);
+        n = machine.isHalted() ? -1 : in.read(inputBuffer, 0, room);
+      } catch (IOException e) {
+        // A closed input just means no more keys
+        n = -1;
+      }
+      if (n < 0) {
+        return;
+      }
+      for (int i = 0; i < n; i++) {
+        machine.offerKey(inputBuffer[i] & 0xff);
+      }
+      wake(this);
+      reading.set(false);
+      readMore();
+    }
+
+    // Reads keys until the input ends or is closed, on a thread of its own,
+    // for a machine on its own thread
+    void readAll() {
+      try {
+        int n;
+        while (!machine.isHalted() && (n = in.read(inputBuffer)) >= 0) {
+          for (int i = 0; i < n; i++) {
+            machine.typeKey(inputBuffer[i] & 0xff);
+          }
+        }
+      } catch (IOException ignored) {
+        // A closed input just means no more keys
+      }
+    }
+
+    // Closes the streams once the machine is done with them, and stops the
+    // reader if it is waiting for room in the keyboard buffer
+    void finish() {
+      Thread t = reader;
+      if (t != null) {
+        t.interrupt();
+      }
+      try {
+        if (in != null) {
+          in.close();
+        }
+        out.close();
+      } catch (IOException ignored) {
+        // Nothing more will be read or written
+      }
+    }
+
+    public void run() {
+      try {
+        if (machine.hasKey() || (machine.nanosUntilEvent() == 0)) {
+          machine.resume();
+        }
+        machine.runSlice();
+      } catch (RuntimeException e) {
+        e.printStackTrace();
+        machine.getCpu().halt = true;
+      }
+      if (machine.isHalted() || (slots.get(machine) != this)) {
+        remove(this);
+        return;
+      }
+      if (in != null) {
+        readMore();
+      }
+      if (machine.isDisplayHeld()) {
+        parked.set(true);
+        // The display may have been released after the last check
+        if (!machine.isDisplayHeld()) {
+          wake(this);
+        }
+        return;
+      }
+      if (machine.isIdle()) {
+        parked.set(true);
+        // A key may have arrived after the last check, when nobody would
+        // have woken this slot
+        if (machine.hasKey()) {
+          wake(this);
+        } else {
+          long wait = machine.nanosUntilEvent();
+          if (wait >= 0) {
+            pool.schedule(() -> wake(this), wait, TimeUnit.NANOSECONDS);
+          }
+        }
+        return;
+      }
+      long delay = machine.nanosUntilNextSlice();
+      if (delay > 0) {
+        pool.schedule(this, delay, TimeUnit.NANOSECONDS);
+      } else {
+        pool.execute(this);
+      }
+    }
+  }
+
+  /**
+   * Creates a host with the given number of worker threads, running every
+   * machine at hz cycles per second (0 for unlimited).
+   */
+  public Apple1Host(int threads, double hz) {
+    this(threads, hz, false);
+  }
+
+  /**
+   * Creates a host. If virtualThreads is true, each machine runs on its own
+   * virtual thread (a daemon platform thread on JVMs without virtual
+   * threads) and threads is ignored.
+   */
+  public Apple1Host(int threads, double hz, boolean virtualThreads) {
+    this.hz = hz;
+    if (virtualThreads) {
+      pool = null;
+      readers = null;
+      return;
+    }
+    pool = Executors.newScheduledThreadPool(threads);
+    readers = Executors.newFixedThreadPool(threads);
+  }
+
+  /**
+   * Starts a new machine that reads keys from in (which may be null) and
+   * writes its display to out. The host closes both once the machine halts,
+   * or when the host is closed.
+   */
+  public Apple1 start(InputStream in, OutputStream out) {
+    return start(in, out, null);
+  }
+
+  /**
+   * Starts a new machine like start(in, out), but in the state saved in
+   * snapshot if it is not null. Many machines can share one snapshot.
+   */
+  public Apple1 start(InputStream in, OutputStream out, Snapshot snapshot) {
+    Apple1 machine = new Apple1(out, hz);
+    if (snapshot != null) {
+      machine.restore(snapshot);
+    }
+    return schedule(machine, in, out);
+  }
+
+  /**
+   * Starts a new machine forked from parent (see Apple1.fork()), so it
+   * shares memory with parent until it writes to it. parent must not be
+   * running, and can be forked any number of times.
+   */
+  public Apple1 startFork(Apple1 parent, InputStream in, OutputStream out) {
+    return schedule(parent.fork(out), in, out);
+  }
+
+  /**
+   * Starts running machine, which writes its display to out and must not
+   * be running already, like start(in, out). For a caller whose display
+   * stream needs the machine before it starts.
+   */
+  Apple1 schedule(Apple1 machine, InputStream in, OutputStream out) {
+    Slot slot = new Slot(machine, in, out);
+    slots.put(machine, slot);
+    String name = "apple1-" + machinesStarted.getAndIncrement();
+    if (pool != null) {
+      if (in != null) {
+        slot.readMore();
+      }
+      pool.execute(slot);
+      return machine;
+    }
+    VirtualThreads.start(
+      name,
+      () -> {
+        machine.run();
+        remove(slot);
+      }
+    );
+    if (in != null) {
+      slot.reader = VirtualThreads.start(name + "-input", slot::readAll);
+    }
+    return machine;
+  }
+
+  private void remove(Slot slot) {
+    if (slots.remove(slot.machine, slot)) {
+      slot.finish();
+    }
+  }
+
+  /**
+   * Schedules a machine that may be idle, after keys were given to it
+   * directly with Apple1.typeKey().
+   */
+  public void wake(Apple1 machine) {
+    Slot slot = slots.get(machine);
+    // A machine on its own thread is woken by typeKey()
+    if ((slot != null) && (pool != null)) {
+      wake(slot);
+    }
+  }
+
+  private void wake(Slot slot) {
+    if ((pool != null) && slot.parked.compareAndSet(true, false)) {
+      pool.execute(slot);
+    }
+  }
+
+  /**
+   * Stops machine and closes its streams, as if it had halted. A machine on
+   * its own thread stops at the end of its current time slice.
+   */
+  public void stop(Apple1 machine) {
+    Slot slot = slots.get(machine);
+    machine.stop();
+    if ((slot != null) && (pool != null)) {
+      remove(slot);
+    }
+  }
+
+  /** Returns the number of machines that have not halted or been stopped. */
+  public int getMachineCount() {
+    return slots.size();
+  }
+
+  /**
+   * Returns the number of machines idle waiting for a key, not counting
+   * ones that have been given a key but not yet woken up. With virtual
+   * threads this is only a snapshot, read without synchronization.
+   */
+  public int getIdleCount() {
+    int count = 0;
+    for (Slot slot : slots.values()) {
+      boolean idle =
+        (slot.parked.get() || (pool == null)) && slot.machine.isIdle();
+      if (idle && !slot.machine.hasKey()) {
+        count++;
+      }
+    }
+    return count;
+  }
+
+  /** Returns the total cycles executed by all running machines. */
+  public long getTotalCycles() {
+    long total = 0;
+    for (Apple1 machine : slots.keySet()) {
+      total += machine.getCpu().cycles;
+    }
+    return total;
+  }
+
+  public boolean usesVirtualThreads() {
+    return pool == null;
+  }
+
+  /**
+   * Stops every machine. Machines in the pool stop at once and their streams
+   * are closed; a machine on its own thread closes them when it has stopped.
+   */
+  public void close() {
+    if (pool != null) {
+      pool.shutdownNow();
+      readers.shutdownNow();
+    }
+    for (Slot slot : slots.values()) {
+      slot.machine.stop();
+      if (pool != null) {
+        remove(slot);
+      }
+    }
+  }
+
+  private static void usage() {
+    System.err.println(
+      "Usage: Apple1Host [--machines=<n>] [--threads=<n>]\n" +
+      "                  [--speed=<multiple>|max] [--input=<file>]\n" +
+      "                  [--output=<dir>] [--snapshot=<file>]\n" +
+      "                  [--virtual]\n" +
+      "  --machines  number of machines to run (default 1)\n" +
+      "  --threads   worker threads (default: number of processors)\n" +
+      "  --speed     clock rate as a multiple of 1.023 MHz (default 1),\n" +
+      "              or max for unlimited\n" +
+      "  --input     file typed into every machine, e.g. a .mon file\n" +
+      "  --output    directory for each machine's display output\n" +
+      "              (machine-<n>.txt); discarded if not given\n" +
+      "  --snapshot  start every machine from a saved snapshot\n" +
+      "  --virtual   run each machine on its own virtual thread"
+    );
+    System.exit(1);
+  }
+
+  public static void main(String args[]) throws Exception {
+    int machines = 1;
+    int threads = Runtime.getRuntime().availableProcessors();
+    String speed = "1";
+    String input = null;
+    String output = null;
+    String snapshot = null;
+    boolean virtual = false;
+    try {
+      for (String arg : args) {
+        if (arg.startsWith("--machines=")) {
+          machines = Integer.parseInt(arg.substring("--machines=".length()));
+        } else if (arg.startsWith("--threads=")) {
+          threads = Integer.parseInt(arg.substring("--threads=".length()));
+        } else if (arg.startsWith("--speed=")) {
+          speed = arg.substring("--speed=".length());
+        } else if (arg.startsWith("--input=")) {
+          input = arg.substring("--input=".length());
+        } else if (arg.startsWith("--output=")) {
+          output = arg.substring("--output=".length());
+        } else if (arg.startsWith("--snapshot=")) {
+          snapshot = arg.substring("--snapshot=".length());
+        } else if (arg.equals("--virtual")) {
+          virtual = true;
+        } else {
+          usage();
+        }
+      }
+    } catch (NumberFormatException e) {
+      usage();
+    }
+    double hz = 0;
+    try {
+      hz = Pacer.parseHz(speed);
+    } catch (IllegalArgumentException e) {
+      usage();
+    }
+    // Machines started from a snapshot are all forked from one restored
+    // machine, so they share the pages they don't change
+    Apple1 base = null;
+    if (snapshot != null) {
+      base = new Apple1(OutputStream.nullOutputStream(), hz);
+      base.restore(Snapshot.read(Paths.get(snapshot)));
+    }
+    Apple1Host host = new Apple1Host(threads, hz, virtual);
+    for (int i = 0; i < machines; i++) {
+      InputStream in = (input == null) ? null : new FileInputStream(input);
+      OutputStream out = OutputStream.nullOutputStream();
+      if (output != null) {
+        out = new FileOutputStream(new File(output, "machine-" + i + ".txt"));
+      }
+      if (base != null) {
+        host.startFork(base, in, out);
+      } else {
+        host.start(in, out);
+      }
+    }
+    long lastCycles = 0;
+    long lastNanos = System.nanoTime();
+    while (host.getMachineCount() > 0) {
+      Thread.sleep(1000);
+      long cycles = host.getTotalCycles();
+      long now = System.nanoTime();
+      System.err.printf(
+        "%d machines, %d idle, %.2f MHz total",
+        host.getMachineCount(),
+        host.getIdleCount(),
+        (cycles - lastCycles) * 1e3 / (now - lastNanos)
+      );
+      if (host.usesVirtualThreads()) {
+        System.err.printf(", %d carriers", VirtualThreads.carrierCount());
+      }
+      System.err.println();
+      lastCycles = cycles;
+      lastNanos = now;
+    }
+    host.close();
+  }
+}
@@ -0,0 +1,433 @@
+package a1em;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Serves Apple 1 sessions over TCP, one machine per connection, for telnet
+ * or nc. A single thread in run() handles every connection with a
+ * Selector, and the machines run on the worker pool of an Apple1Host, which
+ * does not schedule idle machines, so thousands of mostly idle sessions
+ * are cheap.
+ *
+ * <p>Bytes from a client are typed into its machine, with telnet commands
+ * and the line feed after a carriage return left out. While the machine's
+ * keyboard buffer is full the connection is not read, so a client typing
+ * ahead waits in TCP instead of losing keys. Display output goes through a
+ * ring buffer to the selector thread, which writes it in batches; while a
+ * client does not keep up, its machine's display is held, and it is not
+ * scheduled until the buffer has been sent. A session is closed when its
+ * client has sent nothing for the idle timeout, or when its machine halts.
+ * Machines tell the selector thread when they have output, room for keys or
+ * have halted, and it otherwise sleeps until the next idle timeout is due.
+ */
+public class Apple1Server implements AutoCloseable {
+
+  public static final int DEFAULT_PORT = 6502;
+
+  // Display output waiting to be sent, per connection. This is two of the
+  // batches a machine writes its display in, and the machine is held while
+  // less than one fits, so the batch it is writing always fits.
+  private static final int OUTPUT_BUFFER_SIZE = 2 * Apple1.DISPLAY_BUFFER_SIZE;
+  private static final int SEND_BUFFER_SIZE = Apple1.DISPLAY_BUFFER_SIZE;
+  private static final int READ_BUFFER_SIZE = 256;
+
+  // Telnet commands, which are not typed
+  private static final int IAC = 255;
+  private static final int WILL = 251;
+  private static final int DONT = 254;
+  private static final int SB = 250;
+  private static final int SE = 240;
+  // Not a telnet byte: the state after IAC within a subnegotiation
+  private static final int SB_IAC = 0x100 | IAC;
+
+  private final ServerSocketChannel server;
+  private final Selector selector;
+  private final Apple1Host host;
+  private final Apple1 base;
+  private final double hz;
+  private final long idleTimeoutNanos;
+  // Owned by the selector thread
+  // Open sessions, in the order their clients last sent anything
+  private final Set<Session> sessions = new LinkedHashSet<>();
+  private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(
+    READ_BUFFER_SIZE
+  );
+  // Sessions with output to send, room for keys or a halted machine,
+  // queued by their machines
+  private final ConcurrentLinkedQueue<Session> ready =
+    new ConcurrentLinkedQueue<>();
+  private volatile int sessionCount;
+  private volatile boolean running = true;
+
+  private final class Session {
+
+    final SocketChannel channel;
+    final SelectionKey key;
+    final Apple1 machine;
+    // Filled by the machine's thread, drained by the selector thread
+    final ByteRingBuffer screen = new ByteRingBuffer(OUTPUT_BUFFER_SIZE);
+    // Output taken from screen but not yet accepted by the socket
+    final ByteBuffer pending = ByteBuffer.allocate(SEND_BUFFER_SIZE);
+    final AtomicBoolean queued = new AtomicBoolean();
+    volatile boolean closed;
+    long lastInput;
+    volatile boolean readPaused;
+    // Where we are in a telnet command, and whether the last key was CR
+    int telnet;
+    boolean afterCr;
+
+    Session(SocketChannel channel) throws IOException {
+      this.channel = channel;
+      OutputStream out = new OutputStream() {
+        public void write(int b) {
+          screen.offer(b);
+        }
+
+        // Called after each batch
+        public void flush() {
+          if (closed) {
+            return;
+          }
+          if (screen.remaining() < Apple1.DISPLAY_BUFFER_SIZE) {
+            // The client is behind: wait until what there is has been sent
+            machine.holdDisplay();
+          }
+          notifySelector();
+        }
+
+        // Called by the host once the machine has halted
+        public void close() {
+          if (!closed) {
+            notifySelector();
+          }
+        }
+      };
+      pending.flip();
+      lastInput = System.nanoTime();
+      key = channel.register(selector, SelectionKey.OP_READ, this);
+      machine = (base != null) ? base.fork(out) : new Apple1(out, hz);
+      machine.setKeyReadListener(() -> {
+        if (readPaused) {
+          notifySelector();
+        }
+      });
+      host.schedule(machine, null, out);
+    }
+
+    // Called on the machine's thread
+    void notifySelector() {
+      if (queued.compareAndSet(false, true)) {
+        ready.add(this);
+        selector.wakeup();
+      }
+    }
+
+    void read() throws IOException {
+      int room = machine.getKeySpace();
+      if (room == 0) {
+        // Leave the rest in the socket until the program catches up
+        key.interestOpsAnd(~SelectionKey.OP_READ);
+        readPaused = true;
+        // The program may have read a key before it could see the pause
+        resumeRead();
+        return;
+      }
+      readBuffer.clear();
+      readBuffer.limit(Math.min(room, READ_BUFFER_SIZE));
+      int n = channel.read(readBuffer);
+      if (n < 0) {
+        close();
+        return;
+      }
+      lastInput = System.nanoTime();
+      sessions.remove(this);
+      sessions.add(this);
+      readBuffer.flip();
+      while (readBuffer.hasRemaining()) {
+        type(readBuffer.get() & 0xff);
+      }
+      host.wake(machine);
+    }
+
+    private void type(int b) {
+      if (telnet == IAC) {
+        // A command, which takes an option if it is WILL, WONT, DO or DONT,
+        // or starts a subnegotiation if it is SB
+        boolean option = (b >= WILL) && (b <= DONT);
+        telnet = (option || (b == SB)) ? b : 0;
+        return;
+      }
+      if (telnet == SB) {
+        // Everything up to IAC SE is part of the subnegotiation
+        if (b == IAC) {
+          telnet = SB_IAC;
+        }
+        return;
+      }
+      if (telnet == SB_IAC) {
+        // IAC IAC is a 255 within it
+        telnet = (b == SE) ? 0 : SB;
+        return;
+      }
+      if (telnet != 0) {
+        telnet = 0;
+        return;
+      }
+      if (b == IAC) {
+        telnet = IAC;
+        return;
+      }
+      // Telnet sends CR LF or CR NUL for return
+      boolean skip = afterCr && ((b == '\n') || (b == 0));
+      afterCr = b == '\r';
+      if (!skip) {
+        machine.offerKey(b);
+      }
+    }
+
+    void write() throws IOException {
+      while (true) {
+        if (!pending.hasRemaining()) {
+          pending.clear();
+          screen.drainTo(pending);
+          pending.flip();
+          if (machine.isDisplayHeld() && screen.isEmpty()) {
+            machine.releaseDisplay();
+            host.wake(machine);
+          }
+          if (!pending.hasRemaining()) {
+            break;
+          }
+        }
+        channel.write(pending);
+        if (pending.hasRemaining()) {
+          // Finish when the socket has room
+          key.interestOpsOr(SelectionKey.OP_WRITE);
+          return;
+        }
+      }
+      key.interestOpsAnd(~SelectionKey.OP_WRITE);
+      // Everything has been sent
+      if (machine.isHalted()) {
+        close();
+      }
+    }
+
+    // Reads again once the program has made room for keys
+    void resumeRead() {
+      if (readPaused && (machine.getKeySpace() > 0)) {
+        readPaused = false;
+        key.interestOpsOr(SelectionKey.OP_READ);
+      }
+    }
+
+    void close() {
+      if (closed) {
+        return;
+      }
+      closed = true;
+      sessions.remove(this);
+      sessionCount = sessions.size();
+      key.cancel();
+      try {
+        channel.close();
+      } catch (IOException ignored) {
+        // Already gone
+      }
+      host.stop(machine);
+    }
+  }
+
+  /**
+   * Listens on address. Each session runs at hz cycles per second (0 for
+   * unlimited), starts as a fork of base if it is not null, and is closed
+   * after its client sends nothing for idleTimeoutNanos.
+   */
+  public Apple1Server(
+    InetSocketAddress address,
+    double hz,
+    long idleTimeoutNanos,
+    Apple1 base
+  ) throws IOException {
+    this.host = new Apple1Host(Runtime.getRuntime().availableProcessors(), hz);
+    this.base = base;
+    this.hz = hz;
+    this.idleTimeoutNanos = idleTimeoutNanos;
+    selector = Selector.open();
+    server = ServerSocketChannel.open();
+    server.bind(address);
+    server.configureBlocking(false);
+    server.register(selector, SelectionKey.OP_ACCEPT);
+  }
+
+  public int getPort() {
+    return server.socket().getLocalPort();
+  }
+
+  /** Returns the number of open sessions. */
+  public int getSessionCount() {
+    return sessionCount;
+  }
+
+  /** Serves connections on the calling thread until close() is called. */
+  public void run() throws IOException {
+    try {
+      while (running) {
+        selector.select(closeIdleSessions());
+        Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+        while (keys.hasNext()) {
+          SelectionKey key = keys.next();
+          keys.remove();
+          if (key.isValid() && key.isAcceptable()) {
+            accept();
+          } else {
+            Session session = (Session) key.attachment();
+            try {
+              if (key.isValid() && key.isReadable()) {
+                session.read();
+              }
+              if (key.isValid() && key.isWritable()) {
+                session.write();
+              }
+            } catch (IOException e) {
+              session.close();
+            }
+          }
+        }
+        Session session;
+        while ((session = ready.poll()) != null) {
+          session.queued.set(false);
+          try {
+            if (!session.closed) {
+              session.write();
+            }
+            if (!session.closed) {
+              session.resumeRead();
+            }
+          } catch (IOException e) {
+            session.close();
+          }
+        }
+      }
+    } finally {
+      for (Session s : new ArrayList<>(sessions)) {
+        s.close();
+      }
+      server.close();
+      selector.close();
+      host.close();
+    }
+  }
+
+  private void accept() throws IOException {
+    SocketChannel channel = server.accept();
+    if (channel == null) {
+      return;
+    }
+    channel.configureBlocking(false);
+    channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+    sessions.add(new Session(channel));
+    sessionCount = sessions.size();
+  }
+
+  // Closes sessions whose clients have sent nothing for the idle timeout,
+  // and returns how many milliseconds select() can wait for the next one
+  // (0 for no limit)
+  private long closeIdleSessions() {
+    long now = System.nanoTime();
+    while (!sessions.isEmpty()) {
+      Session oldest = sessions.iterator().next();
+      long wait = oldest.lastInput + idleTimeoutNanos - now;
+      if (wait > 0) {
+        return Math.max(1, (wait + 999999) / 1000000);
+      }
+      oldest.close();
+    }
+    return 0;
+  }
+
+  /** Makes run() close every session and return. May be called anywhere. */
+  public void close() {
+    running = false;
+    selector.wakeup();
+  }
+
+  private static void usage() {
+    System.err.println(
+      "Usage: Apple1Server [--port=<n>] [--speed=<multiple>|max]\n" +
+      "                    [--idle-timeout=<seconds>] [--snapshot=<file>]\n" +
+      "  --port          TCP port to listen on (default " +
+      DEFAULT_PORT +
+      ")\n" +
+      "  --speed         clock rate as a multiple of 1.023 MHz (default 1),\n" +
+      "                  or max for unlimited\n" +
+      "  --idle-timeout  close sessions that send nothing for this long\n" +
+      "                  (default 600)\n" +
+      "  --snapshot      start every session from a saved snapshot"
+    );
+    System.exit(1);
+  }
+
+  public static void main(String args[]) throws Exception {
+    int port = DEFAULT_PORT;
+    String speed = "1";
+    long idleSeconds = 600;
+    String snapshot = null;
+    try {
+      for (String arg : args) {
+        if (arg.startsWith("--port=")) {
+          port = Integer.parseInt(arg.substring("--port=".length()));
+        } else if (arg.startsWith("--speed=")) {
+          speed = arg.substring("--speed=".length());
+        } else if (arg.startsWith("--idle-timeout=")) {
+          idleSeconds =
+            Long.parseLong(arg.substring("--idle-timeout=".length()));
+        } else if (arg.startsWith("--snapshot=")) {
+          snapshot = arg.substring("--snapshot=".length());
+        } else {
+          usage();
+        }
+      }
+    } catch (NumberFormatException e) {
+      usage();
+    }
+    double hz = 0;
+    try {
+      hz = Pacer.parseHz(speed);
+    } catch (IllegalArgumentException e) {
+      usage();
+    }
+    // As in Apple1Host, sessions from a snapshot share its pages
+    Apple1 base = null;
+    if (snapshot != null) {
+      base = new Apple1(OutputStream.nullOutputStream(), hz);
+      base.restore(Snapshot.read(Paths.get(snapshot)));
+    }
+    try (
+      Apple1Server server = new Apple1Server(
+        new InetSocketAddress(port),
+        hz,
+        idleSeconds * 1000000000L,
+        base
+      )
+    ) {
+      System.err.println("Listening on port " + server.getPort());
+      server.run();
+    }
+  }
+}
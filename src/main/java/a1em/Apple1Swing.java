@@ -2,82 +2,157 @@ package a1em;
 
 import java.awt.BorderLayout;
 import java.awt.Dimension;
+import java.awt.Graphics;
+import java.awt.Toolkit;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.awt.event.KeyAdapter;
 import java.awt.event.KeyEvent;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.file.Files;
 import javax.swing.JComponent;
 import javax.swing.JFileChooser;
 import javax.swing.JFrame;
 import javax.swing.Timer;
 
-public class Apple1Swing extends JComponent implements M6502.Memory {
+/**
+ * A window for an Apple 1, showing its 40x24 screen. The machine runs on
+ * its own thread, paced by Apple1.run(), so the window stays responsive at
+ * any speed and dialogs do not stall it. Keys go to the machine through
+ * its keyboard buffer, and the display comes back through another ring
+ * buffer, which a timer on the event dispatch thread drains into a
+ * Terminal every frame, repainting at most once however much arrived.
+ * Everything else the window does to the machine is passed to
+ * Apple1.invokeLater().
+ */
+public class Apple1Swing extends JComponent {
 
-  private int[] mem;
-  private static M6502 cpu;
-  private int lastKey;
-  private int lastOut;
-  private char keyBuf[];
-  private int keyBufIndex;
+  private static final int FRAME_MILLIS = 1000 / 60;
+  private static final int SCREEN_BUFFER_SIZE = 16384;
+  // The cursor blinks on and off every this many frames
+  private static final int BLINK_FRAMES = 30;
+  private static final int PROFILE_TOP = 20;
 
-  private static void err(String s) {
-    System.err.println(s);
-    System.out.println(cpu.dump());
-    System.exit(1);
-  }
+  private final Apple1 machine;
+  private final M6502 cpu;
+  // Display output, from the machine's thread to the event dispatch thread
+  private final ByteRingBuffer screen = new ByteRingBuffer(
+    SCREEN_BUFFER_SIZE
+  );
+  private final Terminal terminal = new Terminal();
+  private final TerminalRenderer renderer = new TerminalRenderer(terminal);
+  private int frames;
+  private boolean cursorOn = true;
+  // The rest of a file loaded with F1, which is typed as there is room
+  private byte[] keyFile;
+  private int keyFileIndex;
 
   private static void warn(String s) {
     System.err.println(s);
   }
 
   public Dimension getPreferredSize() {
-    return new Dimension(150, 150);
+    return renderer.getSize();
+  }
+
+  protected void paintComponent(Graphics g) {
+    renderer.paint(g, this, cursorOn);
   }
 
   private void fillKeyBuf(File srcFile) {
     try {
-      FileInputStream is = new FileInputStream(srcFile);
-      long len = srcFile.length();
-      keyBuf = new char[(int) len];
-      for (int i = 0; i < len; i++) {
-        keyBuf[i] = (char) is.read();
-        if (keyBuf[i] == '\n') {
-          keyBuf[i] = '\r';
-        }
-      }
-      is.close();
-      keyBufIndex = 0;
+      keyFile = Files.readAllBytes(srcFile.toPath());
+      keyFileIndex = 0;
     } catch (Exception e) {
       e.printStackTrace();
     }
   }
 
+  private void pumpKeyFile() {
+    while (keyFile != null) {
+      if (!machine.offerKey(keyFile[keyFileIndex] & 0xff)) {
+        return;
+      }
+      if (++keyFileIndex == keyFile.length) {
+        keyFile = null;
+      }
+    }
+  }
+
+  // Runs on the machine's thread
   private void loadBinary(File srcFile, int where) {
-    try {
-      FileInputStream is = new FileInputStream(srcFile);
+    try (FileInputStream is = new FileInputStream(srcFile)) {
       int c;
       while ((c = is.read()) >= 0) {
-        mem[where++] = c;
+        machine.getMemory().poke(where++, c);
       }
     } catch (Exception ex) {
       ex.printStackTrace();
     }
+    cpu.flushDecodeCache();
   }
 
-  public Apple1Swing() {
-    super();
-    mem = new int[65536];
-    cpu = new M6502(this, 0xff00);
-
-    ResourceHelper resources = new ResourceHelper();
-    int[] bios = resources.loadBinaryResource("rom.apple1", 256);
-    int a = 0xff00;
-    for (int i = 0; i < 256; i++) {
-      mem[a] = bios[i];
-      a++;
+  // Runs on the machine's thread
+  private void fastLoad(File srcFile) {
+    try (Reader in = new FileReader(srcFile)) {
+      machine.fastLoad(in);
+    } catch (Exception ex) {
+      ex.printStackTrace();
+    }
+  }
+
+  // Starts or stops profiling. Runs on the machine's thread, so the profile
+  // is never read while the CPU is running.
+  private void toggleProfiling() {
+    if (cpu.getProfiler() == null) {
+      cpu.setProfiler(new Profiler());
+      warn("Profiling on");
+    } else {
+      cpu.setProfiler(null);
+      warn("Profiling off");
     }
+  }
+
+  // Runs on the machine's thread
+  private void writeProfile(File csvFile) {
+    Profiler profiler = cpu.getProfiler();
+    if (profiler == null) {
+      warn("Not profiling");
+      return;
+    }
+    System.err.print(profiler.report(cpu, PROFILE_TOP));
+    if (csvFile != null) {
+      try (Writer out = new FileWriter(csvFile)) {
+        profiler.writeCsv(cpu, out);
+      } catch (Exception ex) {
+        ex.printStackTrace();
+      }
+    }
+  }
+
+  public Apple1Swing(double hz) {
+    super();
+    OutputStream toScreen = new OutputStream() {
+      public void write(int b) {
+        try {
+          // Waits for the next frame if the screen is behind
+          screen.put(b);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      }
+    };
+    machine = new Apple1(toScreen, hz);
+    cpu = machine.getCpu();
+    setOpaque(true);
+    setFocusable(true);
+
     addKeyListener(
       new KeyAdapter() {
         public void keyPressed(KeyEvent e) {
@@ -98,132 +173,117 @@ public class Apple1Swing extends JComponent implements M6502.Memory {
                 JFileChooser fc = new JFileChooser();
                 int returnVal = fc.showOpenDialog(Apple1Swing.this);
                 if (returnVal == JFileChooser.APPROVE_OPTION) {
-                  loadBinary(fc.getSelectedFile(), 0x300);
+                  File file = fc.getSelectedFile();
+                  machine.invokeLater(() -> loadBinary(file, 0x300));
+                }
+              }
+              return;
+            case KeyEvent.VK_F3:
+              // Load a .mon file directly into memory
+              {
+                JFileChooser fc = new JFileChooser();
+                int returnVal = fc.showOpenDialog(Apple1Swing.this);
+                if (returnVal == JFileChooser.APPROVE_OPTION) {
+                  File file = fc.getSelectedFile();
+                  machine.invokeLater(() -> fastLoad(file));
                 }
               }
               return;
+            case KeyEvent.VK_F4:
+              machine.invokeLater(() -> toggleProfiling());
+              return;
+            case KeyEvent.VK_F5:
+              // Print the profile, and save it as CSV
+              {
+                JFileChooser fc = new JFileChooser();
+                int returnVal = fc.showSaveDialog(Apple1Swing.this);
+                File file = (returnVal == JFileChooser.APPROVE_OPTION)
+                  ? fc.getSelectedFile()
+                  : null;
+                machine.invokeLater(() -> writeProfile(file));
+              }
+              return;
           }
-          lastKey = (int) Character.toUpperCase(e.getKeyChar());
-          if (lastKey == '\n') lastKey = 0x0d;
-          if ((lastKey < 0) || (lastKey > 255)) {
-            lastKey = 0;
+          char ch = e.getKeyChar();
+          if ((ch == KeyEvent.CHAR_UNDEFINED) || (ch > 255)) {
+            return;
+          }
+          if ((keyFile != null) || !machine.offerKey(ch)) {
+            // Typing ahead of the keyboard buffer, or of a file being typed
+            Toolkit.getDefaultToolkit().beep();
           }
         }
       }
     );
     new Timer(
-      1000 / 6,
+      FRAME_MILLIS,
       new ActionListener() {
         public void actionPerformed(ActionEvent e) {
-          run();
+          frame();
         }
       }
     )
       .start();
   }
 
-  // Read
-  private int doIO(int where) {
-    //		System.out.println("IO read" + Integer.toHexString(where));
-    if (where == 0xd010) {
-      /* Keyboard input */
-      int k = lastKey;
-      if (keyBuf != null) {
-        if (keyBufIndex == keyBuf.length) {
-          keyBuf = null;
-          k = 0;
-        } else {
-          k = keyBuf[keyBufIndex];
-          keyBufIndex++;
-          if (keyBufIndex == keyBuf.length) keyBuf = null;
+  /** Starts the machine on its own thread. */
+  public void start() {
+    Thread thread = new Thread(
+      () -> {
+        machine.run();
+        if (machine.isHalted()) {
+          warn("CPU halted");
         }
-        lastKey = k;
-      }
-      if (lastKey == 0) {
-        warn("Reading keyboard but no key available");
-      }
-      lastKey = 0;
-      return k | 0x80;
-    } else if (where == 0xd011) {
-      if ((keyBuf == null) && (lastKey == 0)) {
-        return 1;
-      } else {
-        return 0x80;
-      }
-    } else if ((where == 0xd0f2) || (where == 0xd012)) {
-      /* Display output */
-      /* bit 8 should always be low */
-      return lastOut & 0x7f;
-    } else if (where == 0xd013) {
-      /* Display status */
-      warn("Read from display status");
-      return 0;
-    }
-    err("Read from Unknown I/O Address: " + where);
-    return 0;
-  }
-
-  // Write
-  private void doIO(int where, int what) {
-    where &= 0xf00f;
-    where |= 0x0010;
-    if (where == 0xd010) {
-      /* Keyboard input */
-      warn("Write to keyboard I/O: " + what);
-      return;
-    } else if (where == 0xd011) {
-      /* Keyboard status */
-      warn("Write to keyboard status I/O: " + what);
-      return;
-    } else if ((where == 0xd0f2) || (where == 0xd012)) {
-      /* Display output */
-      char ch = (char) (what & 0x7f);
-      if (ch == '\r') ch = '\n';
-      System.out.print(ch);
-      System.out.flush();
-      lastOut = what;
-      return;
-    } else if (where == 0xd013) {
-      /* Display status */
-      warn("Write to display status I/O: " + what);
-      return;
-    }
-    err("Write to Unknown I/O Address: " + where);
+      },
+      "Apple 1"
+    );
+    thread.setDaemon(true);
+    thread.start();
   }
 
-  public int read(int where) {
-    if ((where == 0) || (where == 1)) {
-      warn("Read from " + where);
+  // Runs on the event dispatch thread once a frame: types more of a file
+  // being loaded, and shows what the machine has written
+  private void frame() {
+    pumpKeyFile();
+    boolean changed = false;
+    int b;
+    while ((b = screen.poll()) >= 0) {
+      terminal.write(b);
+      changed = true;
     }
-    if ((where >= 0xd000) && (where < 0xe000)) return doIO(where);
-    if ((where < 0) || (where > 65536)) err("Read out of range: " + where);
-    return mem[where];
-  }
-
-  public void write(int where, int what) {
-    if ((where == 0) || (where == 1)) {
-      warn("Write to " + where);
+    if (++frames == BLINK_FRAMES) {
+      frames = 0;
+      cursorOn = !cursorOn;
+      changed = true;
     }
-    if ((where >= 0xd000) && (where < 0xe000)) {
-      doIO(where, what);
-      return;
+    if (changed) {
+      repaint();
     }
-    if ((where < 0) || (where > 65536)) err("Write out of range: " + where);
-    if ((what < 0) || (what > 256)) err("Write value out of range: " + what);
-    mem[where] = what;
   }
 
-  public void run() {
-    long clock = 0;
-
-    while (!cpu.halt && (clock < 10000)) {
-      cpu.step();
-      clock++;
-    }
+  private static void usage() {
+    System.err.println("Usage: Apple1Swing [--speed=<multiple>|max]");
+    System.err.println("  --speed  clock rate as a multiple of 1.023 MHz");
+    System.err.println("           (default 1), or max for unlimited");
+    System.exit(1);
   }
 
   public static void main(String args[]) {
-    Apple1Swing me = new Apple1Swing();
+    String speed = "1";
+    for (String arg : args) {
+      if (arg.startsWith("--speed=")) {
+        speed = arg.substring("--speed=".length());
+      } else {
+        usage();
+      }
+    }
+    double hz = 0;
+    try {
+      hz = Pacer.parseHz(speed);
+    } catch (IllegalArgumentException e) {
+      usage();
+    }
+    Apple1Swing me = new Apple1Swing(hz);
     JFrame f = new JFrame("Apple 1");
     f.getContentPane().setLayout(new BorderLayout());
     f.getContentPane().add(me);
@@ -231,5 +291,6 @@ public class Apple1Swing extends JComponent implements M6502.Memory {
     f.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
     f.setVisible(true);
     me.requestFocus();
+    me.start();
   }
 }
@@ -0,0 +1,533 @@
+/* Copyright (c) 2007-2026, Eric Scharff
+Permission to use, copy, modify, and/or distribute this software
+for any purpose with or without fee is hereby granted, provided
+that the above copyright notice and this permission notice appear
+in all copies.
+There is NO WARRANTY for this software.  See LICENSE.txt for
+details. */
+
+package a1em;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Compiles hot basic blocks of 6502 code to JVM bytecode. Each block becomes
+ * a hidden class that is a nestmate of M6502, and runs the block as a
+ * straight line of calls to the same handlers step() dispatches to, with
+ * the operands, cycle counts and final PC as constants. The JIT can then
+ * inline the handlers into one method per block.
+ *
+ * <p>A block ends at the first instruction that changes the flow of control,
+ * after MAX_INSTRUCTIONS, or at a page that is not plain memory. Blocks are
+ * dropped when the CPU writes to any of their bytes. The CPU then finishes
+ * the instruction that wrote, and the block returns to the interpreter.
+ */
+final class BlockCompiler {
+
+  /** A compiled basic block. */
+  interface Block {
+    void run(M6502 cpu);
+  }
+
+  static final int MAX_INSTRUCTIONS = 64;
+  // Entries into a block before it is compiled. The threshold doubles each
+  // time the block is dropped, up to MAX_BACKOFF times, since code that
+  // modifies itself, like NEXT in fig-Forth, would otherwise be compiled
+  // over and over.
+  static final int THRESHOLD = 256;
+  private static final int MAX_BACKOFF = 16;
+
+  private static final int MAX_BYTES = MAX_INSTRUCTIONS * 3;
+  private static final int IMPLIED_MODE = 13;
+
+  // Handler for each opcode, as in M6502.OPS. The doXXX() handlers take the
+  // addressing mode as an argument.
+  // prettier-ignore
+  private static final String[] HANDLERS = {
+    "doBRK", "oraIndX", "doILL", "doILL", "tsbZp", "oraZp", "aslZp", "doNOP",
+    "doPHP", "oraImm", "aslAcc", "doILL", "tsbAbs", "oraAbs", "aslAbs", "doILL",
+    "bpl", "oraIndY", "oraIndZP", "doILL", "trbZp", "oraZpX", "aslZpX", "doILL",
+    "doCLC", "oraAbsY", "doINA", "doILL", "trbAbs", "oraAbsX", "aslAbsX", "doILL",
+    "jsrAbs", "andIndX", "doILL", "doILL", "bitZp", "andZp", "rolZp", "doILL",
+    "doPLP", "andImm", "rolAcc", "doILL", "bitAbs", "andAbs", "rolAbs", "doILL",
+    "bmi", "andIndY", "andIndZP", "doILL", "bitZpX", "andZpX", "rolZpX", "doILL",
+    "doSEC", "andAbsY", "doDEA", "doILL", "bitAbsX", "andAbsX", "rolAbsX", "doILL",
+    "doRTI", "eorIndX", "doILL", "doILL", "doILL", "eorZp", "lsrZp", "doILL",
+    "doPHA", "eorImm", "lsrAcc", "doILL", "jmpAbs", "eorAbs", "lsrAbs", "doILL",
+    "bvc", "eorIndY", "eorIndZP", "doILL", "doILL", "eorZpX", "lsrZpX", "doILL",
+    "doCLI", "eorAbsY", "doPHY", "doILL", "doILL", "eorAbsX", "lsrAbsX", "doILL",
+    "doRTS", "adcIndX", "doILL", "doILL", "stzZp", "adcZp", "rorZp", "doILL",
+    "doPLA", "adcImm", "rorAcc", "doILL", "jmpInd", "adcAbs", "rorAbs", "doILL",
+    "bvs", "adcIndY", "adcIndZP", "doILL", "stzZpX", "adcZpX", "rorZpX", "doILL",
+    "doSEI", "adcAbsY", "doPLY", "doILL", "jmpAbsIndX", "adcAbsX", "rorAbsX", "doILL",
+    "bra", "staIndX", "doILL", "doILL", "styZp", "staZp", "stxZp", "doILL",
+    "doDEY", "bitImm", "doTXA", "doILL", "styAbs", "staAbs", "stxAbs", "doILL",
+    "bcc", "staIndY", "staIndZP", "doILL", "styZpX", "staZpX", "stxZpY", "doILL",
+    "doTYA", "staAbsY", "doTXS", "doILL", "stzAbs", "staAbsX", "stzAbsX", "doILL",
+    "ldyImm", "ldaIndX", "ldxImm", "doILL", "ldyZp", "ldaZp", "ldxZp", "doILL",
+    "doTAY", "ldaImm", "doTAX", "doILL", "ldyAbs", "ldaAbs", "ldxAbs", "doILL",
+    "bcs", "ldaIndY", "ldaIndZP", "doILL", "ldyZpX", "ldaZpX", "ldxZpY", "doILL",
+    "doCLV", "ldaAbsY", "doTSX", "doILL", "ldyAbsX", "ldaAbsX", "ldxAbsY", "doILL",
+    "cpyImm", "cmpIndX", "doILL", "doILL", "cpyZp", "cmpZp", "decZp", "doILL",
+    "doINY", "cmpImm", "doDEX", "doILL", "cpyAbs", "cmpAbs", "decAbs", "doILL",
+    "bne", "cmpIndY", "cmpIndZP", "doILL", "doILL", "cmpZpX", "decZpX", "doILL",
+    "doCLD", "cmpAbsY", "doPHX", "doILL", "doILL", "cmpAbsX", "decAbsX", "doILL",
+    "cpxImm", "sbcIndX", "doILL", "doILL", "cpxZp", "sbcZp", "incZp", "doILL",
+    "doINX", "sbcImm", "doNOP", "doILL", "cpxAbs", "sbcAbs", "incAbs", "doILL",
+    "beq", "sbcIndY", "sbcIndZP", "doILL", "doILL", "sbcZpX", "incZpX", "doILL",
+    "doSED", "sbcAbsY", "doPLX", "doILL", "doILL", "sbcAbsX", "incAbsX", "doILL",
+  };
+
+  // Opcodes that may change the flow of control, or halt
+  private static final boolean[] ENDS_BLOCK = new boolean[256];
+
+  static {
+    for (int op = 0; op < 256; op++) {
+      String handler = HANDLERS[op];
+      ENDS_BLOCK[op] =
+        ((handler.length() == 3) && handler.startsWith("b")) ||
+        handler.startsWith("jmp") ||
+        handler.equals("jsrAbs") ||
+        handler.equals("doRTS") ||
+        handler.equals("doRTI") ||
+        handler.equals("doBRK") ||
+        handler.equals("doILL");
+    }
+  }
+
+  private final M6502 cpu;
+  private final MethodHandles.Lookup lookup;
+  // Entry counts, times dropped, compiled blocks and their lengths in
+  // bytes, by address. Each is allocated a page at a time.
+  private final int[][] entries = new int[PagedMemory.PAGES][];
+  private final int[][] drops = new int[PagedMemory.PAGES][];
+  private final Block[][] blocks = new Block[PagedMemory.PAGES][];
+  private final int[][] lengths = new int[PagedMemory.PAGES][];
+  // One bit for each byte of memory in a compiled block
+  private final long[] codeBits = new long[PagedMemory.SIZE / 64];
+  private long compiled;
+  private long invalidated;
+
+  /** Creates a compiler for cpu, given a lookup with private access to it. */
+  BlockCompiler(M6502 cpu, MethodHandles.Lookup lookup) {
+    this.cpu = cpu;
+    this.lookup = lookup;
+  }
+
+  static boolean endsBlock(int op) {
+    return ENDS_BLOCK[op];
+  }
+
+  long getCompiled() {
+    return compiled;
+  }
+
+  long getInvalidated() {
+    return invalidated;
+  }
+
+  /**
+   * Returns the compiled block at where. Otherwise counts an entry into the
+   * block there, and compiles it once it is hot, or returns null.
+   */
+  Block blockAt(int where) {
+    int p = where >> 8;
+    int i = where & 0xff;
+    Block[] page = blocks[p];
+    if ((page != null) && (page[i] != null)) {
+      return page[i];
+    }
+    if (entries[p] == null) {
+      entries[p] = new int[PagedMemory.PAGE_SIZE];
+    }
+    int backoff = (drops[p] != null) ? drops[p][i] : 0;
+    if (++entries[p][i] < (THRESHOLD << backoff)) {
+      return null;
+    }
+    entries[p][i] = 0;
+    return compile(where);
+  }
+
+  /**
+   * Drops every block that includes the byte at where. Returns true if there
+   * were any.
+   */
+  boolean invalidate(int where) {
+    long bit = 1L << where;
+    if ((codeBits[where >> 6] & bit) == 0) {
+      return false;
+    }
+    // Another block may still include this byte, but the bit only saves
+    // the search below, so it can be cleared anyway
+    codeBits[where >> 6] &= ~bit;
+    boolean dropped = false;
+    for (int back = 0; back < MAX_BYTES; back++) {
+      int start = (where - back) & 0xffff;
+      int[] page = lengths[start >> 8];
+      if ((page != null) && (page[start & 0xff] > back)) {
+        page[start & 0xff] = 0;
+        blocks[start >> 8][start & 0xff] = null;
+        if (drops[start >> 8] == null) {
+          drops[start >> 8] = new int[PagedMemory.PAGE_SIZE];
+        }
+        if (drops[start >> 8][start & 0xff] < MAX_BACKOFF) {
+          drops[start >> 8][start & 0xff]++;
+        }
+        invalidated++;
+        dropped = true;
+      }
+    }
+    return dropped;
+  }
+
+  /** Drops every block and entry count. */
+  void flush() {
+    Arrays.fill(entries, null);
+    Arrays.fill(drops, null);
+    Arrays.fill(blocks, null);
+    Arrays.fill(lengths, null);
+    Arrays.fill(codeBits, 0);
+  }
+
+  // Reads the instruction at where into op, value and size, or returns
+  // false if any of its bytes is not in plain memory
+  private boolean decode(int where, int n, int[] op, int[] value) {
+    int code = cpu.readCode(where);
+    if (code < 0) {
+      return false;
+    }
+    int v = 0;
+    for (int i = M6502.LENGTH[code] - 1; i > 0; i--) {
+      int b = cpu.readCode((where + i) & 0xffff);
+      if (b < 0) {
+        return false;
+      }
+      v = (v << 8) | b;
+    }
+    op[n] = code;
+    value[n] = v;
+    return true;
+  }
+
+  private Block compile(int start) {
+    int[] op = new int[MAX_INSTRUCTIONS];
+    int[] value = new int[MAX_INSTRUCTIONS];
+    int count = 0;
+    int length = 0;
+    while (
+      (count < MAX_INSTRUCTIONS) &&
+      decode((start + length) & 0xffff, count, op, value)
+    ) {
+      length += M6502.LENGTH[op[count]];
+      if (endsBlock(op[count++])) {
+        break;
+      }
+    }
+    if (count == 0) {
+      return null;
+    }
+
+    ClassWriter out = new ClassWriter();
+    int where = start;
+    for (int n = 0; n < count; n++) {
+      where = (where + M6502.LENGTH[op[n]]) & 0xffff;
+      out.instruction(op[n], value[n], where, n == count - 1);
+    }
+    Block block;
+    try {
+      block =
+        (Block) lookup
+          .defineHiddenClass(
+            out.toByteArray(),
+            true,
+            MethodHandles.Lookup.ClassOption.NESTMATE
+          )
+          .lookupClass()
+          .getDeclaredConstructor()
+          .newInstance();
+    } catch (ReflectiveOperationException e) {
+      throw new IllegalStateException("Cannot load compiled block", e);
+    }
+
+    int p = start >> 8;
+    if (blocks[p] == null) {
+      blocks[p] = new Block[PagedMemory.PAGE_SIZE];
+      lengths[p] = new int[PagedMemory.PAGE_SIZE];
+    }
+    blocks[p][start & 0xff] = block;
+    lengths[p][start & 0xff] = length;
+    for (int i = 0; i < length; i++) {
+      int at = (start + i) & 0xffff;
+      codeBits[at >> 6] |= 1L << at;
+      cpu.markCodePage(at >> 8);
+    }
+    compiled++;
+    return block;
+  }
+
+  /**
+   * Writes the class file for one block: a final class implementing Block,
+   * with a public constructor and run(). It supports only what blocks need.
+   */
+  private static final class ClassWriter {
+
+    private static final int ALOAD_0 = 0x2a;
+    private static final int ALOAD_1 = 0x2b;
+    private static final int BIPUSH = 0x10;
+    private static final int SIPUSH = 0x11;
+    private static final int LDC_W = 0x13;
+    private static final int DUP = 0x59;
+    private static final int LADD = 0x61;
+    private static final int I2L = 0x85;
+    private static final int IFEQ = 0x99;
+    private static final int RETURN = 0xb1;
+    private static final int GETFIELD = 0xb4;
+    private static final int PUTFIELD = 0xb5;
+    private static final int INVOKEVIRTUAL = 0xb6;
+    private static final int INVOKESPECIAL = 0xb7;
+
+    private static final int CONSTANT_UTF8 = 1;
+    private static final int CONSTANT_INTEGER = 3;
+    private static final int CONSTANT_CLASS = 7;
+    private static final int CONSTANT_FIELDREF = 9;
+    private static final int CONSTANT_METHODREF = 10;
+    private static final int CONSTANT_NAME_AND_TYPE = 12;
+
+    private static final String CPU = "a1em/M6502";
+
+    private final ByteArrayOutputStream pool = new ByteArrayOutputStream();
+    private final DataOutputStream poolOut = new DataOutputStream(pool);
+    private final Map<String, Integer> constants = new HashMap<>();
+    private int poolCount = 1;
+
+    private byte[] code = new byte[1024];
+    private int codeSize;
+    // StackMapTable entries for the branch targets
+    private final ByteArrayOutputStream frames = new ByteArrayOutputStream();
+    private int frameCount;
+    private int lastFrame = -1;
+
+    // Returns the index of a constant, adding it with the given tag and
+    // contents if it is new
+    private int constant(String key, int tag, Object... contents) {
+      Integer index = constants.get(key);
+      if (index != null) {
+        return index;
+      }
+      try {
+        poolOut.writeByte(tag);
+        for (Object item : contents) {
+          if (item instanceof String) {
+            poolOut.writeUTF((String) item);
+          } else if (tag == CONSTANT_INTEGER) {
+            poolOut.writeInt((Integer) item);
+          } else {
+            poolOut.writeShort((Integer) item);
+          }
+        }
+      } catch (IOException e) {
+        throw new IllegalStateException(e);
+      }
+      constants.put(key, poolCount);
+      return poolCount++;
+    }
+
+    private int utf8(String s) {
+      return constant("utf8 " + s, CONSTANT_UTF8, s);
+    }
+
+    private int classRef(String name) {
+      return constant("class " + name, CONSTANT_CLASS, utf8(name));
+    }
+
+    private int member(int tag, String owner, String name, String type) {
+      int nameAndType = constant(
+        "nameAndType " + name + type,
+        CONSTANT_NAME_AND_TYPE,
+        utf8(name),
+        utf8(type)
+      );
+      return constant(
+        tag + " " + owner + "." + name + type,
+        tag,
+        classRef(owner),
+        nameAndType
+      );
+    }
+
+    private int field(String name, String type) {
+      return member(CONSTANT_FIELDREF, CPU, name, type);
+    }
+
+    private int method(String owner, String name, String type) {
+      return member(CONSTANT_METHODREF, owner, name, type);
+    }
+
+    private void emit(int b) {
+      if (codeSize == code.length) {
+        code = Arrays.copyOf(code, codeSize * 2);
+      }
+      code[codeSize++] = (byte) b;
+    }
+
+    private void emit(int opcode, int operand) {
+      emit(opcode);
+      emit(operand >> 8);
+      emit(operand);
+    }
+
+    private void pushInt(int value) {
+      if (value < 128) {
+        emit(BIPUSH);
+        emit(value);
+      } else if (value < 32768) {
+        emit(SIPUSH, value);
+      } else {
+        emit(LDC_W, constant("int " + value, CONSTANT_INTEGER, value));
+      }
+    }
+
+    private void setPC(int value) {
+      emit(ALOAD_1);
+      pushInt(value);
+      emit(PUTFIELD, field("pc", "I"));
+    }
+
+    /**
+     * Adds one instruction: sets the operand, adds the base cycles and calls
+     * the handler. The last one sets the PC to next first, since the handler
+     * may use it, and returns. Any other returns early if its handler wrote
+     * over compiled code, with the PC set to next.
+     */
+    void instruction(int op, int value, int next, boolean last) {
+      if (M6502.LENGTH[op] > 1) {
+        emit(ALOAD_1);
+        pushInt(value);
+        emit(PUTFIELD, field("operand", "I"));
+      }
+      emit(ALOAD_1);
+      emit(DUP);
+      emit(GETFIELD, field("cycles", "J"));
+      pushInt(M6502.CYCLES[op]);
+      emit(I2L);
+      emit(LADD);
+      emit(PUTFIELD, field("cycles", "J"));
+      if (last) {
+        setPC(next);
+      }
+      emit(ALOAD_1);
+      String handler = HANDLERS[op];
+      if (handler.startsWith("do")) {
+        pushInt(IMPLIED_MODE);
+        emit(INVOKEVIRTUAL, method(CPU, handler, "(I)V"));
+      } else {
+        emit(INVOKEVIRTUAL, method(CPU, handler, "()V"));
+      }
+      if (last) {
+        emit(RETURN);
+        return;
+      }
+      emit(ALOAD_1);
+      emit(GETFIELD, field("codeChanged", "Z"));
+      int branch = codeSize;
+      emit(IFEQ, 0);
+      setPC(next);
+      emit(RETURN);
+      int offset = codeSize - branch;
+      code[branch + 1] = (byte) (offset >> 8);
+      code[branch + 2] = (byte) offset;
+      frame(codeSize);
+    }
+
+    // Adds a frame for a branch target. The locals and stack are always
+    // the same as on entry, so each is a same_frame_extended.
+    private void frame(int offset) {
+      int delta = (lastFrame < 0) ? offset : offset - lastFrame - 1;
+      frames.write(251);
+      frames.write(delta >> 8);
+      frames.write(delta);
+      frameCount++;
+      lastFrame = offset;
+    }
+
+    byte[] toByteArray() {
+      int thisClass = classRef("a1em/CompiledBlock");
+      int superClass = classRef("java/lang/Object");
+      int blockInterface = classRef("a1em/BlockCompiler$Block");
+      int init = utf8("<init>");
+      int noArgs = utf8("()V");
+      int superInit = method("java/lang/Object", "<init>", "()V");
+      int run = utf8("run");
+      int runType = utf8("(La1em/M6502;)V");
+      int codeName = utf8("Code");
+      int stackMapName = utf8("StackMapTable");
+
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      DataOutputStream out = new DataOutputStream(bytes);
+      try {
+        out.writeInt(0xcafebabe);
+        out.writeShort(0);
+        out.writeShort(55);
+        out.writeShort(poolCount);
+        pool.writeTo(out);
+        out.writeShort(0x0030); // ACC_FINAL | ACC_SUPER
+        out.writeShort(thisClass);
+        out.writeShort(superClass);
+        out.writeShort(1);
+        out.writeShort(blockInterface);
+        out.writeShort(0);
+        out.writeShort(2);
+
+        // public <init>() { super(); }
+        out.writeShort(0x0001);
+        out.writeShort(init);
+        out.writeShort(noArgs);
+        out.writeShort(1);
+        out.writeShort(codeName);
+        out.writeInt(12 + 5);
+        out.writeShort(1);
+        out.writeShort(1);
+        out.writeInt(5);
+        out.writeByte(ALOAD_0);
+        out.writeByte(INVOKESPECIAL);
+        out.writeShort(superInit);
+        out.writeByte(RETURN);
+        out.writeShort(0);
+        out.writeShort(0);
+
+        // public void run(M6502 cpu)
+        int stackMapSize = (frameCount > 0) ? 6 + 2 + frames.size() : 0;
+        out.writeShort(0x0001);
+        out.writeShort(run);
+        out.writeShort(runType);
+        out.writeShort(1);
+        out.writeShort(codeName);
+        out.writeInt(12 + codeSize + stackMapSize);
+        out.writeShort(6);
+        out.writeShort(2);
+        out.writeInt(codeSize);
+        out.write(code, 0, codeSize);
+        out.writeShort(0);
+        if (frameCount > 0) {
+          out.writeShort(1);
+          out.writeShort(stackMapName);
+          out.writeInt(2 + frames.size());
+          out.writeShort(frameCount);
+          frames.writeTo(out);
+        } else {
+          out.writeShort(0);
+        }
+        out.writeShort(0);
+      } catch (IOException e) {
+        throw new IllegalStateException(e);
+      }
+      return bytes.toByteArray();
+    }
+  }
+}
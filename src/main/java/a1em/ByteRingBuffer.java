@@ -0,0 +1,166 @@
+package a1em;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A bounded queue of bytes for one producer thread and one consumer thread,
+ * such as a keyboard and the CPU reading it. Neither side locks or
+ * allocates. The producer chooses what happens when it is full: offer()
+ * fails, and put() waits for the consumer to take a byte.
+ *
+ * <p>Each side owns one index and only publishes it with release semantics;
+ * each keeps a cached copy of the other side's index, so it only reads the
+ * shared one when the cache says the buffer is full or empty.
+ */
+final class ByteRingBuffer {
+
+  private static final VarHandle HEAD;
+  private static final VarHandle TAIL;
+
+  static {
+    try {
+      MethodHandles.Lookup lookup = MethodHandles.lookup();
+      HEAD = lookup.findVarHandle(ByteRingBuffer.class, "head", long.class);
+      TAIL = lookup.findVarHandle(ByteRingBuffer.class, "tail", long.class);
+    } catch (ReflectiveOperationException e) {
+      throw new ExceptionInInitializerError(e);
+    }
+  }
+
+  private final byte[] buffer;
+  private final int mask;
+  // Bytes taken so far, written by the consumer
+  private long head;
+  // Bytes added so far, written by the producer
+  private long tail;
+  // The producer's last view of head, and the consumer's of tail
+  private long producerHead;
+  private long consumerTail;
+  // The producer, while it is parked in put()
+  private volatile Thread waiting;
+
+  /** Creates a buffer for capacity bytes, rounded up to a power of two. */
+  ByteRingBuffer(int capacity) {
+    int size = Integer.highestOneBit(Math.max(1, capacity - 1)) << 1;
+    buffer = new byte[size];
+    mask = size - 1;
+  }
+
+  int capacity() {
+    return buffer.length;
+  }
+
+  /** Adds a byte if there is room. Called by the producer. */
+  boolean offer(int b) {
+    long t = tail;
+    if (t - producerHead == buffer.length) {
+      producerHead = (long) HEAD.getAcquire(this);
+      if (t - producerHead == buffer.length) {
+        return false;
+      }
+    }
+    buffer[(int) t & mask] = (byte) b;
+    TAIL.setRelease(this, t + 1);
+    return true;
+  }
+
+  /**
+   * Adds a byte, waiting for room. Called by the producer, which must not
+   * also be the consumer.
+   */
+  void put(int b) throws InterruptedException {
+    while (!offer(b)) {
+      waiting = Thread.currentThread();
+      // Check again, in case the consumer made room before it could see
+      // there was a thread to wake
+      if (remaining() == 0) {
+        LockSupport.park(this);
+      }
+      waiting = null;
+      if (Thread.interrupted()) {
+        throw new InterruptedException();
+      }
+    }
+  }
+
+  /** Returns how many bytes there is room for. Called by the producer. */
+  int remaining() {
+    producerHead = (long) HEAD.getVolatile(this);
+    return buffer.length - (int) (tail - producerHead);
+  }
+
+  /** Takes the oldest byte, or -1 if there is none. Called by the consumer. */
+  int poll() {
+    long h = head;
+    if (h == consumerTail) {
+      consumerTail = (long) TAIL.getAcquire(this);
+      if (h == consumerTail) {
+        return -1;
+      }
+    }
+    int b = buffer[(int) h & mask] & 0xff;
+    // Volatile rather than release, so a producer that is about to park sees
+    // the room, or this sees the producer
+    HEAD.setVolatile(this, h + 1);
+    Thread producer = waiting;
+    if (producer != null) {
+      LockSupport.unpark(producer);
+    }
+    return b;
+  }
+
+  /**
+   * Moves as many bytes as fit into out, oldest first, and returns how many
+   * that was. Called by the consumer.
+   */
+  int drainTo(ByteBuffer out) {
+    long h = head;
+    consumerTail = (long) TAIL.getAcquire(this);
+    int n = (int) Math.min(consumerTail - h, out.remaining());
+    if (n == 0) {
+      return 0;
+    }
+    int from = (int) h & mask;
+    int first = Math.min(n, buffer.length - from);
+    out.put(buffer, from, first);
+    out.put(buffer, 0, n - first);
+    HEAD.setVolatile(this, h + n);
+    Thread producer = waiting;
+    if (producer != null) {
+      LockSupport.unpark(producer);
+    }
+    return n;
+  }
+
+  /** May be called from any thread. */
+  boolean isEmpty() {
+    return (long) HEAD.getAcquire(this) == (long) TAIL.getAcquire(this);
+  }
+
+  /** Returns the bytes waiting, oldest first. Called by the consumer. */
+  byte[] toArray() {
+    long h = head;
+    long t = (long) TAIL.getAcquire(this);
+    byte[] bytes = new byte[(int) (t - h)];
+    for (int i = 0; i < bytes.length; i++) {
+      bytes[i] = buffer[(int) (h + i) & mask];
+    }
+    return bytes;
+  }
+
+  /**
+   * Drops every byte waiting. Called by the consumer; bytes the producer
+   * adds meanwhile may or may not be dropped.
+   */
+  void clear() {
+    consumerTail = (long) TAIL.getAcquire(this);
+    HEAD.setVolatile(this, consumerTail);
+    Thread producer = waiting;
+    if (producer != null) {
+      LockSupport.unpark(producer);
+    }
+  }
+}
@@ -0,0 +1,257 @@
+package a1em;
+
+/**
+ * Compiles a breakpoint condition into a tree of lambdas, so testing it
+ * costs a few calls rather than parsing. A condition is an expression in
+ * the style of C over the registers A, X, Y, SP, PC and P, the flags N, V,
+ * B, D, I, Z and C (each 0 or 1), and bytes of memory, written [address].
+ * Numbers are decimal, or hex with a leading $ or 0x. For example:
+ *
+ * <pre>
+ *   A == $41 &amp;&amp; [$24] != 0
+ *   X &gt;= 3 || (P &amp; $80)
+ * </pre>
+ *
+ * <p>The operators, from lowest to highest precedence, are ||, &amp;&amp;,
+ * the comparisons == != &lt; &lt;= &gt; &gt;=, the bitwise | ^ &amp;, + and
+ * -, and the unary ! and -.
+ */
+final class ConditionParser {
+
+  // A compiled subexpression
+  private interface Expr {
+    int eval(M6502 cpu);
+  }
+
+  private final String text;
+  private int pos;
+
+  private ConditionParser(String text) {
+    this.text = text;
+  }
+
+  /** Compiles a condition, or throws IllegalArgumentException. */
+  static M6502.Condition parse(String text) {
+    ConditionParser parser = new ConditionParser(text);
+    Expr e = parser.or();
+    parser.skipSpaces();
+    if (parser.pos < text.length()) {
+      throw parser.error("Unexpected '" + text.charAt(parser.pos) + "'");
+    }
+    return cpu -> e.eval(cpu) != 0;
+  }
+
+  private IllegalArgumentException error(String message) {
+    return new IllegalArgumentException(
+      message + " at column " + (pos + 1) + " of condition: " + text
+    );
+  }
+
+  private void skipSpaces() {
+    while (
+      (pos < text.length()) && Character.isWhitespace(text.charAt(pos))
+    ) {
+      pos++;
+    }
+  }
+
+  // Consumes op if it comes next, but not if it is the start of a longer
+  // operator, such as & in &&
+  private boolean accept(String op) {
+    skipSpaces();
+    if (!text.startsWith(op, pos)) {
+      return false;
+    }
+    int end = pos + op.length();
+    if ((op.length() == 1) && (end < text.length())) {
+      char next = text.charAt(end);
+      boolean doubled = (next == op.charAt(0)) && ("&|".indexOf(next) >= 0);
+      if ((next == '=') || doubled) {
+        return false;
+      }
+    }
+    pos = end;
+    return true;
+  }
+
+  private Expr or() {
+    Expr left = and();
+    while (accept("||")) {
+      Expr l = left;
+      Expr r = and();
+      left = cpu -> ((l.eval(cpu) != 0) || (r.eval(cpu) != 0)) ? 1 : 0;
+    }
+    return left;
+  }
+
+  private Expr and() {
+    Expr left = comparison();
+    while (accept("&&")) {
+      Expr l = left;
+      Expr r = comparison();
+      left = cpu -> ((l.eval(cpu) != 0) && (r.eval(cpu) != 0)) ? 1 : 0;
+    }
+    return left;
+  }
+
+  private Expr comparison() {
+    Expr l = bitwise();
+    if (accept("==")) {
+      Expr r = bitwise();
+      return cpu -> (l.eval(cpu) == r.eval(cpu)) ? 1 : 0;
+    } else if (accept("!=")) {
+      Expr r = bitwise();
+      return cpu -> (l.eval(cpu) != r.eval(cpu)) ? 1 : 0;
+    } else if (accept("<=")) {
+      Expr r = bitwise();
+      return cpu -> (l.eval(cpu) <= r.eval(cpu)) ? 1 : 0;
+    } else if (accept(">=")) {
+      Expr r = bitwise();
+      return cpu -> (l.eval(cpu) >= r.eval(cpu)) ? 1 : 0;
+    } else if (accept("<")) {
+      Expr r = bitwise();
+      return cpu -> (l.eval(cpu) < r.eval(cpu)) ? 1 : 0;
+    } else if (accept(">")) {
+      Expr r = bitwise();
+      return cpu -> (l.eval(cpu) > r.eval(cpu)) ? 1 : 0;
+    }
+    return l;
+  }
+
+  private Expr bitwise() {
+    Expr left = sum();
+    while (true) {
+      Expr l = left;
+      if (accept("&")) {
+        Expr r = sum();
+        left = cpu -> l.eval(cpu) & r.eval(cpu);
+      } else if (accept("|")) {
+        Expr r = sum();
+        left = cpu -> l.eval(cpu) | r.eval(cpu);
+      } else if (accept("^")) {
+        Expr r = sum();
+        left = cpu -> l.eval(cpu) ^ r.eval(cpu);
+      } else {
+        return left;
+      }
+    }
+  }
+
+  private Expr sum() {
+    Expr left = unary();
+    while (true) {
+      Expr l = left;
+      if (accept("+")) {
+        Expr r = unary();
+        left = cpu -> l.eval(cpu) + r.eval(cpu);
+      } else if (accept("-")) {
+        Expr r = unary();
+        left = cpu -> l.eval(cpu) - r.eval(cpu);
+      } else {
+        return left;
+      }
+    }
+  }
+
+  private Expr unary() {
+    if (accept("!")) {
+      Expr e = unary();
+      return cpu -> (e.eval(cpu) == 0) ? 1 : 0;
+    } else if (accept("-")) {
+      Expr e = unary();
+      return cpu -> -e.eval(cpu);
+    }
+    return primary();
+  }
+
+  private Expr primary() {
+    skipSpaces();
+    if (accept("(")) {
+      Expr e = or();
+      expect(")");
+      return e;
+    }
+    if (accept("[")) {
+      Expr address = or();
+      expect("]");
+      return cpu -> cpu.peek(address.eval(cpu) & 0xffff);
+    }
+    if (accept("$")) {
+      return constant(number(16));
+    }
+    if (text.startsWith("0x", pos) || text.startsWith("0X", pos)) {
+      pos += 2;
+      return constant(number(16));
+    }
+    if ((pos < text.length()) && Character.isDigit(text.charAt(pos))) {
+      return constant(number(10));
+    }
+    int start = pos;
+    while ((pos < text.length()) && Character.isLetter(text.charAt(pos))) {
+      pos++;
+    }
+    String name = text.substring(start, pos).toUpperCase();
+    switch (name) {
+      case "A":
+        return cpu -> cpu.a;
+      case "X":
+        return cpu -> cpu.x;
+      case "Y":
+        return cpu -> cpu.y;
+      case "SP":
+      case "S":
+        return cpu -> cpu.getSP();
+      case "PC":
+        return cpu -> cpu.pc;
+      case "P":
+        return cpu -> cpu.getFlags();
+      case "N":
+        return flag(0x80);
+      case "V":
+        return flag(0x40);
+      case "B":
+        return flag(0x10);
+      case "D":
+        return flag(0x08);
+      case "I":
+        return flag(0x04);
+      case "Z":
+        return flag(0x02);
+      case "C":
+        return flag(0x01);
+    }
+    pos = start;
+    throw error(name.isEmpty() ? "Expected a value" : "Unknown name " + name);
+  }
+
+  private void expect(String op) {
+    if (!accept(op)) {
+      throw error("Expected '" + op + "'");
+    }
+  }
+
+  private int number(int radix) {
+    int start = pos;
+    while (
+      (pos < text.length()) && (Character.digit(text.charAt(pos), radix) >= 0)
+    ) {
+      pos++;
+    }
+    if (pos == start) {
+      throw error("Expected a number");
+    }
+    try {
+      return Integer.parseInt(text.substring(start, pos), radix);
+    } catch (NumberFormatException e) {
+      throw error("Number too large");
+    }
+  }
+
+  private static Expr constant(int value) {
+    return cpu -> value;
+  }
+
+  private static Expr flag(int mask) {
+    return cpu -> ((cpu.getFlags() & mask) != 0) ? 1 : 0;
+  }
+}
@@ -0,0 +1,65 @@
+package a1em;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Collects characters written to the Apple 1 display and passes them on to
+ * an OutputStream in batches. The front end flushes when the buffer fills,
+ * when the program goes idle waiting for a key, and from flushIfDue() at
+ * time slice boundaries, so a character never waits more than about one
+ * slice.
+ */
+public class DisplayOutput {
+
+  private final OutputStream out;
+  private final int size;
+  private final long maxDelayNanos;
+  // Allocated on first use, since many machines never print anything
+  private byte[] buffer;
+  private int count;
+  private long oldestPending;
+
+  public DisplayOutput(OutputStream out, int size, long maxDelayNanos) {
+    this.out = out;
+    this.size = size;
+    this.maxDelayNanos = maxDelayNanos;
+  }
+
+  public void write(int b) {
+    if (buffer == null) {
+      buffer = new byte[size];
+    }
+    if (count == 0) {
+      oldestPending = System.nanoTime();
+    } else if (count == size) {
+      flush();
+      oldestPending = System.nanoTime();
+    }
+    buffer[count++] = (byte) b;
+  }
+
+  public boolean hasPending() {
+    return count > 0;
+  }
+
+  /** Flushes if the oldest buffered character has waited too long. */
+  public void flushIfDue() {
+    if ((count > 0) && (System.nanoTime() - oldestPending >= maxDelayNanos)) {
+      flush();
+    }
+  }
+
+  public void flush() {
+    if (count == 0) {
+      return;
+    }
+    try {
+      out.write(buffer, 0, count);
+      out.flush();
+    } catch (IOException ignored) {
+      // Like System.out, a broken display just loses output
+    }
+    count = 0;
+  }
+}
@@ -0,0 +1,61 @@
+package a1em;
+
+import java.util.PriorityQueue;
+
+/**
+ * Events scheduled on a CPU, ordered by the cycle they are due. Events due
+ * on the same cycle fire in the order they were scheduled.
+ */
+final class EventQueue {
+
+  private static final class Entry implements Comparable<Entry> {
+
+    final long due;
+    final long order;
+    final M6502.Event event;
+
+    Entry(long due, long order, M6502.Event event) {
+      this.due = due;
+      this.order = order;
+      this.event = event;
+    }
+
+    public int compareTo(Entry other) {
+      int c = Long.compare(due, other.due);
+      return (c != 0) ? c : Long.compare(order, other.order);
+    }
+  }
+
+  private final PriorityQueue<Entry> queue = new PriorityQueue<>();
+  private long scheduled;
+
+  void add(long due, M6502.Event event) {
+    queue.add(new Entry(due, scheduled++, event));
+  }
+
+  boolean remove(M6502.Event event) {
+    return queue.removeIf(e -> e.event == event);
+  }
+
+  void clear() {
+    queue.clear();
+  }
+
+  /** Returns the cycle the next event is due, or Long.MAX_VALUE if none. */
+  long nextDue() {
+    Entry next = queue.peek();
+    return (next == null) ? Long.MAX_VALUE : next.due;
+  }
+
+  /**
+   * Fires every event that is due by the CPU's cycle count, including any
+   * that those events schedule to be due by then.
+   */
+  void fireDue(M6502 cpu) {
+    Entry next;
+    while (((next = queue.peek()) != null) && (next.due <= cpu.cycles)) {
+      queue.poll();
+      next.event.fire(next.due);
+    }
+  }
+}
@@ -8,6 +8,12 @@ details. */
 
 package a1em;
 
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.invoke.MethodHandles;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
 public class M6502 {
 
   public static final int cFlag = 0x01;
@@ -50,14 +56,108 @@ public class M6502 {
     public void write(int where, int what);
   }
 
+  /** Why run() or runUntil() returned. */
+  public enum StopReason {
+    /** The cycle budget ran out. */
+    BUDGET,
+    /** The PC reached the address given to runUntil(), or a breakpoint. */
+    BREAKPOINT,
+    /** An illegal opcode halted the CPU. */
+    HALT,
+    /** A jump or branch to itself, which would loop forever. */
+    JUMP_TO_SELF,
+    /** A device is waiting for I/O, and called requestStop(). */
+    IO_WAIT,
+    /** An instruction accessed an address being watched. */
+    WATCHPOINT,
+  }
+
+  /** A test of the CPU's state, for a conditional breakpoint. */
+  public interface Condition {
+    boolean test(M6502 cpu);
+  }
+
+  /**
+   * A callback scheduled with schedule() to run when the cycle count
+   * reaches a given cycle.
+   */
+  public interface Event {
+    /**
+     * Called from run() or runUntil() between instructions, once the cycle
+     * count has reached due. Can schedule further events, call setIRQ(), or
+     * call requestStop().
+     */
+    void fire(long due);
+  }
+
   public int a;
   public int x;
   public int y;
   public int pc;
   private int sp;
   private int flags;
+  // N and Z are kept as the result they were last set from, and C as 0 or
+  // 1, so instructions set them with a store rather than by updating flags.
+  // The N, Z and C bits of flags are stale; getFlags() puts them together.
+  private int nResult;
+  private int zResult;
+  private int carry;
   private Memory mem;
+  // Pages that can be accessed directly, shared with a PagedMemory. A null
+  // entry sends the access through mem. For any other Memory, all entries
+  // are null.
+  private final byte[][] readMap;
+  private final byte[][] writeMap;
   public boolean halt;
+  public long cycles;
+  private int crossed;
+  // Operand of the instruction being run by step(), a byte or a word,
+  // decoded before its handler is called
+  private int operand;
+
+  // Decoded instructions by address, allocated a page at a time, or null
+  // while the decode cache is off. An entry packs the opcode, length and
+  // operand, and is 0 if nothing has been decoded there.
+  private int[][] decoded;
+  // Pages that hold any byte of a decoded instruction or compiled block
+  private boolean[] codePages = NO_CODE_PAGES;
+  private long decodeHits;
+  private long decodeMisses;
+  private long decodeInvalidations;
+  // Compiles hot blocks for runBlock(), or null if that is off
+  private BlockCompiler compiler;
+  // Set when a write drops compiled blocks or a stop is requested, so the
+  // running block returns
+  private boolean codeChanged;
+  // Makes run() return after the current instruction, or null
+  private StopReason stopReason;
+  // Counts instructions run by run() and runUntil(), or null if that is off
+  private Profiler profiler;
+  // Records instructions run by run() and runUntil(), or null if that is off
+  private Tracer tracer;
+  // Breakpoint conditions by address, or null if there are no breakpoints
+  private Condition[] breakpoints;
+  private int breakpointCount;
+  // WATCH_READ and WATCH_WRITE by address, or null if nothing is watched.
+  // Watched pages are taken out of readMap and writeMap, so only the slow
+  // path of read() and write() checks them.
+  private byte[] watches;
+  private final int[] pageWatches = new int[PagedMemory.PAGES];
+  private int watchAddress = -1;
+  private boolean watchWasWrite;
+
+  private static final Condition ALWAYS = cpu -> true;
+  private static final int WATCH_READ = 1;
+  private static final int WATCH_WRITE = 2;
+  private final EventQueue events = new EventQueue();
+  // run() checks for events and interrupts when cycles reaches this: the
+  // end of its budget, the next event, or sooner if an interrupt is waiting
+  private long batchEnd;
+  // The IRQ line, held by a device until the interrupt has been handled
+  private boolean irq;
+
+  private static final boolean[] NO_CODE_PAGES =
+    new boolean[PagedMemory.PAGES];
 
   public boolean bFlagSet() {
     return (flags & bFlag) != 0;
@@ -67,45 +167,71 @@ public class M6502 {
     return (flags & dFlag) != 0;
   }
 
+  public int getFlags() {
+    return (
+      (flags & nnFlag & nzFlag & ncFlag) |
+      (nResult & nFlag) |
+      ((zResult == 0) ? zFlag : 0) |
+      carry
+    );
+  }
+
+  public int getSP() {
+    return sp;
+  }
+
+  public void setFlags(int flags) {
+    this.flags = flags & 0xff;
+    nResult = flags & nFlag;
+    zResult = ~flags & zFlag;
+    carry = flags & cFlag;
+  }
+
+  public void setSP(int sp) {
+    this.sp = sp & 0xff;
+  }
+
+  /** Copies the registers, halt state and cycle count of another CPU. */
+  public void copyState(M6502 other) {
+    a = other.a;
+    x = other.x;
+    y = other.y;
+    pc = other.pc;
+    sp = other.sp;
+    flags = other.flags;
+    nResult = other.nResult;
+    zResult = other.zResult;
+    carry = other.carry;
+    halt = other.halt;
+    cycles = other.cycles;
+  }
+
   public M6502(Memory m, int startPC) {
     mem = m;
+    if (m instanceof PagedMemory) {
+      readMap = ((PagedMemory) m).readMap;
+      writeMap = ((PagedMemory) m).writeMap;
+    } else {
+      readMap = new byte[PagedMemory.PAGES][];
+      writeMap = new byte[PagedMemory.PAGES][];
+    }
     halt = false;
     pc = startPC;
     sp = 0xff;
-    flags = rFlag;
+    setFlags(rFlag);
   }
 
   private int complement(int x) {
     return (x < 128) ? x : -1 * ((x ^ 0xff) + 1);
   }
 
-  private int BINtoBCD(int v) {
-    return (((v / 10) % 10) << 4) | (v % 10);
-  }
-
-  private int BCDtoBIN(int v) {
-    return ((v >> 4) * 10) + (v & 0xf);
-  }
-
   public void setNZ(int v) {
-    if (v == 0) {
-      flags |= zFlag;
-    } else {
-      flags &= nzFlag;
-    }
-    if ((v & 0x80) != 0) {
-      flags |= nFlag;
-    } else {
-      flags &= nnFlag;
-    }
+    nResult = v;
+    zResult = v;
   }
 
   public void setC(boolean v) {
-    if (v) {
-      flags |= cFlag;
-    } else {
-      flags &= ncFlag;
-    }
+    carry = v ? 1 : 0;
   }
 
   private void setV(boolean v) {
@@ -141,23 +267,304 @@ public class M6502 {
   }
 
   private void setN(boolean v) {
-    if (v) {
-      flags |= nFlag;
+    nResult = v ? nFlag : 0;
+  }
+
+  private void setZ(boolean v) {
+    zResult = v ? 0 : 1;
+  }
+
+  int read(int where) {
+    byte[] page = readMap[where >> 8];
+    if (page != null) {
+      return page[where & 0xff] & 0xff;
+    }
+    if ((watches != null) && ((watches[where] & WATCH_READ) != 0)) {
+      watchHit(where, false);
+    }
+    return mem.read(where);
+  }
+
+  private void write(int where, int what) {
+    if (codePages[where >> 8]) {
+      invalidate(where);
+    }
+    byte[] page = writeMap[where >> 8];
+    if (page != null) {
+      page[where & 0xff] = (byte) what;
     } else {
-      flags &= nnFlag;
+      if ((watches != null) && ((watches[where] & WATCH_WRITE) != 0)) {
+        watchHit(where, true);
+      }
+      mem.write(where, what);
     }
   }
 
-  private void setZ(boolean v) {
-    if (v) {
-      flags |= zFlag;
+  // Reads memory without side effects, bypassing devices
+  int peek(int where) {
+    byte[] page = readMap[where >> 8];
+    if (page != null) {
+      return page[where & 0xff] & 0xff;
+    }
+    if (mem instanceof PagedMemory) {
+      return ((PagedMemory) mem).peek(where);
+    }
+    return mem.read(where);
+  }
+
+  private int peekWord(int where) {
+    return peek(where) | (peek((where + 1) & 0xffff) << 8);
+  }
+
+  private void watchHit(int where, boolean write) {
+    watchAddress = where;
+    watchWasWrite = write;
+    stopReason = StopReason.WATCHPOINT;
+  }
+
+  /**
+   * Makes run() and runUntil() stop with BREAKPOINT before running the
+   * instruction at where. While any breakpoint is set, they run one
+   * instruction at a time, as with a profiler.
+   */
+  public void addBreakpoint(int where) {
+    addBreakpoint(where, ALWAYS);
+  }
+
+  /** Adds a breakpoint that only stops when condition is true there. */
+  public void addBreakpoint(int where, Condition condition) {
+    if (breakpoints == null) {
+      breakpoints = new Condition[PagedMemory.SIZE];
+    }
+    if (breakpoints[where] == null) {
+      breakpointCount++;
+    }
+    breakpoints[where] = condition;
+  }
+
+  /**
+   * Adds a breakpoint with a condition such as "A == $41 && [$24] != 0",
+   * compiled by ConditionParser. Throws IllegalArgumentException if the
+   * condition is not valid.
+   */
+  public void addBreakpoint(int where, String condition) {
+    addBreakpoint(where, ConditionParser.parse(condition));
+  }
+
+  public void removeBreakpoint(int where) {
+    if ((breakpoints != null) && (breakpoints[where] != null)) {
+      breakpoints[where] = null;
+      if (--breakpointCount == 0) {
+        breakpoints = null;
+      }
+    }
+  }
+
+  /**
+   * Makes run() and runUntil() stop with WATCHPOINT after an instruction
+   * reads (if reads is true) or writes (if writes is true) where. Fetching
+   * an instruction counts as reading it. With neither, stops watching it.
+   * Accesses to other pages cost nothing extra; accesses to a watched page
+   * go through the slow path, and blocks are not compiled or run.
+   */
+  public void watch(int where, boolean reads, boolean writes) {
+    if (watches == null) {
+      watches = new byte[PagedMemory.SIZE];
+    }
+    int page = where >> 8;
+    boolean watched = watches[where] != 0;
+    watches[where] =
+      (byte) ((reads ? WATCH_READ : 0) | (writes ? WATCH_WRITE : 0));
+    if (!watched && (watches[where] != 0)) {
+      if (pageWatches[page]++ == 0) {
+        setWatched(page, true);
+      }
+    } else if (watched && (watches[where] == 0)) {
+      if (--pageWatches[page] == 0) {
+        setWatched(page, false);
+      }
+    }
+  }
+
+  private void setWatched(int page, boolean watched) {
+    if (mem instanceof PagedMemory) {
+      ((PagedMemory) mem).setWatched(page, watched);
+    }
+    if (!watched && Arrays.stream(pageWatches).allMatch(n -> n == 0)) {
+      watches = null;
+    }
+    // Cached instructions were read through the fast path
+    flushDecodeCache();
+  }
+
+  /** Returns the address of the last watchpoint hit, or -1 if none. */
+  public int getWatchAddress() {
+    return watchAddress;
+  }
+
+  /** Returns true if the last watchpoint hit was a write. */
+  public boolean watchWasWrite() {
+    return watchWasWrite;
+  }
+
+  /**
+   * Turns the decode cache used by step() on or off. With it on, each
+   * instruction is decoded once and its opcode, operand and length are kept
+   * by address, so running it again fetches nothing. Writes by the CPU drop
+   * the instructions they overlap, but memory that is changed some other
+   * way, such as by loading a program, needs flushDecodeCache().
+   */
+  public void setDecodeCache(boolean enabled) {
+    decoded = enabled ? new int[PagedMemory.PAGES][] : null;
+    decodeHits = 0;
+    decodeMisses = 0;
+    decodeInvalidations = 0;
+    resetCodePages();
+  }
+
+  public boolean usesDecodeCache() {
+    return decoded != null;
+  }
+
+  /**
+   * Turns compilation of hot basic blocks for runBlock() on or off. Like the
+   * decode cache, compiled blocks are dropped when the CPU writes to them,
+   * and need flushDecodeCache() when memory is changed some other way.
+   */
+  public void setBlockCompilation(boolean enabled) {
+    compiler =
+      enabled ? new BlockCompiler(this, MethodHandles.lookup()) : null;
+    resetCodePages();
+  }
+
+  /**
+   * Makes run() and runUntil() count every instruction in profiler, or stops
+   * profiling if it is null. While profiling, blocks are not compiled or
+   * run, and step() itself never counts.
+   */
+  public void setProfiler(Profiler profiler) {
+    this.profiler = profiler;
+  }
+
+  public Profiler getProfiler() {
+    return profiler;
+  }
+
+  /**
+   * Makes run() and runUntil() record every instruction in tracer, or stops
+   * tracing if it is null. Like profiling, this turns off compiled blocks.
+   */
+  public void setTracer(Tracer tracer) {
+    this.tracer = tracer;
+  }
+
+  public Tracer getTracer() {
+    return tracer;
+  }
+
+  public boolean usesBlockCompilation() {
+    return compiler != null;
+  }
+
+  public long getBlocksCompiled() {
+    return (compiler != null) ? compiler.getCompiled() : 0;
+  }
+
+  public long getBlocksInvalidated() {
+    return (compiler != null) ? compiler.getInvalidated() : 0;
+  }
+
+  // Writes are only checked against codePages while some code is cached
+  private void resetCodePages() {
+    if ((decoded != null) || (compiler != null)) {
+      codePages = new boolean[PagedMemory.PAGES];
+      flushDecodeCache();
     } else {
-      flags &= nzFlag;
+      codePages = NO_CODE_PAGES;
+    }
+  }
+
+  /** Forgets every decoded instruction and compiled block. */
+  public void flushDecodeCache() {
+    if (decoded != null) {
+      Arrays.fill(decoded, null);
+    }
+    if (compiler != null) {
+      compiler.flush();
+    }
+    if (codePages != NO_CODE_PAGES) {
+      Arrays.fill(codePages, false);
+    }
+  }
+
+  // Returns the byte at where for BlockCompiler, or -1 if it is not in a
+  // page of plain memory
+  int readCode(int where) {
+    byte[] page = readMap[where >> 8];
+    return (page != null) ? page[where & 0xff] & 0xff : -1;
+  }
+
+  void markCodePage(int page) {
+    codePages[page] = true;
+  }
+
+  public long getDecodeHits() {
+    return decodeHits;
+  }
+
+  public long getDecodeMisses() {
+    return decodeMisses;
+  }
+
+  public long getDecodeInvalidations() {
+    return decodeInvalidations;
+  }
+
+  // Drops the decoded instructions and compiled blocks that include the
+  // byte at where. Decoded instructions start at most two bytes before it.
+  private void invalidate(int where) {
+    if (decoded != null) {
+      for (int i = 0; i < 3; i++) {
+        int at = (where - i) & 0xffff;
+        int[] page = decoded[at >> 8];
+        if ((page != null) && (((page[at & 0xff] >> 8) & 3) > i)) {
+          page[at & 0xff] = 0;
+          decodeInvalidations++;
+        }
+      }
+    }
+    if ((compiler != null) && compiler.invalidate(where)) {
+      codeChanged = true;
+    }
+  }
+
+  // Decodes the instruction at where. It is cached only if all of its bytes
+  // are in pages of plain memory, since a device may not read the same twice.
+  private int decode(int where) {
+    int op = read(where);
+    int length = LENGTH[op];
+    int value = 0;
+    if (length == 2) {
+      value = read((where + 1) & 0xffff);
+    } else if (length == 3) {
+      value = wordAt((where + 1) & 0xffff);
+    }
+    int entry = op | (length << 8) | (value << 10);
+    int first = where >> 8;
+    int last = ((where + length - 1) & 0xffff) >> 8;
+    if ((readMap[first] != null) && (readMap[last] != null)) {
+      if (decoded[first] == null) {
+        decoded[first] = new int[PagedMemory.PAGE_SIZE];
+      }
+      decoded[first][where & 0xff] = entry;
+      codePages[first] = true;
+      codePages[last] = true;
     }
+    return entry;
   }
 
   private void pushByte(int what) {
-    mem.write(sp + 256, what);
+    write(sp + 256, what);
     sp--;
     sp &= 0xff;
   }
@@ -170,7 +577,7 @@ public class M6502 {
   private int popByte() {
     sp++;
     sp &= 0xff;
-    return mem.read(sp + 256);
+    return read(sp + 256);
   }
 
   private int popWord() {
@@ -179,8 +586,9 @@ public class M6502 {
   }
 
   private int fetch() {
-    pc++;
-    return mem.read(pc - 1);
+    int v = read(pc);
+    pc = (pc + 1) & 0xffff;
+    return v;
   }
 
   private int fetchWord() {
@@ -189,12 +597,13 @@ public class M6502 {
   }
 
   private int wordAt(int where) {
-    int v = mem.read(where);
-    return v + mem.read(where + 1) * 256;
+    int v = read(where);
+    return v + read((where + 1) & 0xffff) * 256;
   }
 
   private int ea(int mode) {
     int v = -1;
+    crossed = 0;
 
     switch (mode) {
       case mIndirectX:
@@ -210,7 +619,9 @@ public class M6502 {
         v = fetchWord();
         break;
       case mIndirectY:
-        v = wordAt(fetch()) + y;
+        v = wordAt(fetch());
+        crossed = pageCrossed(v, v + y);
+        v = (v + y) & 0xffff;
         break;
       case mZeroPageX:
         v = 0xff & (fetch() + x);
@@ -219,19 +630,23 @@ public class M6502 {
         v = 0xff & (fetch() + y);
         break;
       case mAbsoluteX:
-        v = fetchWord() + x;
+        v = fetchWord();
+        crossed = pageCrossed(v, v + x);
+        v = (v + x) & 0xffff;
         break;
       case mAbsoluteY:
-        v = fetchWord() + y;
+        v = fetchWord();
+        crossed = pageCrossed(v, v + y);
+        v = (v + y) & 0xffff;
         break;
       case mRelative:
-        v = complement(fetch()) + pc;
+        v = (complement(fetch()) + pc) & 0xffff;
         break;
       case mIndirect:
         v = wordAt(fetchWord());
         break;
       case mAIndirectX:
-        v = wordAt(fetchWord() + x);
+        v = wordAt((fetchWord() + x) & 0xffff);
         break;
       case mIndirectZP:
         v = wordAt(fetch());
@@ -249,21 +664,142 @@ public class M6502 {
     if (mode == mImmediate) {
       return v;
     } else {
-      return mem.read(v);
+      cycles += crossed;
+      return read(v);
     }
   }
 
-  private void doADC(int mode) {
-    int m = cea(mode);
+  // Addressing mode helpers for the specialized core in step(). Each one
+  // returns the effective address for the decoded operand, so the mode is
+  // resolved at compile time rather than through ea().
+  private int zpX() {
+    return (operand + x) & 0xff;
+  }
+
+  private int zpY() {
+    return (operand + y) & 0xff;
+  }
 
+  private int absX() {
+    return (operand + x) & 0xffff;
+  }
+
+  private int absY() {
+    return (operand + y) & 0xffff;
+  }
+
+  // Indexed modes for instructions that only read, which take an extra
+  // cycle when indexing crosses a page boundary.
+  private int absXRead() {
+    int base = operand;
+    int v = (base + x) & 0xffff;
+    cycles += pageCrossed(base, v);
+    return v;
+  }
+
+  private int absYRead() {
+    int base = operand;
+    int v = (base + y) & 0xffff;
+    cycles += pageCrossed(base, v);
+    return v;
+  }
+
+  private int indYRead() {
+    int base = wordAt(operand);
+    int v = (base + y) & 0xffff;
+    cycles += pageCrossed(base, v);
+    return v;
+  }
+
+  private int indX() {
+    return wordAt((operand + x) & 0xff);
+  }
+
+  private int indY() {
+    return (wordAt(operand) + y) & 0xffff;
+  }
+
+  private int indZP() {
+    return wordAt(operand);
+  }
+
+  // Results of decimal mode ADC and SBC, indexed by carry << 16 | a << 8 |
+  // m. Each entry holds the result in the low byte, and N, V, Z and C in
+  // their places in the high byte.
+  private static final char[] DECIMAL_ADC = new char[0x20000];
+  private static final char[] DECIMAL_SBC = new char[0x20000];
+
+  // Fills the tables as an NMOS 6502 computes decimal mode, including for
+  // operands that are not valid BCD. N and V come from the sum before the
+  // high digit is adjusted, and Z from the binary sum. SBC sets all the
+  // flags as in binary mode and adjusts only the result.
+  static {
+    for (int i = 0; i < DECIMAL_ADC.length; i++) {
+      int c = i >> 16;
+      int a = (i >> 8) & 0xff;
+      int m = i & 0xff;
+
+      int lo = (a & 0x0f) + (m & 0x0f) + c;
+      if (lo >= 0x0a) {
+        lo = ((lo + 0x06) & 0x0f) + 0x10;
+      }
+      int r = (a & 0xf0) + (m & 0xf0) + lo;
+      int signed = (byte) (a & 0xf0) + (byte) (m & 0xf0) + lo;
+      int f = r & nFlag;
+      if ((signed < -128) || (signed > 127)) {
+        f |= vFlag;
+      }
+      if (((a + m + c) & 0xff) == 0) {
+        f |= zFlag;
+      }
+      if (r >= 0xa0) {
+        r += 0x60;
+      }
+      if (r >= 0x100) {
+        f |= cFlag;
+      }
+      DECIMAL_ADC[i] = (char) ((f << 8) | (r & 0xff));
+
+      int b = a - m - 1 + c;
+      f = b & nFlag;
+      if (((a ^ m) & (a ^ b) & 0x80) != 0) {
+        f |= vFlag;
+      }
+      if ((b & 0xff) == 0) {
+        f |= zFlag;
+      }
+      if (b >= 0) {
+        f |= cFlag;
+      }
+      lo = (a & 0x0f) - (m & 0x0f) + c - 1;
+      if (lo < 0) {
+        lo = ((lo - 0x06) & 0x0f) - 0x10;
+      }
+      r = (a & 0xf0) - (m & 0xf0) + lo;
+      if (r < 0) {
+        r -= 0x60;
+      }
+      DECIMAL_SBC[i] = (char) ((f << 8) | (r & 0xff));
+    }
+  }
+
+  // Sets A and the flags from an entry of DECIMAL_ADC or DECIMAL_SBC
+  private void decimal(int entry) {
+    int f = entry >> 8;
+    a = entry & 0xff;
+    nResult = f;
+    zResult = ~f & zFlag;
+    carry = f & cFlag;
+    setV((f & vFlag) != 0);
+  }
+
+  // ALU helpers shared by both cores.
+  private void adc(int m) {
     if (dFlagSet()) {
-      m = BCDtoBIN(a) + BCDtoBIN(m) + (flags & cFlag);
-      setC(m > 99);
-      a = BINtoBCD(m);
-      setNZ(a);
+      decimal(DECIMAL_ADC[(carry << 16) | (a << 8) | m]);
       return;
     }
-    int r = a + m + (flags & cFlag);
+    int r = a + m + carry;
 
     setC(r > 255);
     r &= 255;
@@ -272,6 +808,130 @@ public class M6502 {
     a = r;
   }
 
+  private void sbc(int m) {
+    if (dFlagSet()) {
+      decimal(DECIMAL_SBC[(carry << 16) | (a << 8) | m]);
+      return;
+    }
+    int r = a - m - 1 + carry;
+    setC((r & 0xff00) == 0);
+    r &= 0xff;
+    setNZ(r);
+    setV(((a & 0x80) != (m & 0x80)) && ((r & 0x80) != (a & 0x80)));
+    a = r;
+  }
+
+  private void compare(int r, int m) {
+    setC(r >= m);
+    setNZ(r - m);
+  }
+
+  private void bit(int v) {
+    setV((v & 0x40) != 0);
+    setN((v & 0x80) != 0);
+    setZ((a & v) == 0);
+  }
+
+  private int asl(int v) {
+    v <<= 1;
+    setC(v > 255);
+    v &= 0xff;
+    setNZ(v);
+    return v;
+  }
+
+  private int lsr(int v) {
+    setC((v & 1) != 0);
+    v >>= 1;
+    setNZ(v);
+    return v;
+  }
+
+  private int rol(int v) {
+    v = (v << 1) | carry;
+    setC(v > 255);
+    v &= 0xff;
+    setNZ(v);
+    return v;
+  }
+
+  private int ror(int v) {
+    if (carry != 0) {
+      v |= 0x100;
+    }
+    setC((v & 1) != 0);
+    v >>= 1;
+    setNZ(v);
+    return v;
+  }
+
+  private void aslMem(int w) {
+    write(w, asl(read(w)));
+  }
+
+  private void lsrMem(int w) {
+    write(w, lsr(read(w)));
+  }
+
+  private void rolMem(int w) {
+    write(w, rol(read(w)));
+  }
+
+  private void rorMem(int w) {
+    write(w, ror(read(w)));
+  }
+
+  private void incMem(int w) {
+    int v = (read(w) + 1) & 0xff;
+    write(w, v);
+    setNZ(v);
+  }
+
+  private void decMem(int w) {
+    int v = (read(w) - 1) & 0xff;
+    write(w, v);
+    setNZ(v);
+  }
+
+  private void tsb(int w) {
+    int v = read(w) | a;
+    write(w, v);
+    setZ(v == 0);
+  }
+
+  private void trb(int w) {
+    int v = read(w) & (0xff ^ a);
+    write(w, v);
+    setZ(v == 0);
+  }
+
+  // Returns 1 if the two addresses are on different pages, 0 otherwise
+  private static int pageCrossed(int from, int to) {
+    return ((from ^ to) >> 8) & 1;
+  }
+
+  // A taken branch costs one cycle, plus one more if it lands on another page
+  private void takeBranch(int dst) {
+    cycles += 1 + pageCrossed(pc, dst);
+    pc = dst;
+  }
+
+  private void branch(boolean taken) {
+    int dst = (complement(operand) + pc) & 0xffff;
+    if (taken) {
+      takeBranch(dst);
+    }
+  }
+
+  private void jsr(int where) {
+    pushWord(pc - 1);
+    pc = where;
+  }
+
+  private void doADC(int mode) {
+    adc(cea(mode));
+  }
+
   private void doAND(int mode) {
     a &= cea(mode);
     setNZ(a);
@@ -279,453 +939,1571 @@ public class M6502 {
 
   private void doASL(int mode) {
     if (mode == mAccum) {
-      a <<= 1;
-      if (a > 255) {
-        setC(true);
-        a &= 255;
-      } else {
-        setC(false);
-      }
-      setNZ(a);
+      a = asl(a);
     } else {
-      int w = ea(mode);
-      int v = mem.read(w);
-      v <<= 1;
-      if (v > 255) {
-        setC(true);
-        v &= 255;
-      } else {
-        setC(false);
-      }
-      mem.write(w, v);
-      setNZ(v);
+      aslMem(ea(mode));
     }
   }
 
   private void doBCC(int mode) {
     int dst = ea(mode);
-    if ((cFlag & flags) == 0) {
-      pc = dst;
+    if (carry == 0) {
+      takeBranch(dst);
     }
   }
 
   private void doBCS(int mode) {
     int dst = ea(mode);
-    if ((cFlag & flags) != 0) {
-      pc = dst;
+    if (carry != 0) {
+      takeBranch(dst);
     }
   }
 
   private void doBEQ(int mode) {
     int dst = ea(mode);
-    if ((zFlag & flags) != 0) {
-      pc = dst;
+    if (zResult == 0) {
+      takeBranch(dst);
     }
   }
 
   private void doBIT(int mode) {
-    int v = cea(mode);
-    setV((v & 0x40) != 0);
-    setN((v & 0x80) != 0);
-    setZ((a & v) == 0);
+    bit(cea(mode));
   }
 
   private void doBMI(int mode) {
     int dst = ea(mode);
-    if ((nFlag & flags) != 0) {
-      pc = dst;
+    if ((nResult & nFlag) != 0) {
+      takeBranch(dst);
     }
   }
 
   private void doBNE(int mode) {
     int dst = ea(mode);
-    if ((zFlag & flags) == 0) {
-      pc = dst;
+    if (zResult != 0) {
+      takeBranch(dst);
     }
   }
 
   private void doBPL(int mode) {
     int dst = ea(mode);
-    if ((nFlag & flags) == 0) {
-      pc = dst;
+    if ((nResult & nFlag) == 0) {
+      takeBranch(dst);
     }
   }
 
   private void doBVC(int mode) {
     int dst = ea(mode);
     if ((vFlag & flags) == 0) {
-      pc = dst;
+      takeBranch(dst);
+    }
+  }
+
+  private void doBVS(int mode) {
+    int dst = ea(mode);
+    if ((vFlag & flags) != 0) {
+      takeBranch(dst);
     }
   }
 
-  private void doBVS(int mode) {
-    int dst = ea(mode);
-    if ((vFlag & flags) != 0) {
-      pc = dst;
-    }
+  public void doCLC(int mode) {
+    setC(false);
+  }
+
+  private void doCLD(int mode) {
+    setD(false);
+  }
+
+  private void doCLI(int mode) {
+    setI(false);
+    if (irq) {
+      batchEnd = cycles;
+    }
+  }
+
+  private void doCLV(int mode) {
+    setV(false);
+  }
+
+  private void doCMP(int mode) {
+    compare(a, cea(mode));
+  }
+
+  private void doCPX(int mode) {
+    compare(x, cea(mode));
+  }
+
+  private void doCPY(int mode) {
+    compare(y, cea(mode));
+  }
+
+  private void doDEC(int mode) {
+    decMem(ea(mode));
+  }
+
+  private void doDEX(int mode) {
+    x = (x - 1) & 0xff;
+    setNZ(x);
+  }
+
+  private void doDEY(int mode) {
+    y = (y - 1) & 0xff;
+    setNZ(y);
+  }
+
+  private void doEOR(int mode) {
+    int m = cea(mode);
+    a = a ^ m;
+    setNZ(a);
+  }
+
+  private void doINC(int mode) {
+    incMem(ea(mode));
+  }
+
+  private void doINX(int mode) {
+    x = (x + 1) & 0xff;
+    setNZ(x);
+  }
+
+  private void doINY(int mode) {
+    y = (y + 1) & 0xff;
+    setNZ(y);
+  }
+
+  private void doJMP(int mode) {
+    pc = ea(mode);
+  }
+
+  private void doJSR(int mode) {
+    jsr(ea(mode));
+  }
+
+  private void doLDA(int mode) {
+    a = cea(mode);
+    setNZ(a);
+  }
+
+  private void doLDX(int mode) {
+    x = cea(mode);
+    setNZ(x);
+  }
+
+  private void doLDY(int mode) {
+    y = cea(mode);
+    setNZ(y);
+  }
+
+  private void doLSR(int mode) {
+    if (mode == mAccum) {
+      a = lsr(a);
+    } else {
+      lsrMem(ea(mode));
+    }
+  }
+
+  private void doNOP(int mode) {}
+
+  private void doORA(int mode) {
+    a |= cea(mode);
+    setNZ(a);
+  }
+
+  private void doPHA(int mode) {
+    pushByte(a);
+  }
+
+  private void doPHP(int mode) {
+    flags |= rFlag | bFlag;
+    pushByte(getFlags());
+  }
+
+  private void doPLA(int mode) {
+    a = popByte();
+    setNZ(a);
+  }
+
+  private void doPLP(int mode) {
+    //          flags = popByte() | rFlag;
+    setFlags(popByte());
+    if (irq) {
+      batchEnd = cycles;
+    }
+  }
+
+  private void doROL(int mode) {
+    if (mode == mAccum) {
+      a = rol(a);
+    } else {
+      rolMem(ea(mode));
+    }
+  }
+
+  private void doROR(int mode) {
+    if (mode == mAccum) {
+      a = ror(a);
+    } else {
+      rorMem(ea(mode));
+    }
+  }
+
+  private void doRTI(int mode) {
+    doPLP(mode);
+    pc = popWord();
+  }
+
+  public void doRTS(int mode) {
+    pc = popWord() + 1;
+  }
+
+  private void doSBC(int mode) {
+    sbc(cea(mode));
+  }
+
+  private void doSEC(int mode) {
+    setC(true);
+  }
+
+  private void doSED(int mode) {
+    setD(true);
+  }
+
+  private void doSEI(int mode) {
+    setI(true);
+  }
+
+  private void doSTA(int mode) {
+    write(ea(mode), a);
+  }
+
+  private void doSTX(int mode) {
+    write(ea(mode), x);
+  }
+
+  private void doSTY(int mode) {
+    write(ea(mode), y);
+  }
+
+  private void doTAX(int mode) {
+    x = a;
+    setNZ(a);
+  }
+
+  private void doTAY(int mode) {
+    y = a;
+    setNZ(a);
+  }
+
+  private void doTSX(int mode) {
+    x = sp;
+    setNZ(x);
+  }
+
+  private void doTXA(int mode) {
+    a = x;
+    setNZ(a);
+  }
+
+  private void doTXS(int mode) {
+    sp = x;
+  }
+
+  private void doTYA(int mode) {
+    a = y;
+    setNZ(a);
+  }
+
+  private void doILL(int mode) {
+    halt();
+  }
+
+  /* ================================================================ */
+  /* 65C02 OPCODES                                                    */
+  /* ================================================================ */
+
+  private void doBRA(int mode) {
+    takeBranch(ea(mode));
+  }
+
+  private void doDEA(int mode) {
+    a = (a - 1) & 0xff;
+    setNZ(a);
+  }
+
+  private void doINA(int mode) {
+    a = (a + 1) & 0xff;
+    setNZ(a);
+  }
+
+  private void doPHX(int mode) {
+    pushByte(x);
+  }
+
+  private void doPHY(int mode) {
+    pushByte(y);
+  }
+
+  private void doPLX(int mode) {
+    x = popByte();
+    setNZ(x);
+  }
+
+  private void doPLY(int mode) {
+    y = popByte();
+    setNZ(y);
+  }
+
+  private void doSTZ(int mode) {
+    write(ea(mode), 0);
+  }
+
+  private void doTRB(int mode) {
+    trb(ea(mode));
+  }
+
+  private void doTSB(int mode) {
+    tsb(ea(mode));
+  }
+
+  private void interrupt(boolean isBRK) {
+    pushWord(pc);
+    setB(isBRK);
+    // The flags are pushed as they were, so RTI enables interrupts again
+    pushByte(getFlags());
+    setI(true);
+    pc = wordAt(0xfffe);
+    cycles += 7;
+  }
+
+  /**
+   * Takes an IRQ now, between instructions, unless interrupts are disabled.
+   * Returns true if it was taken. A device whose interrupt must not be lost
+   * while they are disabled should hold the line with setIRQ() instead.
+   */
+  public boolean tryInterrupt() {
+    if ((iFlag & flags) != 0) {
+      return false;
+    }
+    interrupt(false);
+    return true;
+  }
+
+  /**
+   * Sets the level of the IRQ line. While it is held and interrupts are
+   * enabled, run() takes an IRQ before the next instruction, so the device
+   * must release it once the handler has seen to it.
+   */
+  public void setIRQ(boolean asserted) {
+    irq = asserted;
+    if (asserted) {
+      batchEnd = cycles;
+    }
+  }
+
+  public boolean irqAsserted() {
+    return irq;
+  }
+
+  /**
+   * Schedules event to fire after the given number of cycles. Events fire
+   * from run() and runUntil() between instructions, at most one basic block
+   * late with block compilation on; step() does not fire them.
+   */
+  public void schedule(long delay, Event event) {
+    scheduleAt(cycles + delay, event);
+  }
+
+  /** Schedules event to fire when the cycle count reaches cycle. */
+  public void scheduleAt(long cycle, Event event) {
+    events.add(cycle, event);
+    if (cycle < batchEnd) {
+      batchEnd = cycle;
+    }
+  }
+
+  /** Removes every pending firing of event. Returns true if any was pending. */
+  public boolean cancel(Event event) {
+    return events.remove(event);
+  }
+
+  public void cancelAllEvents() {
+    events.clear();
+  }
+
+  /** Returns the cycle the next event is due, or Long.MAX_VALUE if none. */
+  public long nextEventCycle() {
+    return events.nextDue();
+  }
+
+  public void jumpTo(int where) {
+    pc = where;
+  }
+
+  private void doBRK(int mode) {
+    pushWord(pc + 1);
+    setB(true);
+    doPHP(0);
+    setI(true);
+    pc = wordAt(0xfffe);
+  }
+
+  /* ================================================================ */
+  /* SPECIALIZED OPCODE HANDLERS                                      */
+  /* ================================================================ */
+
+  // One handler per opcode and addressing mode, dispatched through OPS.
+  // Implied mode instructions share the doXXX() handlers, which ignore the
+  // mode.
+
+  private void oraIndX() {
+    a |= read(indX());
+    setNZ(a);
+  }
+
+  private void tsbZp() {
+    tsb(operand);
+  }
+
+  private void oraZp() {
+    a |= read(operand);
+    setNZ(a);
+  }
+
+  private void aslZp() {
+    aslMem(operand);
+  }
+
+  private void oraImm() {
+    a |= operand;
+    setNZ(a);
+  }
+
+  private void aslAcc() {
+    a = asl(a);
+  }
+
+  private void tsbAbs() {
+    tsb(operand);
+  }
+
+  private void oraAbs() {
+    a |= read(operand);
+    setNZ(a);
+  }
+
+  private void aslAbs() {
+    aslMem(operand);
+  }
+
+  private void oraIndY() {
+    a |= read(indYRead());
+    setNZ(a);
+  }
+
+  private void oraIndZP() {
+    a |= read(indZP());
+    setNZ(a);
+  }
+
+  private void trbZp() {
+    trb(operand);
+  }
+
+  private void oraZpX() {
+    a |= read(zpX());
+    setNZ(a);
+  }
+
+  private void aslZpX() {
+    aslMem(zpX());
+  }
+
+  private void oraAbsY() {
+    a |= read(absYRead());
+    setNZ(a);
+  }
+
+  private void trbAbs() {
+    trb(operand);
+  }
+
+  private void oraAbsX() {
+    a |= read(absXRead());
+    setNZ(a);
+  }
+
+  private void aslAbsX() {
+    aslMem(absX());
+  }
+
+  private void andIndX() {
+    a &= read(indX());
+    setNZ(a);
+  }
+
+  private void bitZp() {
+    bit(read(operand));
+  }
+
+  private void andZp() {
+    a &= read(operand);
+    setNZ(a);
+  }
+
+  private void rolZp() {
+    rolMem(operand);
+  }
+
+  private void andImm() {
+    a &= operand;
+    setNZ(a);
+  }
+
+  private void rolAcc() {
+    a = rol(a);
+  }
+
+  private void bitAbs() {
+    bit(read(operand));
+  }
+
+  private void andAbs() {
+    a &= read(operand);
+    setNZ(a);
+  }
+
+  private void rolAbs() {
+    rolMem(operand);
+  }
+
+  private void andIndY() {
+    a &= read(indYRead());
+    setNZ(a);
+  }
+
+  private void andIndZP() {
+    a &= read(indZP());
+    setNZ(a);
+  }
+
+  private void bitZpX() {
+    bit(read(zpX()));
+  }
+
+  private void andZpX() {
+    a &= read(zpX());
+    setNZ(a);
+  }
+
+  private void rolZpX() {
+    rolMem(zpX());
+  }
+
+  private void andAbsY() {
+    a &= read(absYRead());
+    setNZ(a);
+  }
+
+  private void bitAbsX() {
+    bit(read(absXRead()));
+  }
+
+  private void andAbsX() {
+    a &= read(absXRead());
+    setNZ(a);
+  }
+
+  private void rolAbsX() {
+    rolMem(absX());
+  }
+
+  private void eorIndX() {
+    a ^= read(indX());
+    setNZ(a);
+  }
+
+  private void eorZp() {
+    a ^= read(operand);
+    setNZ(a);
+  }
+
+  private void lsrZp() {
+    lsrMem(operand);
+  }
+
+  private void eorImm() {
+    a ^= operand;
+    setNZ(a);
+  }
+
+  private void lsrAcc() {
+    a = lsr(a);
+  }
+
+  private void jmpAbs() {
+    pc = operand;
+  }
+
+  private void eorAbs() {
+    a ^= read(operand);
+    setNZ(a);
+  }
+
+  private void lsrAbs() {
+    lsrMem(operand);
+  }
+
+  private void eorIndY() {
+    a ^= read(indYRead());
+    setNZ(a);
+  }
+
+  private void eorIndZP() {
+    a ^= read(indZP());
+    setNZ(a);
+  }
+
+  private void eorZpX() {
+    a ^= read(zpX());
+    setNZ(a);
+  }
+
+  private void lsrZpX() {
+    lsrMem(zpX());
+  }
+
+  private void eorAbsY() {
+    a ^= read(absYRead());
+    setNZ(a);
+  }
+
+  private void eorAbsX() {
+    a ^= read(absXRead());
+    setNZ(a);
+  }
+
+  private void lsrAbsX() {
+    lsrMem(absX());
+  }
+
+  private void adcIndX() {
+    adc(read(indX()));
+  }
+
+  private void stzZp() {
+    write(operand, 0);
+  }
+
+  private void adcZp() {
+    adc(read(operand));
+  }
+
+  private void rorZp() {
+    rorMem(operand);
+  }
+
+  private void adcImm() {
+    adc(operand);
+  }
+
+  private void rorAcc() {
+    a = ror(a);
+  }
+
+  private void jmpInd() {
+    pc = wordAt(operand);
+  }
+
+  private void adcAbs() {
+    adc(read(operand));
+  }
+
+  private void rorAbs() {
+    rorMem(operand);
+  }
+
+  private void adcIndY() {
+    adc(read(indYRead()));
+  }
+
+  private void adcIndZP() {
+    adc(read(indZP()));
+  }
+
+  private void stzZpX() {
+    write(zpX(), 0);
+  }
+
+  private void adcZpX() {
+    adc(read(zpX()));
+  }
+
+  private void rorZpX() {
+    rorMem(zpX());
+  }
+
+  private void adcAbsY() {
+    adc(read(absYRead()));
+  }
+
+  private void jmpAbsIndX() {
+    pc = wordAt(absX());
+  }
+
+  private void adcAbsX() {
+    adc(read(absXRead()));
+  }
+
+  private void rorAbsX() {
+    rorMem(absX());
+  }
+
+  private void staIndX() {
+    write(indX(), a);
+  }
+
+  private void styZp() {
+    write(operand, y);
+  }
+
+  private void staZp() {
+    write(operand, a);
+  }
+
+  private void stxZp() {
+    write(operand, x);
+  }
+
+  private void bitImm() {
+    bit(operand);
+  }
+
+  private void styAbs() {
+    write(operand, y);
+  }
+
+  private void staAbs() {
+    write(operand, a);
+  }
+
+  private void stxAbs() {
+    write(operand, x);
+  }
+
+  private void staIndY() {
+    write(indY(), a);
+  }
+
+  private void staIndZP() {
+    write(indZP(), a);
+  }
+
+  private void styZpX() {
+    write(zpX(), y);
+  }
+
+  private void staZpX() {
+    write(zpX(), a);
+  }
+
+  private void stxZpY() {
+    write(zpY(), x);
+  }
+
+  private void staAbsY() {
+    write(absY(), a);
+  }
+
+  private void stzAbs() {
+    write(operand, 0);
+  }
+
+  private void staAbsX() {
+    write(absX(), a);
+  }
+
+  private void stzAbsX() {
+    write(absX(), 0);
+  }
+
+  private void ldyImm() {
+    y = operand;
+    setNZ(y);
+  }
+
+  private void ldaIndX() {
+    a = read(indX());
+    setNZ(a);
+  }
+
+  private void ldxImm() {
+    x = operand;
+    setNZ(x);
+  }
+
+  private void ldyZp() {
+    y = read(operand);
+    setNZ(y);
+  }
+
+  private void ldaZp() {
+    a = read(operand);
+    setNZ(a);
+  }
+
+  private void ldxZp() {
+    x = read(operand);
+    setNZ(x);
   }
 
-  public void doCLC(int mode) {
-    setC(false);
+  private void ldaImm() {
+    a = operand;
+    setNZ(a);
   }
 
-  private void doCLD(int mode) {
-    setD(false);
+  private void ldyAbs() {
+    y = read(operand);
+    setNZ(y);
   }
 
-  private void doCLI(int mode) {
-    setI(false);
+  private void ldaAbs() {
+    a = read(operand);
+    setNZ(a);
   }
 
-  private void doCLV(int mode) {
-    setV(false);
+  private void ldxAbs() {
+    x = read(operand);
+    setNZ(x);
   }
 
-  private void doCMP(int mode) {
-    int m = cea(mode);
-    setC(a >= m);
-    m = a - m;
-    setNZ(m);
+  private void ldaIndY() {
+    a = read(indYRead());
+    setNZ(a);
   }
 
-  private void doCPX(int mode) {
-    int m = cea(mode);
-    setC(x >= m);
-    m = x - m;
-    setNZ(m);
+  private void ldaIndZP() {
+    a = read(indZP());
+    setNZ(a);
   }
 
-  private void doCPY(int mode) {
-    int m = cea(mode);
-    setC(y >= m);
-    m = y - m;
-    setNZ(m);
+  private void ldyZpX() {
+    y = read(zpX());
+    setNZ(y);
   }
 
-  private void doDEC(int mode) {
-    int w = ea(mode);
-    int v = (mem.read(w) - 1) & 0xff;
-    mem.write(w, v);
-    setNZ(v);
+  private void ldaZpX() {
+    a = read(zpX());
+    setNZ(a);
   }
 
-  private void doDEX(int mode) {
-    x = (x - 1) & 0xff;
+  private void ldxZpY() {
+    x = read(zpY());
     setNZ(x);
   }
 
-  private void doDEY(int mode) {
-    y = (y - 1) & 0xff;
-    setNZ(y);
+  private void ldaAbsY() {
+    a = read(absYRead());
+    setNZ(a);
   }
 
-  private void doEOR(int mode) {
-    int m = cea(mode);
-    a = a ^ m;
-    setNZ(a);
+  private void ldyAbsX() {
+    y = read(absXRead());
+    setNZ(y);
   }
 
-  private void doINC(int mode) {
-    int w = ea(mode);
-    int v = (mem.read(w) + 1) & 0xff;
-    mem.write(w, v);
-    setNZ(v);
+  private void ldaAbsX() {
+    a = read(absXRead());
+    setNZ(a);
   }
 
-  private void doINX(int mode) {
-    x = (x + 1) & 0xff;
+  private void ldxAbsY() {
+    x = read(absYRead());
     setNZ(x);
   }
 
-  private void doINY(int mode) {
-    y = (y + 1) & 0xff;
-    setNZ(y);
+  private void cpyImm() {
+    compare(y, operand);
   }
 
-  private void doJMP(int mode) {
-    pc = ea(mode);
+  private void cmpIndX() {
+    compare(a, read(indX()));
   }
 
-  private void doJSR(int mode) {
-    int m = ea(mode);
-    pushWord(pc - 1);
-    pc = m;
+  private void cpyZp() {
+    compare(y, read(operand));
   }
 
-  private void doLDA(int mode) {
-    a = cea(mode);
-    setNZ(a);
+  private void cmpZp() {
+    compare(a, read(operand));
   }
 
-  private void doLDX(int mode) {
-    x = cea(mode);
-    setNZ(x);
+  private void decZp() {
+    decMem(operand);
   }
 
-  private void doLDY(int mode) {
-    y = cea(mode);
-    setNZ(y);
+  private void cmpImm() {
+    compare(a, operand);
   }
 
-  private void doLSR(int mode) {
-    if (mode == mAccum) {
-      setC((a & 1) != 0);
-      a >>= 1;
-      setNZ(a);
-    } else {
-      int m = ea(mode);
-      int v = mem.read(m);
-      setC((v & 1) != 0);
-      v >>= 1;
-      mem.write(m, v);
-      setNZ(v);
-    }
+  private void cpyAbs() {
+    compare(y, read(operand));
   }
 
-  private void doNOP(int mode) {}
+  private void cmpAbs() {
+    compare(a, read(operand));
+  }
 
-  private void doORA(int mode) {
-    a |= cea(mode);
-    setNZ(a);
+  private void decAbs() {
+    decMem(operand);
   }
 
-  private void doPHA(int mode) {
-    pushByte(a);
+  private void cmpIndY() {
+    compare(a, read(indYRead()));
   }
 
-  private void doPHP(int mode) {
-    flags |= rFlag | bFlag;
-    pushByte(flags);
+  private void cmpIndZP() {
+    compare(a, read(indZP()));
   }
 
-  private void doPLA(int mode) {
-    a = popByte();
-    setNZ(a);
+  private void cmpZpX() {
+    compare(a, read(zpX()));
   }
 
-  private void doPLP(int mode) {
-    //          flags = popByte() | rFlag;
-    flags = popByte();
+  private void decZpX() {
+    decMem(zpX());
   }
 
-  private void doROL(int mode) {
-    if (mode == mAccum) {
-      a <<= 1;
-      a |= flags & cFlag;
-      if (a > 255) {
-        a &= 0xff;
-        setC(true);
-      } else {
-        setC(false);
-      }
-      setNZ(a);
-    } else {
-      int m = ea(mode);
-      int v = mem.read(m);
-      v <<= 1;
-      v |= flags & cFlag;
-      if (v > 255) {
-        v &= 0xff;
-        setC(true);
-      } else {
-        setC(false);
-      }
-      mem.write(m, v);
-      setNZ(v);
-    }
+  private void cmpAbsY() {
+    compare(a, read(absYRead()));
   }
 
-  private void doROR(int mode) {
-    if (mode == mAccum) {
-      if ((cFlag & flags) != 0) {
-        a |= 0x100;
-      }
-      setC((a & 1) != 0);
-      a >>= 1;
-      setNZ(a);
-    } else {
-      int m = ea(mode);
-      int v = mem.read(m);
-      if ((cFlag & flags) != 0) {
-        v |= 0x100;
-      }
-      setC((v & 1) != 0);
-      v >>= 1;
-      mem.write(m, v);
-      setNZ(v);
-    }
+  private void cmpAbsX() {
+    compare(a, read(absXRead()));
   }
 
-  private void doRTI(int mode) {
-    doPLP(mode);
-    pc = popWord();
+  private void decAbsX() {
+    decMem(absX());
   }
 
-  public void doRTS(int mode) {
-    pc = popWord() + 1;
+  private void cpxImm() {
+    compare(x, operand);
   }
 
-  private void doSBC(int mode) {
-    int m = cea(mode);
-    if (dFlagSet()) {
-      m = BCDtoBIN(a) - BCDtoBIN(m) - 1 + (flags & cFlag);
-      if ((m & 0xff00) == 0) {
-        setC(true);
-      } else {
-        setC(false);
-        m += 100;
-      }
-      a = BINtoBCD(m);
-      setNZ(a);
-      return;
-    }
-    int r = a - m - 1 + (flags & cFlag);
-    setC((r & 0xff00) == 0);
-    r &= 0xff;
-    setNZ(r);
-    setV(((a & 0x80) != (m & 0x80)) && ((r & 0x80) != (a & 0x80)));
-    a = r;
+  private void sbcIndX() {
+    sbc(read(indX()));
   }
 
-  private void doSEC(int mode) {
-    setC(true);
+  private void cpxZp() {
+    compare(x, read(operand));
   }
 
-  private void doSED(int mode) {
-    setD(true);
+  private void sbcZp() {
+    sbc(read(operand));
   }
 
-  private void doSEI(int mode) {
-    setI(true);
+  private void incZp() {
+    incMem(operand);
   }
 
-  private void doSTA(int mode) {
-    mem.write(ea(mode), a);
+  private void sbcImm() {
+    sbc(operand);
   }
 
-  private void doSTX(int mode) {
-    mem.write(ea(mode), x);
+  private void cpxAbs() {
+    compare(x, read(operand));
   }
 
-  private void doSTY(int mode) {
-    mem.write(ea(mode), y);
+  private void sbcAbs() {
+    sbc(read(operand));
   }
 
-  private void doTAX(int mode) {
-    x = a;
-    setNZ(a);
+  private void incAbs() {
+    incMem(operand);
   }
 
-  private void doTAY(int mode) {
-    y = a;
-    setNZ(a);
+  private void sbcIndY() {
+    sbc(read(indYRead()));
   }
 
-  private void doTSX(int mode) {
-    x = sp;
-    setNZ(x);
+  private void sbcIndZP() {
+    sbc(read(indZP()));
   }
 
-  private void doTXA(int mode) {
-    a = x;
-    setNZ(a);
+  private void sbcZpX() {
+    sbc(read(zpX()));
   }
 
-  private void doTXS(int mode) {
-    sp = x;
+  private void incZpX() {
+    incMem(zpX());
   }
 
-  private void doTYA(int mode) {
-    a = y;
-    setNZ(a);
+  private void sbcAbsY() {
+    sbc(read(absYRead()));
   }
 
-  private void doILL(int mode) {
-    halt = true;
+  private void sbcAbsX() {
+    sbc(read(absXRead()));
   }
 
-  /* ================================================================ */
-  /* 65C02 OPCODES                                                    */
-  /* ================================================================ */
+  private void incAbsX() {
+    incMem(absX());
+  }
 
-  private void doBRA(int mode) {
-    pc = ea(mode);
+  private void bpl() {
+    branch((nResult & nFlag) == 0);
   }
 
-  private void doDEA(int mode) {
-    a = (a - 1) & 0xff;
-    setNZ(a);
+  private void jsrAbs() {
+    jsr(operand);
   }
 
-  private void doINA(int mode) {
-    a = (a + 1) & 0xff;
-    setNZ(a);
+  private void bmi() {
+    branch((nResult & nFlag) != 0);
   }
 
-  private void doPHX(int mode) {
-    pushByte(x);
+  private void bvc() {
+    branch((flags & vFlag) == 0);
   }
 
-  private void doPHY(int mode) {
-    pushByte(y);
+  private void bvs() {
+    branch((flags & vFlag) != 0);
   }
 
-  private void doPLX(int mode) {
-    x = popByte();
-    setNZ(x);
+  private void bra() {
+    branch(true);
   }
 
-  private void doPLY(int mode) {
-    y = popByte();
-    setNZ(y);
+  private void bcc() {
+    branch(carry == 0);
   }
 
-  private void doSTZ(int mode) {
-    mem.write(ea(mode), 0);
+  private void bcs() {
+    branch(carry != 0);
   }
 
-  private void doTRB(int mode) {
-    int m = ea(mode);
-    int v = mem.read(m);
-    v &= 0xff ^ a;
-    mem.write(m, v);
-    setZ(v == 0);
+  private void bne() {
+    branch(zResult != 0);
   }
 
-  private void doTSB(int mode) {
-    int m = ea(mode);
-    int v = mem.read(m);
-    v |= a;
-    mem.write(m, v);
-    setZ(v == 0);
+  private void beq() {
+    branch(zResult == 0);
   }
 
-  private void interrupt(boolean isBRK) {
-    pushWord(pc);
-    setB(isBRK);
-    setI(true);
-    pushByte(flags);
-    pc = wordAt(0xfffe);
+  // Base cycle counts, indexed by opcode. Page crossing on indexed reads and
+  // taken branches add cycles on top of these. Opcodes that halt the CPU are
+  // listed as 2 cycles.
+  // prettier-ignore
+  static final int[] CYCLES = {
+    7, 6, 2, 2, 5, 3, 5, 2, 3, 2, 2, 2, 6, 4, 6, 2,
+    2, 5, 5, 2, 5, 4, 6, 2, 2, 4, 2, 2, 6, 4, 7, 2,
+    6, 6, 2, 2, 3, 3, 5, 2, 4, 2, 2, 2, 4, 4, 6, 2,
+    2, 5, 5, 2, 4, 4, 6, 2, 2, 4, 2, 2, 4, 4, 7, 2,
+    6, 6, 2, 2, 2, 3, 5, 2, 3, 2, 2, 2, 3, 4, 6, 2,
+    2, 5, 5, 2, 2, 4, 6, 2, 2, 4, 3, 2, 2, 4, 7, 2,
+    6, 6, 2, 2, 3, 3, 5, 2, 4, 2, 2, 2, 5, 4, 6, 2,
+    2, 5, 5, 2, 4, 4, 6, 2, 2, 4, 4, 2, 6, 4, 7, 2,
+    2, 6, 2, 2, 3, 3, 3, 2, 2, 2, 2, 2, 4, 4, 4, 2,
+    2, 6, 5, 2, 4, 4, 4, 2, 2, 5, 2, 2, 4, 5, 5, 2,
+    2, 6, 2, 2, 3, 3, 3, 2, 2, 2, 2, 2, 4, 4, 4, 2,
+    2, 5, 5, 2, 4, 4, 4, 2, 2, 4, 2, 2, 4, 4, 4, 2,
+    2, 6, 2, 2, 3, 3, 5, 2, 2, 2, 2, 2, 4, 4, 6, 2,
+    2, 5, 5, 2, 2, 4, 6, 2, 2, 4, 3, 2, 2, 4, 7, 2,
+    2, 6, 2, 2, 3, 3, 5, 2, 2, 2, 2, 2, 4, 4, 6, 2,
+    2, 5, 5, 2, 2, 4, 6, 2, 2, 4, 4, 2, 2, 4, 7, 2,
+  };
+
+  // Instruction lengths in bytes, indexed by opcode
+  // prettier-ignore
+  static final int[] LENGTH = {
+    1, 2, 1, 1, 2, 2, 2, 1, 1, 2, 1, 1, 3, 3, 3, 1,
+    2, 2, 2, 1, 2, 2, 2, 1, 1, 3, 1, 1, 3, 3, 3, 1,
+    3, 2, 1, 1, 2, 2, 2, 1, 1, 2, 1, 1, 3, 3, 3, 1,
+    2, 2, 2, 1, 2, 2, 2, 1, 1, 3, 1, 1, 3, 3, 3, 1,
+    1, 2, 1, 1, 1, 2, 2, 1, 1, 2, 1, 1, 3, 3, 3, 1,
+    2, 2, 2, 1, 1, 2, 2, 1, 1, 3, 1, 1, 1, 3, 3, 1,
+    1, 2, 1, 1, 2, 2, 2, 1, 1, 2, 1, 1, 3, 3, 3, 1,
+    2, 2, 2, 1, 2, 2, 2, 1, 1, 3, 1, 1, 3, 3, 3, 1,
+    2, 2, 1, 1, 2, 2, 2, 1, 1, 2, 1, 1, 3, 3, 3, 1,
+    2, 2, 2, 1, 2, 2, 2, 1, 1, 3, 1, 1, 3, 3, 3, 1,
+    2, 2, 2, 1, 2, 2, 2, 1, 1, 2, 1, 1, 3, 3, 3, 1,
+    2, 2, 2, 1, 2, 2, 2, 1, 1, 3, 1, 1, 3, 3, 3, 1,
+    2, 2, 1, 1, 2, 2, 2, 1, 1, 2, 1, 1, 3, 3, 3, 1,
+    2, 2, 2, 1, 1, 2, 2, 1, 1, 3, 1, 1, 1, 3, 3, 1,
+    2, 2, 1, 1, 2, 2, 2, 1, 1, 2, 1, 1, 3, 3, 3, 1,
+    2, 2, 2, 1, 1, 2, 2, 1, 1, 3, 1, 1, 1, 3, 3, 1,
+  };
+
+  private interface Op {
+    void exec(M6502 cpu);
+  }
+
+  // Dispatch table for step(), indexed by opcode
+  private static final Op[] OPS = new Op[256];
+
+  static {
+    OPS[0] = c -> c.doBRK(mImplied);
+    OPS[1] = M6502::oraIndX;
+    OPS[2] = c -> c.doILL(mImplied);
+    OPS[3] = c -> c.doILL(mImplied);
+    OPS[4] = M6502::tsbZp;
+    OPS[5] = M6502::oraZp;
+    OPS[6] = M6502::aslZp;
+    OPS[7] = c -> c.doNOP(mImplied);
+    OPS[8] = c -> c.doPHP(mImplied);
+    OPS[9] = M6502::oraImm;
+    OPS[10] = M6502::aslAcc;
+    OPS[11] = c -> c.doILL(mImplied);
+    OPS[12] = M6502::tsbAbs;
+    OPS[13] = M6502::oraAbs;
+    OPS[14] = M6502::aslAbs;
+    OPS[15] = c -> c.doILL(mImplied);
+    OPS[16] = M6502::bpl;
+    OPS[17] = M6502::oraIndY;
+    OPS[18] = M6502::oraIndZP;
+    OPS[19] = c -> c.doILL(mImplied);
+    OPS[20] = M6502::trbZp;
+    OPS[21] = M6502::oraZpX;
+    OPS[22] = M6502::aslZpX;
+    OPS[23] = c -> c.doILL(mImplied);
+    OPS[24] = c -> c.doCLC(mImplied);
+    OPS[25] = M6502::oraAbsY;
+    OPS[26] = c -> c.doINA(mImplied);
+    OPS[27] = c -> c.doILL(mImplied);
+    OPS[28] = M6502::trbAbs;
+    OPS[29] = M6502::oraAbsX;
+    OPS[30] = M6502::aslAbsX;
+    OPS[31] = c -> c.doILL(mImplied);
+    OPS[32] = M6502::jsrAbs;
+    OPS[33] = M6502::andIndX;
+    OPS[34] = c -> c.doILL(mImplied);
+    OPS[35] = c -> c.doILL(mImplied);
+    OPS[36] = M6502::bitZp;
+    OPS[37] = M6502::andZp;
+    OPS[38] = M6502::rolZp;
+    OPS[39] = c -> c.doILL(mImplied);
+    OPS[40] = c -> c.doPLP(mImplied);
+    OPS[41] = M6502::andImm;
+    OPS[42] = M6502::rolAcc;
+    OPS[43] = c -> c.doILL(mImplied);
+    OPS[44] = M6502::bitAbs;
+    OPS[45] = M6502::andAbs;
+    OPS[46] = M6502::rolAbs;
+    OPS[47] = c -> c.doILL(mImplied);
+    OPS[48] = M6502::bmi;
+    OPS[49] = M6502::andIndY;
+    OPS[50] = M6502::andIndZP;
+    OPS[51] = c -> c.doILL(mImplied);
+    OPS[52] = M6502::bitZpX;
+    OPS[53] = M6502::andZpX;
+    OPS[54] = M6502::rolZpX;
+    OPS[55] = c -> c.doILL(mImplied);
+    OPS[56] = c -> c.doSEC(mImplied);
+    OPS[57] = M6502::andAbsY;
+    OPS[58] = c -> c.doDEA(mImplied);
+    OPS[59] = c -> c.doILL(mImplied);
+    OPS[60] = M6502::bitAbsX;
+    OPS[61] = M6502::andAbsX;
+    OPS[62] = M6502::rolAbsX;
+    OPS[63] = c -> c.doILL(mImplied);
+    OPS[64] = c -> c.doRTI(mImplied);
+    OPS[65] = M6502::eorIndX;
+    OPS[66] = c -> c.doILL(mImplied);
+    OPS[67] = c -> c.doILL(mImplied);
+    OPS[68] = c -> c.doILL(mImplied);
+    OPS[69] = M6502::eorZp;
+    OPS[70] = M6502::lsrZp;
+    OPS[71] = c -> c.doILL(mImplied);
+    OPS[72] = c -> c.doPHA(mImplied);
+    OPS[73] = M6502::eorImm;
+    OPS[74] = M6502::lsrAcc;
+    OPS[75] = c -> c.doILL(mImplied);
+    OPS[76] = M6502::jmpAbs;
+    OPS[77] = M6502::eorAbs;
+    OPS[78] = M6502::lsrAbs;
+    OPS[79] = c -> c.doILL(mImplied);
+    OPS[80] = M6502::bvc;
+    OPS[81] = M6502::eorIndY;
+    OPS[82] = M6502::eorIndZP;
+    OPS[83] = c -> c.doILL(mImplied);
+    OPS[84] = c -> c.doILL(mImplied);
+    OPS[85] = M6502::eorZpX;
+    OPS[86] = M6502::lsrZpX;
+    OPS[87] = c -> c.doILL(mImplied);
+    OPS[88] = c -> c.doCLI(mImplied);
+    OPS[89] = M6502::eorAbsY;
+    OPS[90] = c -> c.doPHY(mImplied);
+    OPS[91] = c -> c.doILL(mImplied);
+    OPS[92] = c -> c.doILL(mImplied);
+    OPS[93] = M6502::eorAbsX;
+    OPS[94] = M6502::lsrAbsX;
+    OPS[95] = c -> c.doILL(mImplied);
+    OPS[96] = c -> c.doRTS(mImplied);
+    OPS[97] = M6502::adcIndX;
+    OPS[98] = c -> c.doILL(mImplied);
+    OPS[99] = c -> c.doILL(mImplied);
+    OPS[100] = M6502::stzZp;
+    OPS[101] = M6502::adcZp;
+    OPS[102] = M6502::rorZp;
+    OPS[103] = c -> c.doILL(mImplied);
+    OPS[104] = c -> c.doPLA(mImplied);
+    OPS[105] = M6502::adcImm;
+    OPS[106] = M6502::rorAcc;
+    OPS[107] = c -> c.doILL(mImplied);
+    OPS[108] = M6502::jmpInd;
+    OPS[109] = M6502::adcAbs;
+    OPS[110] = M6502::rorAbs;
+    OPS[111] = c -> c.doILL(mImplied);
+    OPS[112] = M6502::bvs;
+    OPS[113] = M6502::adcIndY;
+    OPS[114] = M6502::adcIndZP;
+    OPS[115] = c -> c.doILL(mImplied);
+    OPS[116] = M6502::stzZpX;
+    OPS[117] = M6502::adcZpX;
+    OPS[118] = M6502::rorZpX;
+    OPS[119] = c -> c.doILL(mImplied);
+    OPS[120] = c -> c.doSEI(mImplied);
+    OPS[121] = M6502::adcAbsY;
+    OPS[122] = c -> c.doPLY(mImplied);
+    OPS[123] = c -> c.doILL(mImplied);
+    OPS[124] = M6502::jmpAbsIndX;
+    OPS[125] = M6502::adcAbsX;
+    OPS[126] = M6502::rorAbsX;
+    OPS[127] = c -> c.doILL(mImplied);
+    OPS[128] = M6502::bra;
+    OPS[129] = M6502::staIndX;
+    OPS[130] = c -> c.doILL(mImplied);
+    OPS[131] = c -> c.doILL(mImplied);
+    OPS[132] = M6502::styZp;
+    OPS[133] = M6502::staZp;
+    OPS[134] = M6502::stxZp;
+    OPS[135] = c -> c.doILL(mImplied);
+    OPS[136] = c -> c.doDEY(mImplied);
+    OPS[137] = M6502::bitImm;
+    OPS[138] = c -> c.doTXA(mImplied);
+    OPS[139] = c -> c.doILL(mImplied);
+    OPS[140] = M6502::styAbs;
+    OPS[141] = M6502::staAbs;
+    OPS[142] = M6502::stxAbs;
+    OPS[143] = c -> c.doILL(mImplied);
+    OPS[144] = M6502::bcc;
+    OPS[145] = M6502::staIndY;
+    OPS[146] = M6502::staIndZP;
+    OPS[147] = c -> c.doILL(mImplied);
+    OPS[148] = M6502::styZpX;
+    OPS[149] = M6502::staZpX;
+    OPS[150] = M6502::stxZpY;
+    OPS[151] = c -> c.doILL(mImplied);
+    OPS[152] = c -> c.doTYA(mImplied);
+    OPS[153] = M6502::staAbsY;
+    OPS[154] = c -> c.doTXS(mImplied);
+    OPS[155] = c -> c.doILL(mImplied);
+    OPS[156] = M6502::stzAbs;
+    OPS[157] = M6502::staAbsX;
+    OPS[158] = M6502::stzAbsX;
+    OPS[159] = c -> c.doILL(mImplied);
+    OPS[160] = M6502::ldyImm;
+    OPS[161] = M6502::ldaIndX;
+    OPS[162] = M6502::ldxImm;
+    OPS[163] = c -> c.doILL(mImplied);
+    OPS[164] = M6502::ldyZp;
+    OPS[165] = M6502::ldaZp;
+    OPS[166] = M6502::ldxZp;
+    OPS[167] = c -> c.doILL(mImplied);
+    OPS[168] = c -> c.doTAY(mImplied);
+    OPS[169] = M6502::ldaImm;
+    OPS[170] = c -> c.doTAX(mImplied);
+    OPS[171] = c -> c.doILL(mImplied);
+    OPS[172] = M6502::ldyAbs;
+    OPS[173] = M6502::ldaAbs;
+    OPS[174] = M6502::ldxAbs;
+    OPS[175] = c -> c.doILL(mImplied);
+    OPS[176] = M6502::bcs;
+    OPS[177] = M6502::ldaIndY;
+    OPS[178] = M6502::ldaIndZP;
+    OPS[179] = c -> c.doILL(mImplied);
+    OPS[180] = M6502::ldyZpX;
+    OPS[181] = M6502::ldaZpX;
+    OPS[182] = M6502::ldxZpY;
+    OPS[183] = c -> c.doILL(mImplied);
+    OPS[184] = c -> c.doCLV(mImplied);
+    OPS[185] = M6502::ldaAbsY;
+    OPS[186] = c -> c.doTSX(mImplied);
+    OPS[187] = c -> c.doILL(mImplied);
+    OPS[188] = M6502::ldyAbsX;
+    OPS[189] = M6502::ldaAbsX;
+    OPS[190] = M6502::ldxAbsY;
+    OPS[191] = c -> c.doILL(mImplied);
+    OPS[192] = M6502::cpyImm;
+    OPS[193] = M6502::cmpIndX;
+    OPS[194] = c -> c.doILL(mImplied);
+    OPS[195] = c -> c.doILL(mImplied);
+    OPS[196] = M6502::cpyZp;
+    OPS[197] = M6502::cmpZp;
+    OPS[198] = M6502::decZp;
+    OPS[199] = c -> c.doILL(mImplied);
+    OPS[200] = c -> c.doINY(mImplied);
+    OPS[201] = M6502::cmpImm;
+    OPS[202] = c -> c.doDEX(mImplied);
+    OPS[203] = c -> c.doILL(mImplied);
+    OPS[204] = M6502::cpyAbs;
+    OPS[205] = M6502::cmpAbs;
+    OPS[206] = M6502::decAbs;
+    OPS[207] = c -> c.doILL(mImplied);
+    OPS[208] = M6502::bne;
+    OPS[209] = M6502::cmpIndY;
+    OPS[210] = M6502::cmpIndZP;
+    OPS[211] = c -> c.doILL(mImplied);
+    OPS[212] = c -> c.doILL(mImplied);
+    OPS[213] = M6502::cmpZpX;
+    OPS[214] = M6502::decZpX;
+    OPS[215] = c -> c.doILL(mImplied);
+    OPS[216] = c -> c.doCLD(mImplied);
+    OPS[217] = M6502::cmpAbsY;
+    OPS[218] = c -> c.doPHX(mImplied);
+    OPS[219] = c -> c.doILL(mImplied);
+    OPS[220] = c -> c.doILL(mImplied);
+    OPS[221] = M6502::cmpAbsX;
+    OPS[222] = M6502::decAbsX;
+    OPS[223] = c -> c.doILL(mImplied);
+    OPS[224] = M6502::cpxImm;
+    OPS[225] = M6502::sbcIndX;
+    OPS[226] = c -> c.doILL(mImplied);
+    OPS[227] = c -> c.doILL(mImplied);
+    OPS[228] = M6502::cpxZp;
+    OPS[229] = M6502::sbcZp;
+    OPS[230] = M6502::incZp;
+    OPS[231] = c -> c.doILL(mImplied);
+    OPS[232] = c -> c.doINX(mImplied);
+    OPS[233] = M6502::sbcImm;
+    OPS[234] = c -> c.doNOP(mImplied);
+    OPS[235] = c -> c.doILL(mImplied);
+    OPS[236] = M6502::cpxAbs;
+    OPS[237] = M6502::sbcAbs;
+    OPS[238] = M6502::incAbs;
+    OPS[239] = c -> c.doILL(mImplied);
+    OPS[240] = M6502::beq;
+    OPS[241] = M6502::sbcIndY;
+    OPS[242] = M6502::sbcIndZP;
+    OPS[243] = c -> c.doILL(mImplied);
+    OPS[244] = c -> c.doILL(mImplied);
+    OPS[245] = M6502::sbcZpX;
+    OPS[246] = M6502::incZpX;
+    OPS[247] = c -> c.doILL(mImplied);
+    OPS[248] = c -> c.doSED(mImplied);
+    OPS[249] = M6502::sbcAbsY;
+    OPS[250] = c -> c.doPLX(mImplied);
+    OPS[251] = c -> c.doILL(mImplied);
+    OPS[252] = c -> c.doILL(mImplied);
+    OPS[253] = M6502::sbcAbsX;
+    OPS[254] = M6502::incAbsX;
+    OPS[255] = c -> c.doILL(mImplied);
+  }
+
+  /**
+   * Executes one instruction. The opcode indexes a table of handlers that
+   * each have their addressing mode inlined, so an instruction costs a
+   * single dispatch. With the decode cache on, the opcode and operand come
+   * from the cache instead of memory.
+   */
+  public void step() {
+    if (decoded != null) {
+      stepDecoded();
+      return;
+    }
+    int op = fetch();
+    switch (LENGTH[op]) {
+      case 2:
+        operand = fetch();
+        break;
+      case 3:
+        operand = fetchWord();
+        break;
+    }
+    cycles += CYCLES[op];
+    OPS[op].exec(this);
+  }
+
+  /**
+   * Executes at least one instruction. With block compilation on, this runs
+   * the compiled block at the PC, or else runs up to the end of the basic
+   * block with step(), and compiles it once it has been run often enough.
+   * Otherwise, it is the same as step().
+   */
+  public void runBlock() {
+    if (compiler == null) {
+      step();
+      return;
+    }
+    BlockCompiler.Block block = compiler.blockAt(pc);
+    if (block != null) {
+      codeChanged = false;
+      block.run(this);
+      return;
+    }
+    for (int n = 0; n < BlockCompiler.MAX_INSTRUCTIONS; n++) {
+      int op = readCode(pc);
+      step();
+      if ((op < 0) || BlockCompiler.endsBlock(op) || (stopReason != null)) {
+        return;
+      }
+    }
   }
 
-  public void tryInterrupt() {
-    if ((iFlag & flags) == 0) interrupt(false);
+  /**
+   * Runs for up to the given number of cycles, and returns why it stopped.
+   * With block compilation on, this runs compiled blocks. Scheduled events
+   * fire and a held IRQ line is serviced along the way; a jump to itself
+   * only stops it if no event is due before the budget runs out, and
+   * otherwise skips ahead to the next event.
+   */
+  public StopReason run(long budget) {
+    return run(budget, -1);
+  }
+
+  /**
+   * Runs until the PC reaches where, after at least one instruction, or for
+   * up to the given number of cycles. Returns why it stopped. This runs one
+   * instruction at a time even with block compilation on.
+   */
+  public StopReason runUntil(int where, long budget) {
+    return run(budget, where);
+  }
+
+  /**
+   * Makes run() or runUntil() return the given reason after the current
+   * instruction. Devices call this from the thread running the CPU.
+   */
+  public void requestStop(StopReason reason) {
+    stopReason = reason;
+    codeChanged = true;
+  }
+
+  /**
+   * Halts the CPU as an illegal instruction does, so run() or runUntil()
+   * returns HALT after the current instruction. Devices call this from the
+   * thread running the CPU when the program does something they cannot.
+   */
+  public void halt() {
+    halt = true;
+    requestStop(StopReason.HALT);
   }
 
-  public void jumpTo(int where) {
-    pc = where;
+  private StopReason run(long budget, int breakpoint) {
+    if (halt) {
+      return StopReason.HALT;
+    }
+    long end =
+      (budget > Long.MAX_VALUE - cycles) ? Long.MAX_VALUE : cycles + budget;
+    boolean observed =
+      (profiler != null) || (tracer != null) || (breakpoints != null);
+    boolean blocks =
+      (compiler != null) && (breakpoint < 0) && !observed && (watches == null);
+    stopReason = null;
+    while (true) {
+      // Events and interrupts are only looked at between batches, which end
+      // early when one is scheduled or the IRQ line is raised
+      events.fireDue(this);
+      if (irq && ((flags & iFlag) == 0)) {
+        interrupt(false);
+      }
+      if (stopReason != null) {
+        return takeStopReason();
+      }
+      if (cycles >= end) {
+        return StopReason.BUDGET;
+      }
+      batchEnd = Math.min(end, events.nextDue());
+      while (cycles < batchEnd) {
+        int from = pc;
+        if (blocks) {
+          runBlock();
+        } else if (observed) {
+          stepObserved();
+        } else {
+          step();
+        }
+        if (stopReason != null) {
+          return takeStopReason();
+        }
+        if ((pc == from) && jumpsToSelf(from)) {
+          if (batchEnd == end) {
+            return StopReason.JUMP_TO_SELF;
+          }
+          // Only an event can get it out of the loop, so skip to the next
+          cycles = Math.max(cycles, batchEnd);
+        }
+        if (pc == breakpoint) {
+          return StopReason.BREAKPOINT;
+        }
+      }
+    }
   }
 
-  private void doBRK(int mode) {
-    pushWord(pc + 1);
-    setB(true);
-    doPHP(0);
-    setI(true);
-    pc = wordAt(0xfffe);
+  private StopReason takeStopReason() {
+    StopReason reason = stopReason;
+    stopReason = null;
+    return reason;
+  }
+
+  // Returns true for a jump or branch at where, once it has gone to where.
+  // Nothing else changes, so it will do the same forever. A compiled block
+  // can also end where it began, by looping.
+  private boolean jumpsToSelf(int where) {
+    int op = peek(where);
+    return (
+      ((op & 0x1f) == 0x10) ||
+      (op == 0x80) ||
+      (op == 0x4c) ||
+      (op == 0x6c) ||
+      (op == 0x7c)
+    );
+  }
+
+  private void stepObserved() {
+    int where = pc;
+    int op = peek(where);
+    long start = cycles;
+    if (tracer != null) {
+      tracer.begin(this, where, op);
+    }
+    step();
+    if (tracer != null) {
+      tracer.end((LENGTH[op] > 1) ? operand : 0);
+    }
+    if (profiler != null) {
+      profiler.count(where, op, cycles - start);
+    }
+    if (breakpoints != null) {
+      Condition condition = breakpoints[pc];
+      if ((condition != null) && condition.test(this)) {
+        stopReason = StopReason.BREAKPOINT;
+      }
+    }
   }
 
-  public void step() {
+  private void stepDecoded() {
+    int[] page = decoded[pc >> 8];
+    int entry = (page != null) ? page[pc & 0xff] : 0;
+    if (entry != 0) {
+      decodeHits++;
+    } else {
+      entry = decode(pc);
+      decodeMisses++;
+    }
+    int op = entry & 0xff;
+    operand = entry >>> 10;
+    pc = (pc + ((entry >> 8) & 3)) & 0xffff;
+    cycles += CYCLES[op];
+    OPS[op].exec(this);
+  }
+
+  /**
+   * Executes one instruction with the original two-level interpreter, which
+   * dispatches on the opcode and then on the addressing mode in ea(). It is
+   * kept as a reference for benchmarking and cross-checking step().
+   */
+  public void stepReference() {
     int i = fetch();
+    cycles += CYCLES[i];
     switch (i) {
       case 0:
         doBRK(mImplied);
@@ -1499,179 +3277,266 @@ public class M6502 {
     }
   }
 
-  public String dump() {
-    StringBuffer b = new StringBuffer();
-
-    b.append("PC = ");
-    dumpHexWord(b, pc);
-    b.append(" A = ");
-    dumpHexByte(b, a);
-    b.append(" X = ");
-    dumpHexByte(b, x);
-    b.append(" Y = ");
-    dumpHexByte(b, y);
-    b.append(" SP = ");
-    dumpHexByte(b, sp);
-    dumpFlags(b);
-    b.append(' ');
-    b.append(disassemble(pc));
-    return b.toString();
-  }
-
-  private void dumpFlags(StringBuffer b) {
-    if ((flags & nFlag) == 0) {
-      b.append(" n");
-    } else {
-      b.append(" N");
-    }
-    if ((flags & vFlag) == 0) {
-      b.append('v');
-    } else {
-      b.append('V');
-    }
-    if ((flags & rFlag) == 0) {
-      b.append('r');
-    } else {
-      b.append('R');
-    }
-    if ((flags & bFlag) == 0) {
-      b.append('b');
-    } else {
-      b.append('B');
-    }
-    if ((flags & dFlag) == 0) {
-      b.append('d');
-    } else {
-      b.append('D');
-    }
-    if ((flags & iFlag) == 0) {
-      b.append('i');
-    } else {
-      b.append('I');
-    }
-    if ((flags & zFlag) == 0) {
-      b.append('z');
-    } else {
-      b.append('Z');
-    }
-    if ((flags & cFlag) == 0) {
-      b.append('c');
-    } else {
-      b.append('C');
-    }
-    b.append(' ');
-  }
-
-  private static char digits[] = {
-    '0',
-    '1',
-    '2',
-    '3',
-    '4',
-    '5',
-    '6',
-    '7',
-    '8',
-    '9',
-    'A',
-    'B',
-    'C',
-    'D',
-    'E',
-    'F',
+  /** Room needed for disassemble() into a byte array. */
+  public static final int DISASSEMBLY_SIZE = 32;
+  /** Room needed for dump() into a byte array. */
+  public static final int DUMP_SIZE = 96;
+
+  // prettier-ignore
+  private static final byte[] HEX = {
+    '0', '1', '2', '3', '4', '5', '6', '7',
+    '8', '9', 'A', 'B', 'C', 'D', 'E', 'F',
   };
+  private static final String FLAG_NAMES = "NVRBDIZC";
+  // A listing is written out in chunks of this size
+  private static final int LISTING_BUFFER_SIZE = 65536;
+  private static final int LISTING_LINE_SIZE = 64;
 
-  private static void dumpHexByte(StringBuffer b, int value) {
-    b.append('$');
+  // Text built by dump() and disassemble() for a String or an Appendable
+  private final byte[] text = new byte[DUMP_SIZE];
 
-    b.append(digits[(value >> 4) & 0xf]);
-    b.append(digits[value & 0xf]);
+  /** Returns the registers and flags, and the instruction at the PC. */
+  public String dump() {
+    return new String(text, 0, dump(text, 0), StandardCharsets.US_ASCII);
+  }
+
+  /** Appends what dump() returns to out, without allocating. */
+  public void dump(Appendable out) throws IOException {
+    append(out, dump(text, 0));
+  }
+
+  /**
+   * Writes what dump() returns into out from offset, as ASCII, and returns
+   * the offset after it. There must be room for DUMP_SIZE bytes.
+   */
+  public int dump(byte[] out, int offset) {
+    return dump(out, offset, true);
+  }
+
+  // With pointers false, an indirect indexed operand is shown without the
+  // address read from zero page, as memory may not hold it any more
+  int dump(byte[] out, int offset, boolean pointers) {
+    int i = put(out, offset, "PC = ");
+    i = putHexWord(out, i, pc);
+    i = put(out, i, " A = ");
+    i = putHexByte(out, i, a);
+    i = put(out, i, " X = ");
+    i = putHexByte(out, i, x);
+    i = put(out, i, " Y = ");
+    i = putHexByte(out, i, y);
+    i = put(out, i, " SP = ");
+    i = putHexByte(out, i, sp);
+    out[i++] = ' ';
+    int flags = getFlags();
+    for (int bit = 0; bit < 8; bit++) {
+      char name = FLAG_NAMES.charAt(bit);
+      out[i++] = (byte) (
+        ((flags & (0x80 >> bit)) != 0) ? name : Character.toLowerCase(name)
+      );
+    }
+    out[i++] = ' ';
+    out[i++] = ' ';
+    return disassemble(pc, out, i, pointers);
   }
 
-  private static void dumpHexWord(StringBuffer b, int value) {
-    b.append('$');
+  private void append(Appendable out, int length) throws IOException {
+    for (int i = 0; i < length; i++) {
+      out.append((char) text[i]);
+    }
+  }
 
-    b.append(digits[(value >> 12) & 0xf]);
-    b.append(digits[(value >> 8) & 0xf]);
-    b.append(digits[(value >> 4) & 0xf]);
-    b.append(digits[value & 0xf]);
+  private static int put(byte[] out, int i, String s) {
+    for (int j = 0; j < s.length(); j++) {
+      out[i++] = (byte) s.charAt(j);
+    }
+    return i;
   }
 
-  public String disassemble(int where) {
-    StringBuffer b = new StringBuffer();
+  private static int putHexByte(byte[] out, int i, int value) {
+    out[i++] = '$';
+    out[i++] = HEX[(value >> 4) & 0xf];
+    out[i++] = HEX[value & 0xf];
+    return i;
+  }
 
-    //          dumpHexByte(b, mem.read(where));
-    b.append(mneumonics[mem.read(where)]);
+  private static int putHexWord(byte[] out, int i, int value) {
+    out[i++] = '$';
+    out[i++] = HEX[(value >> 12) & 0xf];
+    out[i++] = HEX[(value >> 8) & 0xf];
+    out[i++] = HEX[(value >> 4) & 0xf];
+    out[i++] = HEX[value & 0xf];
+    return i;
+  }
 
-    switch (modeTable[mem.read(where)]) {
+  /** Returns the instruction at where in assembly language. */
+  public String disassemble(int where) {
+    int length = disassemble(where, text, 0);
+    return new String(text, 0, length, StandardCharsets.US_ASCII);
+  }
+
+  /** Appends what disassemble(where) returns to out, without allocating. */
+  public void disassemble(int where, Appendable out) throws IOException {
+    append(out, disassemble(where, text, 0));
+  }
+
+  /**
+   * Writes what disassemble(where) returns into out from offset, as ASCII,
+   * and returns the offset after it. There must be room for
+   * DISASSEMBLY_SIZE bytes.
+   */
+  public int disassemble(int where, byte[] out, int offset) {
+    return disassemble(where, out, offset, true);
+  }
+
+  private int disassemble(
+    int where,
+    byte[] out,
+    int offset,
+    boolean pointers
+  ) {
+    int op = peek(where);
+    int i = put(out, offset, mneumonics[op]);
+    int next = (where + 1) & 0xffff;
+    switch (modeTable[op]) {
       case mIndirectX:
-        b.append(" (");
-        dumpHexByte(b, mem.read(where + 1));
-        b.append(", X)");
+        i = put(out, i, " (");
+        i = putHexByte(out, i, peek(next));
+        i = put(out, i, ", X)");
         break;
       case mZeroPage:
-        b.append(' ');
-        dumpHexByte(b, mem.read(where + 1));
+        out[i++] = ' ';
+        i = putHexByte(out, i, peek(next));
         break;
       case mImmediate:
-        b.append(" #");
-        dumpHexByte(b, mem.read(where + 1));
+        i = put(out, i, " #");
+        i = putHexByte(out, i, peek(next));
         break;
       case mAbsolute:
-        b.append(' ');
-        dumpHexWord(b, wordAt(where + 1));
+        out[i++] = ' ';
+        i = putHexWord(out, i, peekWord(next));
         break;
       case mIndirectY:
-        b.append(" (");
-        dumpHexByte(b, mem.read(where + 1));
-        b.append("), Y  [");
-        dumpHexWord(b, wordAt(mem.read(where + 1)));
-        b.append(']');
+        i = put(out, i, " (");
+        i = putHexByte(out, i, peek(next));
+        i = put(out, i, "), Y");
+        if (pointers) {
+          i = put(out, i, "  [");
+          i = putHexWord(out, i, peekWord(peek(next)));
+          out[i++] = ']';
+        }
         break;
       case mZeroPageX:
-        b.append(' ');
-        dumpHexByte(b, mem.read(where + 1));
-        b.append(", X");
+        out[i++] = ' ';
+        i = putHexByte(out, i, peek(next));
+        i = put(out, i, ", X");
         break;
       case mZeroPageY:
-        b.append(' ');
-        dumpHexByte(b, mem.read(where + 1));
-        b.append(", Y");
+        out[i++] = ' ';
+        i = putHexByte(out, i, peek(next));
+        i = put(out, i, ", Y");
         break;
       case mAbsoluteX:
-        b.append(' ');
-        dumpHexWord(b, wordAt(where + 1));
-        b.append(", X");
+        out[i++] = ' ';
+        i = putHexWord(out, i, peekWord(next));
+        i = put(out, i, ", X");
         break;
       case mAbsoluteY:
-        b.append(' ');
-        dumpHexWord(b, wordAt(where + 1));
-        b.append(", Y");
+        out[i++] = ' ';
+        i = putHexWord(out, i, peekWord(next));
+        i = put(out, i, ", Y");
         break;
       case mRelative:
-        b.append(' ');
-        dumpHexWord(b, where + 2 + complement(mem.read(where + 1)));
+        out[i++] = ' ';
+        i = putHexWord(out, i, where + 2 + complement(peek(next)));
         break;
       case mIndirect:
-        b.append(" (");
-        dumpHexWord(b, wordAt(where + 1));
-        b.append(')');
+        i = put(out, i, " (");
+        i = putHexWord(out, i, peekWord(next));
+        out[i++] = ')';
         break;
       case mIndirectZP:
-        b.append(" (");
-        dumpHexByte(b, mem.read(where + 1));
-        b.append(')');
-        break;
-      case mAccum:
-        b.append(" A");
+        i = put(out, i, " (");
+        i = putHexByte(out, i, peek(next));
+        out[i++] = ')';
         break;
-      case mImplied:
+      case mAIndirectX:
+        i = put(out, i, " (");
+        i = putHexWord(out, i, peekWord(next));
+        i = put(out, i, ", X)");
         break;
-      default:
-        b.append(" UNKNOWN MODE");
+      case mAccum:
+        i = put(out, i, " A");
         break;
     }
-    return b.toString();
+    return i;
+  }
+
+  /**
+   * Writes a listing of memory from from up to to (exclusive) to out, one
+   * instruction a line with its address and bytes. Pages mapped to devices
+   * are skipped. Like the other disassemble() and dump() methods, this
+   * reads memory with peek(), so it has no side effects on devices or
+   * watchpoints.
+   */
+  public void disassemble(int from, int to, OutputStream out)
+    throws IOException {
+    byte[] buffer = new byte[LISTING_BUFFER_SIZE];
+    int i = 0;
+    int where = from;
+    while (where < to) {
+      if (
+        (mem instanceof PagedMemory) &&
+        ((PagedMemory) mem).isDevicePage(where >> 8)
+      ) {
+        where = (where | 0xff) + 1;
+        continue;
+      }
+      int op = peek(where);
+      i = putHexWord(buffer, i, where);
+      buffer[i++] = ' ';
+      for (int n = 0; n < 3; n++) {
+        buffer[i++] = ' ';
+        if (n < LENGTH[op]) {
+          int b = peek((where + n) & 0xffff);
+          buffer[i++] = HEX[b >> 4];
+          buffer[i++] = HEX[b & 0xf];
+        } else {
+          buffer[i++] = ' ';
+          buffer[i++] = ' ';
+        }
+      }
+      buffer[i++] = ' ';
+      buffer[i++] = ' ';
+      i = disassemble(where, buffer, i);
+      buffer[i++] = '\n';
+      if (i > buffer.length - LISTING_LINE_SIZE) {
+        out.write(buffer, 0, i);
+        i = 0;
+      }
+      where += LENGTH[op];
+    }
+    out.write(buffer, 0, i);
+  }
+
+  // prettier-ignore
+  private static final String[] MODE_NAMES = {
+    "(zp,X)", "zp", "#imm", "abs", "(zp),Y", "zp,X", "zp,Y", "abs,X",
+    "abs,Y", "rel", "(abs)", "(zp)", "A", "implied", "(abs,X)",
+  };
+
+  static final int MODES = MODE_NAMES.length;
+
+  static String mnemonic(int op) {
+    return mneumonics[op];
+  }
+
+  // Addressing mode of an opcode, from 0 to MODES - 1
+  static int modeOf(int op) {
+    return modeTable[op];
+  }
+
+  static String modeName(int mode) {
+    return MODE_NAMES[mode];
   }
 
   private static String mneumonics[] = {
@@ -1885,7 +3750,7 @@ public class M6502 {
     "???",
     "BNE",
     "CMP",
-    "???",
+    "CMP",
     "???",
     "???",
     "CMP",
@@ -2058,7 +3923,7 @@ public class M6502 {
     mAbsoluteY,
     mImplied,
     mImplied,
-    mAbsoluteX,
+    mAIndirectX,
     mAbsoluteX,
     mAbsoluteX,
     mImplied,
@@ -2144,7 +4009,7 @@ public class M6502 {
     mImplied,
     mRelative,
     mIndirectY,
-    mImplied,
+    mIndirectZP,
     mImplied,
     mImplied,
     mZeroPageX,
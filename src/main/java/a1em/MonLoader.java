@@ -0,0 +1,125 @@
+package a1em;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+
+/**
+ * Loads Woz Monitor listings, such as the files in software/, straight into
+ * memory. Each line is interpreted the way the monitor would interpret it if
+ * it were typed at the prompt, so "ADDR: bb bb" stores bytes, ": bb"
+ * continues storing where the previous line left off, and "ADDRR" runs a
+ * program, but without the cost of the monitor echoing and parsing every
+ * key. Examine commands ("ADDR" and "ADDR.ADDR") only move the monitor's
+ * address, since nothing is printed.
+ *
+ * <p>Memory ends up the same as if the text had been typed, except for the
+ * monitor's own zero page variables, the stack, and the input buffer at
+ * $0200. Lines longer than the monitor's 127 character input buffer are not
+ * split the way the monitor would split them.
+ */
+public final class MonLoader {
+
+  private static final int XAM = 0;
+  private static final int BLOCK_XAM = 1;
+  private static final int STORE = 2;
+
+  // The monitor's "examine" and "store" addresses (XAM and ST)
+  private int xam;
+  private int st;
+
+  private MonLoader() {}
+
+  /**
+   * Loads a listing into mem. Returns the address of the program started
+   * by an R command, or -1 if there was none. Anything after the R command
+   * would have been typed into the running program, so it is ignored.
+   */
+  public static int load(Reader in, M6502.Memory mem) throws IOException {
+    MonLoader loader = new MonLoader();
+    BufferedReader lines = new BufferedReader(in);
+    String line;
+    while ((line = lines.readLine()) != null) {
+      int run = loader.execute(edit(line), mem);
+      if (run >= 0) {
+        return run;
+      }
+    }
+    return -1;
+  }
+
+  // Applies the editing keys the monitor handles while reading a line:
+  // underscore is backspace, and escape cancels the line.
+  private static String edit(String line) {
+    StringBuilder sb = new StringBuilder(line.length());
+    for (int i = 0; i < line.length(); i++) {
+      char ch = Character.toUpperCase(line.charAt(i));
+      if (ch == '_') {
+        if (sb.length() > 0) {
+          sb.setLength(sb.length() - 1);
+        }
+      } else if (ch == 27) {
+        sb.setLength(0);
+      } else {
+        sb.append(ch);
+      }
+    }
+    return sb.toString();
+  }
+
+  // Runs one line, returning the run address if it has an R command
+  private int execute(String line, M6502.Memory mem) {
+    int mode = XAM;
+    int i = 0;
+    while (i < line.length()) {
+      char ch = line.charAt(i);
+      if (ch < '.') {
+        // Blanks and punctuation before '.' are skipped
+        i++;
+        continue;
+      } else if (ch == '.') {
+        mode = BLOCK_XAM;
+        i++;
+        continue;
+      } else if (ch == ':') {
+        mode = STORE;
+        i++;
+        continue;
+      } else if (ch == 'R') {
+        return xam;
+      }
+      int value = 0;
+      int start = i;
+      int digit;
+      while ((i < line.length()) && ((digit = hexValue(line.charAt(i))) >= 0)) {
+        value = ((value << 4) | digit) & 0xffff;
+        i++;
+      }
+      if (i == start) {
+        // Not hex, so the monitor rejects the rest of the line
+        return -1;
+      }
+      if (mode == STORE) {
+        mem.write(st, value & 0xff);
+        st = (st + 1) & 0xffff;
+      } else if (mode == BLOCK_XAM) {
+        // The monitor leaves XAM at the end of the block it printed
+        xam = Math.max(xam, value);
+        mode = XAM;
+      } else {
+        xam = value;
+        st = value;
+      }
+    }
+    return -1;
+  }
+
+  private static int hexValue(char ch) {
+    if ((ch >= '0') && (ch <= '9')) {
+      return ch - '0';
+    } else if ((ch >= 'A') && (ch <= 'F')) {
+      return ch - 'A' + 10;
+    }
+    return -1;
+  }
+}
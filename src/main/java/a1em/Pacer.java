@@ -0,0 +1,106 @@
+package a1em;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Paces emulation against the wall clock. The CPU runs in slices of
+ * sliceCycles() cycles, and after each slice sync() sleeps until real time
+ * has caught up with the emulated cycle count. An unlimited pacer never
+ * sleeps.
+ */
+public class Pacer {
+
+  /** Clock rate of a real Apple 1, in Hz. */
+  public static final double APPLE1_HZ = 1023000;
+
+  // Slice size used when running as fast as possible
+  private static final long UNLIMITED_SLICE = 1000000;
+
+  // If emulation falls further behind than this (a slow host, or a stall
+  // such as a modal dialog), start over instead of running flat out to
+  // catch up.
+  private static final long MAX_LAG_NANOS = 100000000L;
+
+  private final double hz;
+  private final long sliceCycles;
+  private long startNanos;
+  private long startCycles;
+
+  /**
+   * Creates a pacer for the given clock rate. A rate of 0 means unlimited.
+   */
+  public Pacer(double hz, long sliceNanos) {
+    this.hz = hz;
+    if (hz > 0) {
+      sliceCycles = Math.max(1, (long) (hz * sliceNanos / 1e9));
+    } else {
+      sliceCycles = UNLIMITED_SLICE;
+    }
+    reset(0);
+  }
+
+  /**
+   * Parses a speed setting, either a multiple of the Apple 1 clock rate
+   * (e.g. "1", "2.5") or "max" for unlimited, and returns the clock rate in
+   * Hz (0 for unlimited).
+   */
+  public static double parseHz(String speed) {
+    if (speed.equalsIgnoreCase("max")) {
+      return 0;
+    }
+    if (speed.endsWith("x") || speed.endsWith("X")) {
+      speed = speed.substring(0, speed.length() - 1);
+    }
+    double multiple = Double.parseDouble(speed);
+    if (multiple <= 0) {
+      throw new IllegalArgumentException("Speed must be positive: " + speed);
+    }
+    return multiple * APPLE1_HZ;
+  }
+
+  public boolean isUnlimited() {
+    return hz <= 0;
+  }
+
+  public double getHz() {
+    return hz;
+  }
+
+  /** Returns the number of cycles to run between calls to sync(). */
+  public long sliceCycles() {
+    return sliceCycles;
+  }
+
+  /** Restarts pacing from the current time at the given cycle count. */
+  public void reset(long cycles) {
+    startNanos = System.nanoTime();
+    startCycles = cycles;
+  }
+
+  /**
+   * Returns how long to wait for the wall clock to catch up with the given
+   * cycle count, or 0 if it already has.
+   */
+  public long delayNanos(long cycles) {
+    if (isUnlimited()) {
+      return 0;
+    }
+    long target = startNanos + (long) ((cycles - startCycles) * 1e9 / hz);
+    long now = System.nanoTime();
+    if (target > now) {
+      return target - now;
+    }
+    if (now - target > MAX_LAG_NANOS) {
+      reset(cycles);
+    }
+    return 0;
+  }
+
+  /** Sleeps until the wall clock catches up with the given cycle count. */
+  public void sync(long cycles) {
+    long delay = delayNanos(cycles);
+    if (delay > 0) {
+      LockSupport.parkNanos(delay);
+    }
+  }
+}
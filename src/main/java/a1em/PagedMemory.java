@@ -0,0 +1,198 @@
+package a1em;
+
+import java.nio.ByteBuffer;
+
+/**
+ * 64K of RAM stored as 256 byte pages, matching 6502 pages, with a page-level
+ * map of I/O devices. M6502 recognizes this class and reads and writes RAM
+ * pages directly through readMap and writeMap. Only accesses to pages whose
+ * map entry is null go through read() and write(): pages holding devices,
+ * pages with a watchpoint, and pages that have not been touched yet.
+ *
+ * <p>A page is only allocated the first time it is touched. Its contents
+ * come from the image passed to restore() (for example a memory-mapped
+ * snapshot), or are zero if there is none, so restoring 64K costs nothing
+ * up front.
+ *
+ * <p>fork() makes a copy that shares every page with the original. Shared
+ * pages are read directly, but have no writeMap entry, so the first write
+ * to one from either side copies it. A fork costs only the pages it
+ * dirties.
+ */
+public class PagedMemory implements M6502.Memory {
+
+  public static final int PAGE_SIZE = 256;
+  public static final int PAGES = 256;
+  public static final int SIZE = PAGE_SIZE * PAGES;
+
+  private static final byte[] EMPTY_PAGE = new byte[PAGE_SIZE];
+
+  // Pages the CPU may access directly, or null for the slow path
+  final byte[][] readMap = new byte[PAGES][];
+  final byte[][] writeMap = new byte[PAGES][];
+
+  // RAM, or null for pages that have not been touched yet
+  private final byte[][] pages = new byte[PAGES][];
+  // Pages that may also be in use by a fork, and must be copied on write
+  private final boolean[] shared = new boolean[PAGES];
+  private final M6502.Memory[] devices = new M6502.Memory[PAGES];
+  // Pages the CPU must not access directly, so it can check watchpoints
+  private final boolean[] watched = new boolean[PAGES];
+  // Contents of pages that have not been touched yet, or null for zeros
+  private ByteBuffer image;
+
+  /**
+   * Routes all reads and writes to pages firstPage through lastPage
+   * (inclusive) to a device, which is passed full 16 bit addresses.
+   */
+  public void mapDevice(int firstPage, int lastPage, M6502.Memory device) {
+    for (int p = firstPage; p <= lastPage; p++) {
+      devices[p] = device;
+      readMap[p] = null;
+      writeMap[p] = null;
+    }
+  }
+
+  public boolean isDevicePage(int page) {
+    return devices[page] != null;
+  }
+
+  /**
+   * Sends every access by the CPU to a page through read() and write(), or
+   * lets it access the page directly again. See M6502.watch().
+   */
+  public void setWatched(int page, boolean watch) {
+    watched[page] = watch;
+    readMap[page] = null;
+    writeMap[page] = null;
+    if (!watch && isDirect(page) && (pages[page] != null)) {
+      readMap[page] = pages[page];
+      if (!shared[page]) {
+        writeMap[page] = pages[page];
+      }
+    }
+  }
+
+  private boolean isDirect(int p) {
+    return (devices[p] == null) && !watched[p];
+  }
+
+  // Returns a page of RAM for reading, allocating it on first use
+  private byte[] page(int p) {
+    byte[] page = pages[p];
+    if (page == null) {
+      page = new byte[PAGE_SIZE];
+      if (image != null) {
+        image.get(p * PAGE_SIZE, page);
+      }
+      pages[p] = page;
+      if (isDirect(p)) {
+        readMap[p] = page;
+        writeMap[p] = page;
+      }
+    }
+    return page;
+  }
+
+  // Returns a page of RAM for writing, copying it first if it is shared
+  private byte[] writablePage(int p) {
+    byte[] page = page(p);
+    if (shared[p]) {
+      page = page.clone();
+      pages[p] = page;
+      shared[p] = false;
+      if (isDirect(p)) {
+        readMap[p] = page;
+        writeMap[p] = page;
+      }
+    }
+    return page;
+  }
+
+  public int read(int where) {
+    where &= 0xffff;
+    M6502.Memory device = devices[where >> 8];
+    if (device != null) {
+      return device.read(where);
+    }
+    return page(where >> 8)[where & 0xff] & 0xff;
+  }
+
+  public void write(int where, int what) {
+    where &= 0xffff;
+    M6502.Memory device = devices[where >> 8];
+    if (device != null) {
+      device.write(where, what);
+      return;
+    }
+    writablePage(where >> 8)[where & 0xff] = (byte) what;
+  }
+
+  /** Reads RAM, bypassing any device mapped at that address. */
+  public int peek(int where) {
+    where &= 0xffff;
+    return page(where >> 8)[where & 0xff] & 0xff;
+  }
+
+  /** Writes RAM, bypassing any device mapped at that address. */
+  public void poke(int where, int what) {
+    where &= 0xffff;
+    writablePage(where >> 8)[where & 0xff] = (byte) what;
+  }
+
+  /** Copies data into RAM starting at where, bypassing devices. */
+  public void load(int where, byte[] data) {
+    for (int i = 0; i < data.length; i++) {
+      poke(where + i, data[i]);
+    }
+  }
+
+  /**
+   * Replaces all of RAM with the 64K in image, starting at its index 0.
+   * Pages are copied out of image the first time they are touched, so image
+   * must not change afterwards.
+   */
+  public void restore(ByteBuffer image) {
+    if (image.capacity() < SIZE) {
+      throw new IllegalArgumentException("Memory image is too small");
+    }
+    this.image = image;
+    for (int p = 0; p < PAGES; p++) {
+      pages[p] = null;
+      shared[p] = false;
+      readMap[p] = null;
+      writeMap[p] = null;
+    }
+  }
+
+  /**
+   * Returns a copy of RAM that shares all pages with this one until either
+   * side writes to them. Devices are not copied. This must not be called
+   * while a CPU is running on this memory on another thread.
+   */
+  public PagedMemory fork() {
+    PagedMemory copy = new PagedMemory();
+    for (int p = 0; p < PAGES; p++) {
+      byte[] page = page(p);
+      shared[p] = true;
+      writeMap[p] = null;
+      copy.pages[p] = page;
+      copy.shared[p] = true;
+      copy.readMap[p] = page;
+    }
+    return copy;
+  }
+
+  /** Copies all of RAM, bypassing devices, to out. */
+  public void save(ByteBuffer out) {
+    for (int p = 0; p < PAGES; p++) {
+      if (pages[p] != null) {
+        out.put(pages[p]);
+      } else if (image != null) {
+        out.put(image.slice(p * PAGE_SIZE, PAGE_SIZE));
+      } else {
+        out.put(EMPTY_PAGE);
+      }
+    }
+  }
+}
@@ -0,0 +1,163 @@
+package a1em;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Arrays;
+
+/**
+ * Counts the instructions and cycles run at each address, and how often
+ * each opcode runs. Attach one to a CPU with M6502.setProfiler(). Counting
+ * only updates arrays, so it allocates nothing. The reports disassemble
+ * with the CPU, so take them on the thread running it, for example with
+ * Apple1.invokeLater(), or while it is stopped.
+ */
+public final class Profiler {
+
+  private final long[] counts = new long[PagedMemory.SIZE];
+  private final long[] cycles = new long[PagedMemory.SIZE];
+  private final long[] opCounts = new long[256];
+
+  void count(int where, int op, long spent) {
+    counts[where]++;
+    cycles[where] += spent;
+    opCounts[op]++;
+  }
+
+  public void clear() {
+    Arrays.fill(counts, 0);
+    Arrays.fill(cycles, 0);
+    Arrays.fill(opCounts, 0);
+  }
+
+  public long getInstructions() {
+    long total = 0;
+    for (long n : opCounts) {
+      total += n;
+    }
+    return total;
+  }
+
+  public long getCycles() {
+    long total = 0;
+    for (long n : cycles) {
+      total += n;
+    }
+    return total;
+  }
+
+  public long getCount(int where) {
+    return counts[where];
+  }
+
+  // Returns the indexes of the nonzero counts, most first. A count and its
+  // index are packed into one long so they sort together.
+  private static int[] ranked(long[] counts) {
+    long[] keys = new long[counts.length];
+    int n = 0;
+    for (int i = 0; i < counts.length; i++) {
+      if (counts[i] != 0) {
+        keys[n++] = (counts[i] << 16) | i;
+      }
+    }
+    Arrays.sort(keys, 0, n);
+    int[] ranked = new int[n];
+    for (int i = 0; i < n; i++) {
+      ranked[i] = (int) (keys[n - 1 - i] & 0xffff);
+    }
+    return ranked;
+  }
+
+  private static double percent(long n, long total) {
+    return (total == 0) ? 0 : n * 100.0 / total;
+  }
+
+  /**
+   * Returns a report of the top addresses by instructions run, disassembled
+   * with cpu, and the mix of opcodes and addressing modes.
+   */
+  public String report(M6502 cpu, int top) {
+    long instructions = getInstructions();
+    long totalCycles = getCycles();
+    StringBuilder b = new StringBuilder();
+    b.append(
+      String.format("%d instructions, %d cycles%n", instructions, totalCycles)
+    );
+    b.append(
+      String.format("%nAddress      Count      %%     Cycles  Instruction%n")
+    );
+    int[] addresses = ranked(counts);
+    for (int i = 0; i < Math.min(top, addresses.length); i++) {
+      int where = addresses[i];
+      b.append(
+        String.format(
+          "$%04X %12d %6.2f %10d  %s%n",
+          where,
+          counts[where],
+          percent(counts[where], instructions),
+          cycles[where],
+          cpu.disassemble(where)
+        )
+      );
+    }
+
+    b.append(String.format("%nOpcode            Count      %%%n"));
+    int[] ops = ranked(opCounts);
+    for (int i = 0; i < Math.min(top, ops.length); i++) {
+      int op = ops[i];
+      b.append(
+        String.format(
+          "$%02X %-3s %-8s %10d %6.2f%n",
+          op,
+          M6502.mnemonic(op),
+          M6502.modeName(M6502.modeOf(op)),
+          opCounts[op],
+          percent(opCounts[op], instructions)
+        )
+      );
+    }
+
+    long[] modeCounts = new long[M6502.MODES];
+    for (int op = 0; op < 256; op++) {
+      modeCounts[M6502.modeOf(op)] += opCounts[op];
+    }
+    b.append(String.format("%nMode              Count      %%%n"));
+    for (int m : ranked(modeCounts)) {
+      b.append(
+        String.format(
+          "%-12s %10d %6.2f%n",
+          M6502.modeName(m),
+          modeCounts[m],
+          percent(modeCounts[m], instructions)
+        )
+      );
+    }
+    return b.toString();
+  }
+
+  /**
+   * Writes a line for every address where instructions ran, with the
+   * opcode, its disassembly by cpu, the instructions run and the cycles
+   * they took, for analysis elsewhere.
+   */
+  public void writeCsv(M6502 cpu, Writer out) throws IOException {
+    out.write("address,opcode,mnemonic,mode,instruction,count,cycles\n");
+    for (int where = 0; where < counts.length; where++) {
+      if (counts[where] == 0) {
+        continue;
+      }
+      int op = cpu.peek(where);
+      out.write(
+        String.format(
+          "%04X,%02X,%s,%s,\"%s\",%d,%d%n",
+          where,
+          op,
+          M6502.mnemonic(op),
+          M6502.modeName(M6502.modeOf(op)),
+          cpu.disassemble(where),
+          counts[where],
+          cycles[where]
+        )
+      );
+    }
+  }
+}
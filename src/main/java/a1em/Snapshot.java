@@ -0,0 +1,191 @@
+package a1em;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * The complete state of an Apple 1: CPU registers, cycle count, the PIA's
+ * keyboard and display state, and all 64K of RAM. See Apple1.snapshot() and
+ * Apple1.restore().
+ *
+ * <p>The file format is a header of HEADER_SIZE bytes, then RAM, then the
+ * keys that were typed but not yet read. All numbers are big endian. The
+ * header starts with the magic number "A1SNAP" and a format version, and
+ * holds RAM's offset and the number of pending keys. RAM starts on a 4K
+ * boundary, so read() can memory-map it and the restored machine copies in
+ * only the pages it touches.
+ */
+public final class Snapshot {
+
+  public static final int VERSION = 1;
+  public static final int HEADER_SIZE = 4096;
+
+  private static final byte[] MAGIC = { 'A', '1', 'S', 'N', 'A', 'P' };
+
+  final int pc;
+  final int a;
+  final int x;
+  final int y;
+  final int sp;
+  final int flags;
+  final boolean halt;
+  final long cycles;
+  final int lastOut;
+  final byte[] keys;
+  // PagedMemory.SIZE bytes of RAM, from index 0
+  final ByteBuffer memory;
+
+  Snapshot(M6502 cpu, int lastOut, byte[] keys, ByteBuffer memory) {
+    this(
+      cpu.pc,
+      cpu.a,
+      cpu.x,
+      cpu.y,
+      cpu.getSP(),
+      cpu.getFlags(),
+      cpu.halt,
+      cpu.cycles,
+      lastOut,
+      keys,
+      memory
+    );
+  }
+
+  private Snapshot(
+    int pc,
+    int a,
+    int x,
+    int y,
+    int sp,
+    int flags,
+    boolean halt,
+    long cycles,
+    int lastOut,
+    byte[] keys,
+    ByteBuffer memory
+  ) {
+    this.pc = pc;
+    this.a = a;
+    this.x = x;
+    this.y = y;
+    this.sp = sp;
+    this.flags = flags;
+    this.halt = halt;
+    this.cycles = cycles;
+    this.lastOut = lastOut;
+    this.keys = keys;
+    this.memory = memory;
+  }
+
+  public long getCycles() {
+    return cycles;
+  }
+
+  /** Writes this snapshot to a file, replacing it if it exists. */
+  public void write(Path file) throws IOException {
+    ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+    header.put(MAGIC);
+    header.putShort((short) VERSION);
+    header.putInt(HEADER_SIZE);
+    header.putInt(keys.length);
+    header.putShort((short) pc);
+    header.put((byte) a);
+    header.put((byte) x);
+    header.put((byte) y);
+    header.put((byte) sp);
+    header.put((byte) flags);
+    header.put((byte) (halt ? 1 : 0));
+    header.putLong(cycles);
+    header.put((byte) lastOut);
+    header.clear();
+    ByteBuffer[] buffers = {
+      header,
+      memory.duplicate().clear(),
+      ByteBuffer.wrap(keys),
+    };
+    try (
+      FileChannel ch = FileChannel.open(
+        file,
+        StandardOpenOption.CREATE,
+        StandardOpenOption.WRITE,
+        StandardOpenOption.TRUNCATE_EXISTING
+      )
+    ) {
+      long remaining = HEADER_SIZE + PagedMemory.SIZE + keys.length;
+      while (remaining > 0) {
+        remaining -= ch.write(buffers);
+      }
+    }
+  }
+
+  /**
+   * Reads a snapshot. RAM is memory-mapped rather than read, so this costs
+   * about the same no matter how much of it the machine uses.
+   */
+  public static Snapshot read(Path file) throws IOException {
+    try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ)) {
+      ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+      while (header.hasRemaining() && (ch.read(header) >= 0)) {}
+      header.flip();
+      byte[] magic = new byte[MAGIC.length];
+      if (header.remaining() >= MAGIC.length) {
+        header.get(magic);
+      }
+      if ((header.limit() < HEADER_SIZE) || !Arrays.equals(magic, MAGIC)) {
+        throw new IOException(file + " is not an Apple 1 snapshot");
+      }
+      int version = header.getShort();
+      if (version != VERSION) {
+        throw new IOException(
+          file + " has unsupported snapshot version " + version
+        );
+      }
+      int memoryOffset = header.getInt();
+      int keyCount = header.getInt();
+      int pc = header.getShort() & 0xffff;
+      int a = header.get() & 0xff;
+      int x = header.get() & 0xff;
+      int y = header.get() & 0xff;
+      int sp = header.get() & 0xff;
+      int flags = header.get() & 0xff;
+      boolean halt = header.get() != 0;
+      long cycles = header.getLong();
+      int lastOut = header.get() & 0xff;
+      if ((memoryOffset < HEADER_SIZE) || (keyCount < 0)) {
+        throw new IOException(file + " has a corrupt snapshot header");
+      }
+      long keysOffset = (long) memoryOffset + PagedMemory.SIZE;
+      if (ch.size() < keysOffset + keyCount) {
+        throw new IOException(file + " is truncated");
+      }
+      ByteBuffer memory = ch.map(
+        FileChannel.MapMode.READ_ONLY,
+        memoryOffset,
+        PagedMemory.SIZE
+      );
+      ByteBuffer keyBuffer = ByteBuffer.allocate(keyCount);
+      while (keyBuffer.hasRemaining()) {
+        if (ch.read(keyBuffer, keysOffset + keyBuffer.position()) < 0) {
+          throw new IOException(file + " is truncated");
+        }
+      }
+      return new Snapshot(
+        pc,
+        a,
+        x,
+        y,
+        sp,
+        flags,
+        halt,
+        cycles,
+        lastOut,
+        keyBuffer.array(),
+        memory
+      );
+    }
+  }
+}
@@ -0,0 +1,134 @@
+package a1em;
+
+import java.util.Arrays;
+
+/**
+ * The Apple 1's 40x24 display, without drawing it. Like the real terminal
+ * section, it shows only upper case letters, digits and punctuation, moves
+ * to the next line on a carriage return or after the 40th column, scrolls
+ * up at the bottom, and ignores other control characters and DEL. The
+ * cursor is where the next character goes; the real one is a blinking @.
+ *
+ * <p>A renderer redraws only what changed: the rows scrolled since it last
+ * looked, from takeScrolled(), and a range of dirty columns in each row.
+ * Not thread safe; feed and draw it from one thread.
+ */
+public final class Terminal {
+
+  public static final int COLUMNS = 40;
+  public static final int ROWS = 24;
+
+  // Rows are kept in a ring, so scrolling moves no characters. Row r on the
+  // screen is row (top + r) % ROWS here, and so are the dirty ranges, which
+  // move with their row when it scrolls.
+  private final byte[] cells = new byte[ROWS * COLUMNS];
+  private final int[] dirtyFrom = new int[ROWS];
+  private final int[] dirtyTo = new int[ROWS];
+  private int top;
+  private int row;
+  private int column;
+  private int scrolled;
+
+  public Terminal() {
+    Arrays.fill(cells, (byte) ' ');
+    clearDirty();
+  }
+
+  /** Writes a character as the Apple 1 would display it. */
+  public void write(int ch) {
+    ch &= 0x7f;
+    if (ch == '\r') {
+      newLine();
+      return;
+    }
+    if ((ch < 0x20) || (ch == 0x7f)) {
+      // The monitor writes $7F when it sets up the PIA
+      return;
+    }
+    if (ch >= 0x60) {
+      // No lower case; the character generator drops bit 5
+      ch -= 0x20;
+    }
+    int r = physical(row);
+    cells[r * COLUMNS + column] = (byte) ch;
+    dirtyFrom[r] = Math.min(dirtyFrom[r], column);
+    dirtyTo[r] = Math.max(dirtyTo[r], column + 1);
+    if (++column == COLUMNS) {
+      newLine();
+    }
+  }
+
+  private void newLine() {
+    column = 0;
+    if (row < ROWS - 1) {
+      row++;
+      return;
+    }
+    // The top row becomes the new, blank bottom row
+    int r = top;
+    top = (top + 1) % ROWS;
+    Arrays.fill(cells, r * COLUMNS, (r + 1) * COLUMNS, (byte) ' ');
+    dirtyFrom[r] = 0;
+    dirtyTo[r] = COLUMNS;
+    scrolled++;
+  }
+
+  private int physical(int r) {
+    return (top + r) % ROWS;
+  }
+
+  public char charAt(int row, int column) {
+    return (char) cells[physical(row) * COLUMNS + column];
+  }
+
+  public int getCursorRow() {
+    return row;
+  }
+
+  public int getCursorColumn() {
+    return column;
+  }
+
+  /** Returns the rows scrolled since the last call, and resets the count. */
+  public int takeScrolled() {
+    int n = scrolled;
+    scrolled = 0;
+    return n;
+  }
+
+  /**
+   * Returns the first column in a row that changed since clearDirty(), or
+   * COLUMNS if none did.
+   */
+  public int getDirtyFrom(int row) {
+    return dirtyFrom[physical(row)];
+  }
+
+  /** Returns the column after the last one in a row that changed. */
+  public int getDirtyTo(int row) {
+    return dirtyTo[physical(row)];
+  }
+
+  public void clearDirty() {
+    Arrays.fill(dirtyFrom, COLUMNS);
+    Arrays.fill(dirtyTo, 0);
+  }
+
+  /** Marks the whole screen as changed, for a renderer that lost its image. */
+  public void markAllDirty() {
+    Arrays.fill(dirtyFrom, 0);
+    Arrays.fill(dirtyTo, COLUMNS);
+  }
+
+  /** Returns the screen as ROWS lines of COLUMNS characters. */
+  public String toString() {
+    StringBuilder b = new StringBuilder(ROWS * (COLUMNS + 1));
+    for (int r = 0; r < ROWS; r++) {
+      for (int c = 0; c < COLUMNS; c++) {
+        b.append(charAt(r, c));
+      }
+      b.append('\n');
+    }
+    return b.toString();
+  }
+}
@@ -0,0 +1,171 @@
+package a1em;
+
+import java.awt.Color;
+import java.awt.Component;
+import java.awt.Dimension;
+import java.awt.Font;
+import java.awt.FontMetrics;
+import java.awt.Graphics;
+import java.awt.Graphics2D;
+import java.awt.GraphicsConfiguration;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.awt.image.VolatileImage;
+
+/**
+ * Draws a Terminal for Swing. The screen is kept in a VolatileImage, and
+ * each paint only brings it up to date: rows that scrolled are moved with
+ * copyArea(), and just the changed cells are copied from an atlas of the
+ * 64 glyphs, drawn once from a monospaced font. The whole screen is only
+ * redrawn when the image is lost, or more than a screen has scrolled.
+ */
+final class TerminalRenderer {
+
+  private static final Color BACKGROUND = Color.BLACK;
+  private static final Color FOREGROUND = new Color(0x40, 0xff, 0x40);
+  private static final Font FONT = new Font(Font.MONOSPACED, Font.BOLD, 16);
+  private static final int FIRST_GLYPH = 0x20;
+  private static final int GLYPHS = 0x40;
+  private static final char CURSOR = '@';
+
+  private final Terminal terminal;
+  private final int cellWidth;
+  private final int cellHeight;
+  private final int ascent;
+  private final int width;
+  private final int height;
+  // Made for the component's graphics configuration on first paint
+  private BufferedImage atlas;
+  private VolatileImage image;
+  // Where the cursor was drawn in image, or -1 if it is not there
+  private int cursorRow = -1;
+  private int cursorColumn;
+
+  TerminalRenderer(Terminal terminal) {
+    this.terminal = terminal;
+    BufferedImage scratch = new BufferedImage(
+      1,
+      1,
+      BufferedImage.TYPE_INT_RGB
+    );
+    Graphics2D g = scratch.createGraphics();
+    FontMetrics metrics = g.getFontMetrics(FONT);
+    g.dispose();
+    cellWidth = metrics.charWidth('W');
+    cellHeight = metrics.getAscent() + metrics.getDescent();
+    ascent = metrics.getAscent();
+    width = Terminal.COLUMNS * cellWidth;
+    height = Terminal.ROWS * cellHeight;
+  }
+
+  Dimension getSize() {
+    return new Dimension(width, height);
+  }
+
+  private BufferedImage drawAtlas(GraphicsConfiguration config) {
+    BufferedImage glyphs = config.createCompatibleImage(
+      GLYPHS * cellWidth,
+      cellHeight
+    );
+    Graphics2D g = glyphs.createGraphics();
+    g.setColor(BACKGROUND);
+    g.fillRect(0, 0, glyphs.getWidth(), glyphs.getHeight());
+    g.setColor(FOREGROUND);
+    g.setFont(FONT);
+    g.setRenderingHint(
+      RenderingHints.KEY_TEXT_ANTIALIASING,
+      RenderingHints.VALUE_TEXT_ANTIALIAS_ON
+    );
+    for (int i = 0; i < GLYPHS; i++) {
+      String glyph = String.valueOf((char) (FIRST_GLYPH + i));
+      g.drawString(glyph, i * cellWidth, ascent);
+    }
+    g.dispose();
+    return glyphs;
+  }
+
+  /**
+   * Brings the screen image up to date and draws it on g, which belongs to
+   * target. Shows the cursor if cursorOn is true.
+   */
+  void paint(Graphics g, Component target, boolean cursorOn) {
+    GraphicsConfiguration config = target.getGraphicsConfiguration();
+    if (config == null) {
+      return;
+    }
+    if (atlas == null) {
+      atlas = drawAtlas(config);
+    }
+    do {
+      boolean lost;
+      if (image == null) {
+        image = target.createVolatileImage(width, height);
+        lost = true;
+      } else {
+        int status = image.validate(config);
+        if (status == VolatileImage.IMAGE_INCOMPATIBLE) {
+          image = target.createVolatileImage(width, height);
+        }
+        lost = status != VolatileImage.IMAGE_OK;
+      }
+      if (image == null) {
+        return;
+      }
+      Graphics2D ig = image.createGraphics();
+      try {
+        update(ig, lost, cursorOn);
+      } finally {
+        ig.dispose();
+      }
+      g.drawImage(image, 0, 0, null);
+    } while (image.contentsLost());
+  }
+
+  private void update(Graphics2D g, boolean lost, boolean cursorOn) {
+    int scrolled = terminal.takeScrolled();
+    if (lost || (scrolled >= Terminal.ROWS)) {
+      terminal.markAllDirty();
+      cursorRow = -1;
+    } else if (scrolled > 0) {
+      int dy = scrolled * cellHeight;
+      g.copyArea(0, dy, width, height - dy, 0, -dy);
+      cursorRow -= scrolled;
+    }
+    if (cursorRow >= 0) {
+      // Put back what the cursor covered
+      char under = terminal.charAt(cursorRow, cursorColumn);
+      drawCell(g, cursorRow, cursorColumn, under);
+      cursorRow = -1;
+    }
+    for (int row = 0; row < Terminal.ROWS; row++) {
+      int to = terminal.getDirtyTo(row);
+      for (int column = terminal.getDirtyFrom(row); column < to; column++) {
+        drawCell(g, row, column, terminal.charAt(row, column));
+      }
+    }
+    terminal.clearDirty();
+    if (cursorOn) {
+      cursorRow = terminal.getCursorRow();
+      cursorColumn = terminal.getCursorColumn();
+      drawCell(g, cursorRow, cursorColumn, CURSOR);
+    }
+  }
+
+  private void drawCell(Graphics2D g, int row, int column, char ch) {
+    int sx = (ch - FIRST_GLYPH) * cellWidth;
+    int dx = column * cellWidth;
+    int dy = row * cellHeight;
+    g.drawImage(
+      atlas,
+      dx,
+      dy,
+      dx + cellWidth,
+      dy + cellHeight,
+      sx,
+      0,
+      sx + cellWidth,
+      cellHeight,
+      null
+    );
+  }
+}
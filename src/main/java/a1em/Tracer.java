@@ -0,0 +1,244 @@
+package a1em;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Records the last instructions a CPU ran, with the registers and flags
+ * before each one, in a ring buffer. Attach one with M6502.setTracer().
+ * Recording stores two longs and allocates nothing. A tracer can also
+ * stream every record to a trace file, which main() turns back into text.
+ *
+ * <p>A trace file is a header of HEADER_SIZE bytes, starting with the magic
+ * number "A1TRACE" and a format version, then RECORD_SIZE bytes for each
+ * instruction. All numbers are big endian. A record is two longs: the PC in
+ * bits 0-15, the opcode and up to two operand bytes in bits 16-39, and A, X
+ * and Y in bits 40-63 of the first; SP in bits 0-7, the flags in bits 8-15,
+ * and the cycle count the instruction started on in bits 16-63 of the
+ * second.
+ */
+public final class Tracer implements Closeable {
+
+  public static final int VERSION = 1;
+  public static final int HEADER_SIZE = 16;
+  public static final int RECORD_SIZE = 16;
+
+  private static final byte[] MAGIC = { 'A', '1', 'T', 'R', 'A', 'C', 'E' };
+  private static final int STREAM_BUFFER_SIZE = 1 << 16;
+  private static final int LINE_SIZE = 24 + M6502.DUMP_SIZE;
+
+  // Two longs per record, oldest overwritten first
+  private final long[] ring;
+  private final int mask;
+  private long recorded;
+  private FileChannel channel;
+  private ByteBuffer stream;
+  // The first write to the trace file that failed, thrown by close()
+  private IOException streamError;
+
+  /**
+   * Creates a tracer that keeps at least the given number of instructions,
+   * rounded up to a power of two.
+   */
+  public Tracer(int capacity) {
+    int size = Integer.highestOneBit(Math.max(1, capacity - 1)) << 1;
+    ring = new long[2 * size];
+    mask = size - 1;
+  }
+
+  /**
+   * Writes every instruction recorded from now on to file, replacing it if
+   * it exists, until close() is called.
+   */
+  public void streamTo(Path file) throws IOException {
+    close();
+    channel = FileChannel.open(
+      file,
+      StandardOpenOption.CREATE,
+      StandardOpenOption.WRITE,
+      StandardOpenOption.TRUNCATE_EXISTING
+    );
+    stream = ByteBuffer.allocateDirect(STREAM_BUFFER_SIZE);
+    stream.put(MAGIC);
+    stream.putShort((short) VERSION);
+    stream.position(HEADER_SIZE);
+  }
+
+  // Records the state before an instruction runs. end() adds the operand,
+  // which step() decodes, to save reading it from memory again.
+  void begin(M6502 cpu, int where, int op) {
+    long first =
+      where |
+      (op << 16) |
+      ((long) cpu.a << 40) |
+      ((long) cpu.x << 48) |
+      ((long) cpu.y << 56);
+    long second = cpu.getSP() | (cpu.getFlags() << 8) | (cpu.cycles << 16);
+    int i = (int) (recorded & mask) << 1;
+    ring[i] = first;
+    ring[i + 1] = second;
+  }
+
+  void end(int operand) {
+    int i = (int) (recorded & mask) << 1;
+    long first = ring[i] | ((long) operand << 24);
+    ring[i] = first;
+    recorded++;
+    if (stream != null) {
+      stream.putLong(first);
+      stream.putLong(ring[i + 1]);
+      if (!stream.hasRemaining()) {
+        flushStream();
+      }
+    }
+  }
+
+  private void flushStream() {
+    stream.flip();
+    try {
+      while (stream.hasRemaining()) {
+        channel.write(stream);
+      }
+      stream.clear();
+    } catch (IOException e) {
+      streamError = e;
+      stream = null;
+    }
+  }
+
+  /** Writes out and closes the trace file, if any. */
+  public void close() throws IOException {
+    if (channel == null) {
+      return;
+    }
+    if (stream != null) {
+      flushStream();
+    }
+    channel.close();
+    channel = null;
+    stream = null;
+    IOException e = streamError;
+    streamError = null;
+    if (e != null) {
+      throw e;
+    }
+  }
+
+  /** Returns the number of instructions recorded since this was created. */
+  public long getRecorded() {
+    return recorded;
+  }
+
+  /**
+   * Writes up to the last count instructions recorded to out as text, oldest
+   * first.
+   */
+  public void dump(OutputStream out, int count) throws IOException {
+    long available = Math.min(recorded, mask + 1);
+    long first = recorded - Math.min(count, available);
+    Renderer renderer = new Renderer();
+    byte[] line = new byte[LINE_SIZE];
+    for (long n = first; n < recorded; n++) {
+      int i = (int) (n & mask) << 1;
+      out.write(line, 0, renderer.render(ring[i], ring[i + 1], line));
+    }
+    out.flush();
+  }
+
+  // Turns records back into text with a CPU that has only the recorded
+  // instruction in its memory, so it shows the instruction as it was run
+  private static final class Renderer {
+
+    private final PagedMemory mem = new PagedMemory();
+    private final M6502 cpu = new M6502(mem, 0);
+
+    int render(long first, long second, byte[] out) {
+      int pc = (int) first & 0xffff;
+      for (int n = 0; n < 3; n++) {
+        mem.poke(pc + n, (int) (first >>> (16 + 8 * n)) & 0xff);
+      }
+      cpu.pc = pc;
+      cpu.a = (int) (first >>> 40) & 0xff;
+      cpu.x = (int) (first >>> 48) & 0xff;
+      cpu.y = (int) (first >>> 56) & 0xff;
+      cpu.setSP((int) second & 0xff);
+      cpu.setFlags((int) (second >>> 8) & 0xff);
+      long cycles = second >>> 16;
+      int i = out.length - M6502.DUMP_SIZE;
+      int start = i;
+      do {
+        out[--start] = (byte) ('0' + (cycles % 10));
+        cycles /= 10;
+      } while (cycles != 0);
+      int length = i - start;
+      System.arraycopy(out, start, out, 0, length);
+      i = length;
+      while (i < 12) {
+        out[i++] = ' ';
+      }
+      out[i++] = ' ';
+      out[i++] = ' ';
+      i = cpu.dump(out, i, false);
+      out[i++] = '\n';
+      return i;
+    }
+  }
+
+  /** Writes the instructions recorded in a trace file to out as text. */
+  public static void decode(Path file, OutputStream out) throws IOException {
+    try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ)) {
+      ByteBuffer buffer = ByteBuffer.allocate(STREAM_BUFFER_SIZE);
+      while ((buffer.position() < HEADER_SIZE) && (ch.read(buffer) >= 0)) {}
+      buffer.flip();
+      byte[] magic = new byte[MAGIC.length];
+      if (buffer.remaining() >= HEADER_SIZE) {
+        buffer.get(magic);
+      }
+      if (!Arrays.equals(magic, MAGIC)) {
+        throw new IOException(file + " is not an Apple 1 trace");
+      }
+      int version = buffer.getShort();
+      if (version != VERSION) {
+        throw new IOException(
+          file + " has unsupported trace version " + version
+        );
+      }
+      buffer.position(HEADER_SIZE);
+      Renderer renderer = new Renderer();
+      byte[] line = new byte[LINE_SIZE];
+      while (true) {
+        while (buffer.remaining() >= RECORD_SIZE) {
+          long first = buffer.getLong();
+          long second = buffer.getLong();
+          out.write(line, 0, renderer.render(first, second, line));
+        }
+        buffer.compact();
+        if (ch.read(buffer) < 0) {
+          break;
+        }
+        buffer.flip();
+      }
+      if (buffer.position() > 0) {
+        throw new IOException(file + " is truncated");
+      }
+    }
+    out.flush();
+  }
+
+  /** Prints a trace file written with streamTo(). */
+  public static void main(String args[]) throws IOException {
+    if (args.length != 1) {
+      System.err.println("Usage: Tracer <trace file>");
+      System.exit(1);
+    }
+    decode(Paths.get(args[0]), new BufferedOutputStream(System.out));
+  }
+}
@@ -0,0 +1,67 @@
+package a1em;
+
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Starts virtual threads when the running JVM has them (Java 21 and later),
+ * and ordinary daemon threads otherwise. The build targets Java 17, so the
+ * virtual thread API is looked up by reflection.
+ */
+final class VirtualThreads {
+
+  // Creates virtual threads, or null if this JVM has none
+  private static final ThreadFactory FACTORY;
+
+  static {
+    ThreadFactory factory = null;
+    try {
+      Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+      factory = (ThreadFactory) Class
+        .forName("java.lang.Thread$Builder")
+        .getMethod("factory")
+        .invoke(builder);
+    } catch (ReflectiveOperationException e) {
+      factory = null;
+    }
+    FACTORY = factory;
+  }
+
+  private VirtualThreads() {}
+
+  public static boolean isSupported() {
+    return FACTORY != null;
+  }
+
+  /** Starts a virtual thread, or a daemon platform thread as a fallback. */
+  public static Thread start(String name, Runnable task) {
+    Thread t;
+    if (FACTORY != null) {
+      t = FACTORY.newThread(task);
+      t.setName(name);
+    } else {
+      t = new Thread(task, name);
+      t.setDaemon(true);
+    }
+    t.start();
+    return t;
+  }
+
+  /**
+   * Returns the number of platform threads carrying virtual threads, or 0 if
+   * virtual threads are not supported.
+   */
+  public static int carrierCount() {
+    if (FACTORY == null) {
+      return 0;
+    }
+    int count = 0;
+    for (Thread t : Thread.getAllStackTraces().keySet()) {
+      // The default scheduler is a ForkJoinPool whose workers are named
+      // ForkJoinPool-<n>-worker-<m>
+      if (t.getName().startsWith("ForkJoinPool-")) {
+        count++;
+      }
+    }
+    return count;
+  }
+}
@@ -0,0 +1,89 @@
+package a1em;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.function.BooleanSupplier;
+import org.junit.jupiter.api.Test;
+
+public class Apple1HostTest {
+
+  private static final long TIMEOUT_NANOS = 10000000000L;
+
+  private static final class Input extends ByteArrayInputStream {
+
+    volatile boolean closed;
+
+    Input(String text) {
+      super(text.getBytes());
+    }
+
+    @Override
+    public void close() {
+      closed = true;
+    }
+  }
+
+  private static final class Output extends ByteArrayOutputStream {
+
+    volatile boolean closed;
+
+    @Override
+    public void close() {
+      closed = true;
+    }
+  }
+
+  private static void waitFor(BooleanSupplier condition) throws Exception {
+    long start = System.nanoTime();
+    while (!condition.getAsBoolean()) {
+      assertTrue(System.nanoTime() - start < TIMEOUT_NANOS, "Timed out");
+      Thread.sleep(1);
+    }
+  }
+
+  @Test
+  public void feedsInputAndClosesStreams() throws Exception {
+    for (boolean virtual : new boolean[] { false, true }) {
+      Apple1Host host = new Apple1Host(2, 0, virtual);
+      Input in = new Input("FF00.FF03\n");
+      Output out = new Output();
+      host.start(in, out);
+      // Reading $D020 is an I/O error, which halts the machine
+      Input haltIn = new Input("D020\n");
+      Output haltOut = new Output();
+      host.start(haltIn, haltOut);
+
+      waitFor(() -> out.toString().endsWith("FF00: D8 58 A0 7F\r\n"));
+      waitFor(() -> haltOut.closed && haltIn.closed);
+      waitFor(() -> host.getIdleCount() == 1);
+      assertEquals(1, host.getMachineCount());
+
+      host.close();
+      waitFor(() -> out.closed && in.closed);
+      waitFor(() -> host.getMachineCount() == 0);
+    }
+  }
+
+  @Test
+  public void poolReadsInputWithoutAThreadPerMachine() throws Exception {
+    Apple1Host host = new Apple1Host(2, 0);
+    int machines = 50;
+    // Several times what fits in the keyboard buffer
+    String input = "FF00.FF03\n".repeat(300);
+    int threads = Thread.activeCount();
+    Output[] outs = new Output[machines];
+    for (int i = 0; i < machines; i++) {
+      outs[i] = new Output();
+      host.start(new Input(input), outs[i]);
+    }
+    assertTrue(Thread.activeCount() <= threads + 4, "Too many threads");
+    for (Output out : outs) {
+      waitFor(() -> out.toString().split("FF00: D8 58 A0 7F").length == 301);
+    }
+    waitFor(() -> host.getIdleCount() == machines);
+    host.close();
+  }
+}
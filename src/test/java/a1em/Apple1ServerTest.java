@@ -0,0 +1,174 @@
+package a1em;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import org.junit.jupiter.api.Test;
+
+public class Apple1ServerTest {
+
+  private static final long IDLE_TIMEOUT_NANOS = 1000000000L;
+
+  // Reads until the text so far ends with expected, and returns all of it
+  private static String readUntil(InputStream in, String expected)
+    throws Exception {
+    StringBuilder text = new StringBuilder();
+    while (!text.toString().endsWith(expected)) {
+      int b = in.read();
+      assertTrue(b >= 0, "Closed after: " + text);
+      text.append((char) b);
+    }
+    return text.toString();
+  }
+
+  private static Thread serve(Apple1Server server) {
+    Thread serverThread = new Thread(() -> {
+      try {
+        server.run();
+      } catch (Exception e) {
+        e.printStackTrace();
+      }
+    });
+    serverThread.start();
+    return serverThread;
+  }
+
+  @Test
+  public void servesASessionPerConnection() throws Exception {
+    InetAddress local = InetAddress.getLoopbackAddress();
+    Apple1Server server = new Apple1Server(
+      new InetSocketAddress(local, 0),
+      0,
+      IDLE_TIMEOUT_NANOS,
+      null
+    );
+    Thread serverThread = serve(server);
+    try (
+      Socket first = new Socket(local, server.getPort());
+      Socket second = new Socket(local, server.getPort())
+    ) {
+      first.setSoTimeout(10000);
+      second.setSoTimeout(10000);
+      InputStream in = first.getInputStream();
+      OutputStream out = first.getOutputStream();
+      readUntil(in, "\\\r\n");
+      // Telnet commands and CR LF, none of which should be typed
+      out.write(new byte[] { (byte) 255, (byte) 253, 1 });
+      // prettier-ignore
+      out.write(new byte[] {
+        (byte) 255, (byte) 250, 24, 0, 'x', // IAC SB TERMINAL-TYPE IS x
+        (byte) 255, (byte) 255, //             IAC IAC, a 255 within it
+        (byte) 255, (byte) 240 //              IAC SE
+      });
+      out.write("ff00.ff03\r\n".getBytes("US-ASCII"));
+      out.flush();
+      readUntil(in, "FF00: D8 58 A0 7F\r\n");
+      readUntil(second.getInputStream(), "\\\r\n");
+      assertEquals(2, server.getSessionCount());
+
+      // Both go quiet, and are closed after the idle timeout
+      long start = System.nanoTime();
+      assertEquals(-1, in.read());
+      assertTrue(System.nanoTime() - start >= IDLE_TIMEOUT_NANOS / 2);
+    } finally {
+      server.close();
+      serverThread.join();
+    }
+    assertEquals(0, server.getSessionCount());
+  }
+
+  @Test
+  public void slowClientOnlyHoldsUpItsOwnMachine() throws Exception {
+    // A dump of memory below the I/O page, far more than the buffers
+    // between a machine and its client hold
+    String command = "0.CFFF\n";
+    ByteArrayOutputStream expected = new ByteArrayOutputStream();
+    Apple1 reference = new Apple1(expected, 0);
+    TestMachines.runUntilIdle(reference);
+    TestMachines.type(reference, command);
+    TestMachines.runUntilIdle(reference);
+
+    InetAddress local = InetAddress.getLoopbackAddress();
+    Apple1Server server = new Apple1Server(
+      new InetSocketAddress(local, 0),
+      0,
+      60 * IDLE_TIMEOUT_NANOS,
+      null
+    );
+    Thread serverThread = serve(server);
+    try (Socket slow = new Socket(); Socket other = new Socket()) {
+      slow.setReceiveBufferSize(4096);
+      slow.connect(new InetSocketAddress(local, server.getPort()));
+      other.connect(new InetSocketAddress(local, server.getPort()));
+      slow.setSoTimeout(10000);
+      other.setSoTimeout(10000);
+      slow.getOutputStream().write(command.getBytes("US-ASCII"));
+
+      // The slow client's machine waits without taking up a worker
+      InputStream in = other.getInputStream();
+      readUntil(in, "\\\r\n");
+      other.getOutputStream().write("ff00.ff03\n".getBytes("US-ASCII"));
+      readUntil(in, "FF00: D8 58 A0 7F\r\n");
+
+      in = new BufferedInputStream(slow.getInputStream());
+      byte[] dump = in.readNBytes(expected.size());
+      assertEquals(expected.toString("US-ASCII"), new String(dump, "US-ASCII"));
+    } finally {
+      server.close();
+      serverThread.join();
+    }
+  }
+
+  @Test
+  public void typesAheadAndClosesWhenTheMachineHalts() throws Exception {
+    InetAddress local = InetAddress.getLoopbackAddress();
+    Apple1Server server = new Apple1Server(
+      new InetSocketAddress(local, 0),
+      0,
+      60 * IDLE_TIMEOUT_NANOS,
+      null
+    );
+    Thread serverThread = serve(server);
+    try (Socket socket = new Socket(local, server.getPort())) {
+      socket.setSoTimeout(10000);
+      InputStream in = new BufferedInputStream(socket.getInputStream());
+      readUntil(in, "\\\r\n");
+      // A program that reads keys without echoing them until it gets a !,
+      // then goes back to the monitor:
+      //   0300 loop: LDA $D011 / BPL loop / LDA $D010 / CMP #'!' / BNE loop
+      //   030C       JMP $FF00
+      String program =
+        "300: AD 11 D0 10 FB AD 10 D0 C9 A1 D0 F4 4C 00 FF\r300R\r";
+      // It is typed several times what fits in the keyboard buffer, and
+      // then the monitor reads $D020, which halts the machine
+      String keys = program + "x".repeat(3000) + "!d020\r";
+      socket.getOutputStream().write(keys.getBytes("US-ASCII"));
+      readUntil(in, "\\\r\nD020\r\n");
+      long start = System.nanoTime();
+      while (in.read() >= 0) {
+        // The error report
+      }
+      assertTrue(System.nanoTime() - start < IDLE_TIMEOUT_NANOS);
+      waitForNoSessions(server);
+    } finally {
+      server.close();
+      serverThread.join();
+    }
+  }
+
+  private static void waitForNoSessions(Apple1Server server)
+    throws Exception {
+    long start = System.nanoTime();
+    while (server.getSessionCount() > 0) {
+      assertTrue(System.nanoTime() - start < IDLE_TIMEOUT_NANOS);
+      Thread.sleep(1);
+    }
+  }
+}
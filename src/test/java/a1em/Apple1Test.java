@@ -0,0 +1,139 @@
+package a1em;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import org.junit.jupiter.api.Test;
+
+public class Apple1Test {
+
+  // A display whose reader falls behind after every batch
+  private static final class SlowDisplay extends ByteArrayOutputStream {
+
+    Apple1 machine;
+
+    @Override
+    public void flush() {
+      machine.holdDisplay();
+    }
+  }
+
+  @Test
+  public void ioErrorHaltsAtTheFaultingInstruction() {
+    Apple1 machine = new Apple1(OutputStream.nullOutputStream(), 0);
+    // prettier-ignore
+    TestMachines.load(machine.getMemory(), 0x300,
+      0xad, 0x20, 0xd0, // LDA $D020   (not the PIA)
+      0xe8, //             loop: INX
+      0x4c, 0x03, 0x03 //  JMP loop
+    );
+    M6502 cpu = machine.getCpu();
+    for (boolean compile : new boolean[] { false, true }) {
+      cpu.halt = false;
+      cpu.pc = 0x300;
+      cpu.x = 0;
+      cpu.setBlockCompilation(compile);
+      long start = cpu.cycles;
+      assertEquals(M6502.StopReason.HALT, cpu.run(100000));
+      assertTrue(machine.isHalted());
+      assertEquals(0x303, cpu.pc);
+      assertEquals(0, cpu.x);
+      assertEquals(4, cpu.cycles - start);
+    }
+  }
+
+  @Test
+  public void pollingLoopParksTheMachine() throws Exception {
+    Apple1 machine = new Apple1(OutputStream.nullOutputStream(), 0);
+    M6502 cpu = machine.getCpu();
+    // The monitor goes straight to its keyboard loop, and is parked after a
+    // few hundred cycles there rather than spinning through the budget
+    TestMachines.runUntilIdle(machine);
+    assertTrue(machine.isIdle());
+    assertTrue(cpu.cycles < 10000, "Went idle after " + cpu.cycles);
+
+    Thread runner = new Thread(machine::run);
+    runner.start();
+    while (runner.getState() != Thread.State.WAITING) {
+      Thread.sleep(1);
+    }
+    long before = cpu.cycles;
+    Thread.sleep(20);
+    assertEquals(before, cpu.cycles);
+    machine.stop();
+    runner.join();
+
+    // Waking up counts the time spent parked, 20 ms or more at 1.023 MHz
+    assertFalse(machine.isIdle());
+    long skipped = machine.getIdleCyclesSkipped();
+    assertTrue(skipped >= 20000, "Skipped " + skipped);
+    assertEquals(before + skipped, cpu.cycles);
+
+    // A loop that does more between reads of the status is not polling
+    // prettier-ignore
+    TestMachines.load(machine.getMemory(), 0x300,
+      0xad, 0x11, 0xd0, // loop: LDA $D011
+      0xa2, 0x08, //       LDX #$08
+      0xca, //             DEX
+      0xd0, 0xfd, //       BNE *-1
+      0x4c, 0x00, 0x03 //  JMP loop
+    );
+    cpu.pc = 0x300;
+    assertEquals(M6502.StopReason.BUDGET, machine.runUntilIdle(100000));
+    assertFalse(machine.isIdle());
+    assertEquals(skipped, machine.getIdleCyclesSkipped());
+  }
+
+  @Test
+  public void idleTimeSurvivesASliceWithoutAKey() throws Exception {
+    Apple1 machine = new Apple1(OutputStream.nullOutputStream(), 0);
+    TestMachines.runUntilIdle(machine);
+    Thread.sleep(20);
+    // As when a host wakes the machine and there is no key after all
+    machine.runSlice();
+    assertTrue(machine.isIdle());
+    machine.resume();
+    long skipped = machine.getIdleCyclesSkipped();
+    assertTrue(skipped >= 20000, "Skipped " + skipped);
+  }
+
+  @Test
+  public void heldDisplayStopsTheMachine() {
+    // A dump of $0000-$0FFF, which is written in several batches
+    String command = "0.FFF\n";
+    ByteArrayOutputStream expected = new ByteArrayOutputStream();
+    Apple1 reference = new Apple1(expected, 0);
+    TestMachines.runUntilIdle(reference);
+    TestMachines.type(reference, command);
+    TestMachines.runUntilIdle(reference);
+
+    SlowDisplay out = new SlowDisplay();
+    Apple1 machine = new Apple1(out, 0);
+    out.machine = machine;
+    TestMachines.runUntilIdle(machine);
+    assertTrue(machine.isDisplayHeld());
+    int prompt = out.size();
+    machine.releaseDisplay();
+    TestMachines.type(machine, command);
+    assertEquals(M6502.StopReason.IO_WAIT, machine.runUntilIdle(1000000));
+    assertTrue(machine.isDisplayHeld());
+    assertFalse(machine.isIdle());
+    assertEquals(prompt + 4096, out.size());
+
+    // Nothing runs until the display is released
+    long cycles = machine.getCpu().cycles;
+    machine.runSlice();
+    assertEquals(cycles, machine.getCpu().cycles);
+    int batches = 1;
+    while (!machine.isIdle()) {
+      machine.releaseDisplay();
+      TestMachines.runUntilIdle(machine);
+      batches++;
+    }
+    assertTrue(batches > 2, batches + " batches");
+    assertEquals(expected.toString(), out.toString());
+  }
+}
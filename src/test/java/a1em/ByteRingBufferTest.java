@@ -0,0 +1,86 @@
+package a1em;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.ByteBuffer;
+import org.junit.jupiter.api.Test;
+
+public class ByteRingBufferTest {
+
+  @Test
+  public void offerFailsWhenFull() {
+    ByteRingBuffer buffer = new ByteRingBuffer(3);
+    assertEquals(4, buffer.capacity());
+    for (int i = 0; i < 4; i++) {
+      assertTrue(buffer.offer(i));
+    }
+    assertFalse(buffer.offer(4));
+    assertEquals(0, buffer.remaining());
+    assertEquals(0, buffer.poll());
+    assertTrue(buffer.offer(0xff));
+    assertEquals(4, buffer.toArray().length);
+    for (int i = 1; i < 4; i++) {
+      assertEquals(i, buffer.poll());
+    }
+    assertEquals(0xff, buffer.poll());
+    assertTrue(buffer.isEmpty());
+    assertEquals(-1, buffer.poll());
+  }
+
+  @Test
+  public void drainToCopiesAcrossTheWrap() {
+    ByteRingBuffer buffer = new ByteRingBuffer(8);
+    for (int i = 0; i < 6; i++) {
+      buffer.offer(i);
+      buffer.poll();
+    }
+    // These go in slots 6, 7, 0, 1 and 2
+    for (int i = 10; i < 15; i++) {
+      assertTrue(buffer.offer(i));
+    }
+    ByteBuffer out = ByteBuffer.allocate(3);
+    assertEquals(3, buffer.drainTo(out));
+    assertEquals(0, out.remaining());
+    assertEquals(ByteBuffer.wrap(new byte[] { 10, 11, 12 }), out.flip());
+
+    for (int i = 15; i < 21; i++) {
+      assertTrue(buffer.offer(i));
+    }
+    out = ByteBuffer.allocate(16);
+    assertEquals(8, buffer.drainTo(out));
+    out.flip();
+    for (int i = 13; i < 21; i++) {
+      assertEquals(i, out.get());
+    }
+    assertTrue(buffer.isEmpty());
+    assertEquals(0, buffer.drainTo(out));
+  }
+
+  @Test
+  public void putWaitsForTheConsumer() throws Exception {
+    ByteRingBuffer buffer = new ByteRingBuffer(16);
+    // Enough to fill the buffer and wait for room many times over
+    int count = 4000;
+    Thread producer = new Thread(() -> {
+      try {
+        for (int i = 0; i < count; i++) {
+          buffer.put(i);
+        }
+      } catch (InterruptedException e) {
+        throw new IllegalStateException(e);
+      }
+    });
+    producer.start();
+    for (int i = 0; i < count; i++) {
+      int b;
+      while ((b = buffer.poll()) < 0) {
+        Thread.onSpinWait();
+      }
+      assertEquals(i & 0xff, b);
+    }
+    producer.join();
+    assertTrue(buffer.isEmpty());
+  }
+}
@@ -0,0 +1,98 @@
+package a1em;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import org.junit.jupiter.api.Test;
+
+public class ConditionParserTest {
+
+  private static void check(M6502 cpu, boolean expected, String condition) {
+    assertEquals(
+      expected,
+      ConditionParser.parse(condition).test(cpu),
+      condition
+    );
+  }
+
+  private static M6502 cpu() {
+    PagedMemory mem = new PagedMemory();
+    mem.poke(0x10, 0x99);
+    M6502 cpu = new M6502(mem, 0x300);
+    cpu.a = 0x41;
+    cpu.x = 3;
+    cpu.y = 0;
+    cpu.setSP(0xfd);
+    cpu.setFlags(
+      M6502.nFlag | M6502.vFlag | M6502.rFlag | M6502.dFlag | M6502.cFlag
+    );
+    return cpu;
+  }
+
+  @Test
+  public void followsPrecedence() {
+    M6502 cpu = cpu();
+    check(cpu, true, "1 || 0 && 0");
+    check(cpu, false, "(1 || 0) && 0");
+    check(cpu, true, "X == 3 || X == 4 && 0");
+    check(cpu, true, "1 + 2 == 3");
+    check(cpu, true, "A - 1 == $40");
+    check(cpu, true, "-1 + 2 == 1");
+    // Unlike C, the bitwise operators bind tighter than comparisons
+    check(cpu, true, "P & $81 == $81");
+    check(cpu, true, "2 | 1 == 3");
+    check(cpu, true, "A ^ 1 == $40");
+    check(cpu, true, "X + 1 & 6 == 4");
+  }
+
+  @Test
+  public void tellsOperatorsApart() {
+    M6502 cpu = cpu();
+    check(cpu, true, "!0");
+    check(cpu, false, "!A");
+    check(cpu, true, "!!A");
+    check(cpu, false, "A != $41");
+    check(cpu, true, "A!=0");
+    check(cpu, false, "!X != 0");
+    check(cpu, true, "A & 1");
+    check(cpu, false, "A & 2");
+    check(cpu, true, "A&&2");
+    check(cpu, true, "A & $40 && X");
+    check(cpu, true, "X | 0 || 0");
+    check(cpu, true, "X <= 3 && X >= 3 && X < 4 && X > 2");
+  }
+
+  @Test
+  public void readsNumbersRegistersAndFlags() {
+    M6502 cpu = cpu();
+    check(cpu, true, "$41 == 65 && 0x41 == 65 && 0X41 == A");
+    check(cpu, true, "$ff == 255 && $FF == 255");
+    check(cpu, true, "SP == $FD && S == SP");
+    check(cpu, true, "PC == $0300 && Y == 0");
+    check(cpu, true, "[$10] == $99 && [$0F + 1] == $99");
+    check(cpu, true, "N && V && D && C");
+    check(cpu, false, "B || I || Z");
+    check(cpu, true, "n && c && !z && a == $41");
+  }
+
+  @Test
+  public void rejectsBadConditions() {
+    String[] bad = {
+      "",
+      "A ==",
+      "A == $",
+      "Q",
+      "(A",
+      "[$10",
+      "A = 1",
+      "A == $100000000",
+    };
+    for (String condition : bad) {
+      assertThrows(
+        IllegalArgumentException.class,
+        () -> ConditionParser.parse(condition),
+        condition
+      );
+    }
+  }
+}
@@ -0,0 +1,63 @@
+package a1em;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import org.junit.jupiter.api.Test;
+
+public class DisplayOutputTest {
+
+  private static final long HOUR_NANOS = 3600000000000L;
+
+  @Test
+  public void flushesWhenTheBufferFills() {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    DisplayOutput display = new DisplayOutput(out, 4, HOUR_NANOS);
+    for (char ch : "ABCD".toCharArray()) {
+      display.write(ch);
+    }
+    assertEquals(0, out.size());
+    assertTrue(display.hasPending());
+    display.write('E');
+    assertEquals("ABCD", out.toString());
+    display.flush();
+    assertEquals("ABCDE", out.toString());
+    assertFalse(display.hasPending());
+  }
+
+  @Test
+  public void flushesOnceTheDelayHasPassed() throws Exception {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    DisplayOutput display = new DisplayOutput(out, 4096, HOUR_NANOS);
+    display.write('A');
+    display.flushIfDue();
+    assertEquals(0, out.size());
+
+    display = new DisplayOutput(out, 4096, 1000000L);
+    display.write('B');
+    Thread.sleep(5);
+    // Only the oldest character counts, not the last
+    display.write('C');
+    display.flushIfDue();
+    assertEquals("BC", out.toString());
+    display.flushIfDue();
+    assertEquals("BC", out.toString());
+  }
+
+  @Test
+  public void machineFlushesWhenIdle() {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    Apple1 machine = new Apple1(out, 0);
+    // The monitor prints its prompt, after the $7F it writes while setting
+    // up the PIA, and waits for a key. Going idle flushes it at once, however
+    // little time has passed.
+    TestMachines.runUntilIdle(machine);
+    String prompt = "\u007f\\\r\n";
+    assertEquals(prompt, out.toString());
+    TestMachines.type(machine, "FF00\n");
+    TestMachines.runUntilIdle(machine);
+    assertEquals(prompt + "FF00\r\n\r\nFF00: D8\r\n", out.toString());
+  }
+}
@@ -1,16 +1,21 @@
 package a1em;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
+import java.io.ByteArrayOutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import org.junit.jupiter.api.Test;
 
 public class M6502Test {
 
-  @Test
-  public void runFunctionalTest() {
+  private static M6502.Memory loadFunctionalTest() {
     ResourceHelper resources = new ResourceHelper();
     final int[] mem = resources.loadBinaryResource("rom.functional", 65536);
-    final M6502.Memory memInterface = new M6502.Memory() {
+    return new M6502.Memory() {
       @Override
       public int read(int where) {
         return mem[where];
@@ -21,12 +26,13 @@ public class M6502Test {
         mem[where] = what;
       }
     };
+  }
+
+  @Test
+  public void runFunctionalTest() {
+    final M6502.Memory memInterface = loadFunctionalTest();
     M6502 cpu = new M6502(memInterface, 0x400);
-    int oldPc = 0;
-    while (oldPc != cpu.pc) {
-      oldPc = cpu.pc;
-      cpu.step();
-    }
+    assertEquals(M6502.StopReason.JUMP_TO_SELF, cpu.run(Long.MAX_VALUE));
     // When the regression test completes, without errors, it loops.
     // From
     // https://github.com/Klaus2m5/6502_65C02_functional_tests/blob/master/bin_files/6502_functional_test.lst
@@ -36,6 +42,485 @@ public class M6502Test {
     // 3469 : 4c6934        jmp *           ;test passed, no errors
     //
     // If it loops at any other address, there has been some kind of failure.
+    assertEquals(13417, cpu.pc);
+  }
+
+  @Test
+  public void runStopsForEachReason() {
+    PagedMemory mem = new PagedMemory();
+    // prettier-ignore
+    TestMachines.load(mem, 0x200,
+      0xe8, //             INX
+      0xd0, 0xfd, //       BNE *-1
+      0x4c, 0x07, 0x02, // JMP $0207
+      0x02, //             (illegal)
+      0x4c, 0x07, 0x02 //  JMP *
+    );
+    M6502 cpu = new M6502(mem, 0x200);
+    assertEquals(M6502.StopReason.BUDGET, cpu.run(100));
+    assertTrue(cpu.cycles >= 100);
+    assertEquals(M6502.StopReason.BREAKPOINT, cpu.runUntil(0x203, 10000));
+    assertEquals(0, cpu.x);
+    assertEquals(M6502.StopReason.JUMP_TO_SELF, cpu.run(10000));
+    assertEquals(0x207, cpu.pc);
+
+    cpu.pc = 0x206;
+    assertEquals(M6502.StopReason.HALT, cpu.run(10000));
+    assertEquals(M6502.StopReason.HALT, cpu.run(10000));
+
+    cpu.halt = false;
+    cpu.pc = 0x200;
+    cpu.setBlockCompilation(true);
+    assertEquals(M6502.StopReason.JUMP_TO_SELF, cpu.run(Long.MAX_VALUE));
+    assertEquals(0x207, cpu.pc);
+  }
+
+  @Test
+  public void eventsDriveInterrupts() {
+    PagedMemory mem = new PagedMemory();
+    // prettier-ignore
+    TestMachines.load(mem, 0x200,
+      0xa2, 0x00, //       LDX #$00
+      0x58, //             CLI
+      0x4c, 0x03, 0x02 //  JMP *
+    );
+    mem.poke(0x300, 0xe8); // INX
+    mem.poke(0x301, 0x40); // RTI
+    mem.poke(0xfffe, 0x00);
+    mem.poke(0xffff, 0x03);
+    M6502 cpu = new M6502(mem, 0x200);
+
+    // A timer that interrupts every 1000 cycles. The CPU skips ahead to each
+    // one instead of stopping at the jump to itself, until none is due
+    // before the budget runs out.
+    M6502.Event timer = new M6502.Event() {
+      public void fire(long due) {
+        assertTrue(cpu.tryInterrupt());
+        cpu.scheduleAt(due + 1000, this);
+      }
+    };
+    cpu.schedule(1000, timer);
+    assertEquals(M6502.StopReason.JUMP_TO_SELF, cpu.run(100500));
+    assertEquals(100, cpu.x);
+    assertEquals(0x203, cpu.pc);
+    assertEquals(101000, cpu.nextEventCycle());
+    assertTrue(cpu.cancel(timer));
+    assertEquals(M6502.StopReason.JUMP_TO_SELF, cpu.run(100000));
+    assertEquals(100, cpu.x);
+
+    // A held IRQ line interrupts until it is released
+    cpu.setIRQ(true);
+    cpu.schedule(100, due -> cpu.setIRQ(false));
+    assertEquals(M6502.StopReason.JUMP_TO_SELF, cpu.run(100000));
+    assertTrue(cpu.x > 100);
+    assertEquals(0x203, cpu.pc);
+
+    // and waits while interrupts are disabled
+    int x = cpu.x;
+    cpu.setFlags(0x24);
+    cpu.setIRQ(true);
+    assertEquals(M6502.StopReason.JUMP_TO_SELF, cpu.run(100000));
+    assertEquals(x, cpu.x);
+  }
+
+  @Test
+  public void profilerCountsEachAddress() {
+    PagedMemory mem = new PagedMemory();
+    // prettier-ignore
+    TestMachines.load(mem, 0x200,
+      0xe8, //             INX
+      0xd0, 0xfd, //       BNE *-1
+      0x4c, 0x03, 0x02 //  JMP *
+    );
+    M6502 cpu = new M6502(mem, 0x200);
+    Profiler profiler = new Profiler();
+    cpu.setProfiler(profiler);
+    cpu.setBlockCompilation(true);
+    assertEquals(M6502.StopReason.JUMP_TO_SELF, cpu.run(100000));
+    assertEquals(256, profiler.getCount(0x200));
+    assertEquals(256, profiler.getCount(0x201));
+    assertEquals(1, profiler.getCount(0x203));
+    assertEquals(513, profiler.getInstructions());
+    assertEquals(cpu.cycles, profiler.getCycles());
+    assertTrue(profiler.report(cpu, 2).contains("INX"));
+  }
+
+  @Test
+  public void disassemblesIntoEachKindOfOutput() throws Exception {
+    PagedMemory mem = new PagedMemory();
+    // prettier-ignore
+    TestMachines.load(mem, 0x300,
+      0xd2, 0x12, //       CMP ($12)
+      0x7c, 0x34, 0x12 //  JMP ($1234, X)
+    );
+    M6502 cpu = new M6502(mem, 0x300);
+    assertEquals("CMP ($12)", cpu.disassemble(0x300));
+    assertEquals("JMP ($1234, X)", cpu.disassemble(0x302));
+
+    String dump = cpu.dump();
+    assertEquals(
+      "PC = $0300 A = $00 X = $00 Y = $00 SP = $FF nvRbdizc  CMP ($12)",
+      dump
+    );
+    StringBuilder text = new StringBuilder();
+    cpu.dump(text);
+    assertEquals(dump, text.toString());
+    byte[] bytes = new byte[M6502.DUMP_SIZE + 2];
+    assertEquals(dump.length() + 2, cpu.dump(bytes, 2));
+    assertEquals(dump, new String(bytes, 2, dump.length(), "US-ASCII"));
+
+    ByteArrayOutputStream listing = new ByteArrayOutputStream();
+    cpu.disassemble(0x300, 0x305, listing);
+    assertEquals(
+      "$0300  D2 12     CMP ($12)\n$0302  7C 34 12  JMP ($1234, X)\n",
+      listing.toString("US-ASCII")
+    );
+
+    // None of it reads devices or trips watchpoints, even for an operand
+    // that runs into a device page
+    int[] deviceReads = new int[1];
+    mem.mapDevice(
+      0xd0,
+      0xd0,
+      new M6502.Memory() {
+        public int read(int where) {
+          deviceReads[0]++;
+          return 0;
+        }
+
+        public void write(int where, int what) {}
+      }
+    );
+    mem.poke(0xcfff, 0xad); // LDA abs
+    cpu.watch(0x302, true, false);
+    int watchAddress = cpu.getWatchAddress();
+    listing.reset();
+    cpu.disassemble(0xcf00, 0xd100, listing);
+    assertTrue(listing.toString("US-ASCII").endsWith("LDA $0000\n"));
+    cpu.disassemble(0x302);
+    cpu.dump();
+    assertEquals(0, deviceReads[0]);
+    assertEquals(watchAddress, cpu.getWatchAddress());
+  }
+
+  @Test
+  public void tracerRecordsLastInstructions() throws Exception {
+    PagedMemory mem = new PagedMemory();
+    // prettier-ignore
+    TestMachines.load(mem, 0x300,
+      0xa9, 0x41, //       LDA #$41
+      0x8d, 0x00, 0x04, // STA $0400
+      0x02 //              (illegal)
+    );
+    M6502 cpu = new M6502(mem, 0x300);
+    Tracer tracer = new Tracer(2);
+    Path file = Files.createTempFile("a1em", ".trace");
+    tracer.streamTo(file);
+    cpu.setTracer(tracer);
+    assertEquals(M6502.StopReason.HALT, cpu.run(1000));
+    tracer.close();
+    assertEquals(3, tracer.getRecorded());
+
+    String expected =
+      "2             PC = $0302 A = $41 X = $00 Y = $00 SP = $FF nvRbdizc  STA $0400\n" +
+      "6             PC = $0305 A = $41 X = $00 Y = $00 SP = $FF nvRbdizc  ???\n";
+    ByteArrayOutputStream text = new ByteArrayOutputStream();
+    tracer.dump(text, 10);
+    assertEquals(expected, text.toString("US-ASCII"));
+    text.reset();
+    Tracer.decode(file, text);
+    Files.delete(file);
+    assertEquals(
+      "0             PC = $0300 A = $00 X = $00 Y = $00 SP = $FF nvRbdizc  LDA #$41\n" +
+      expected,
+      text.toString("US-ASCII")
+    );
+  }
+
+  @Test
+  public void breakpointsAndWatchpointsStopRun() {
+    PagedMemory mem = new PagedMemory();
+    // prettier-ignore
+    TestMachines.load(mem, 0x300,
+      0xa2, 0x00, //       LDX #$00
+      0xe8, //             loop: INX
+      0x8e, 0x00, 0x04, // STX $0400
+      0xad, 0x10, 0x04, // LDA $0410
+      0x4c, 0x02, 0x03 //  JMP loop
+    );
+    M6502 cpu = new M6502(mem, 0x300);
+    cpu.setBlockCompilation(true);
+    cpu.addBreakpoint(0x306, "X == 3 && [$0400] == 3");
+    assertEquals(M6502.StopReason.BREAKPOINT, cpu.run(1000));
+    assertEquals(0x306, cpu.pc);
+    assertEquals(3, cpu.x);
+    cpu.removeBreakpoint(0x306);
+
+    cpu.watch(0x400, false, true);
+    assertEquals(M6502.StopReason.WATCHPOINT, cpu.run(1000));
+    assertEquals(0x306, cpu.pc);
+    assertEquals(4, mem.peek(0x400));
+    assertEquals(0x400, cpu.getWatchAddress());
+    assertTrue(cpu.watchWasWrite());
+    cpu.watch(0x400, false, false);
+    cpu.watch(0x410, true, false);
+    assertEquals(M6502.StopReason.WATCHPOINT, cpu.run(1000));
+    assertEquals(0x309, cpu.pc);
+    assertFalse(cpu.watchWasWrite());
+    cpu.watch(0x410, false, false);
+
+    assertEquals(M6502.StopReason.BREAKPOINT, cpu.runUntil(0x306, 1000));
+    assertEquals(5, cpu.x);
+    assertEquals(M6502.StopReason.BUDGET, cpu.run(1000));
+    assertThrows(
+      IllegalArgumentException.class,
+      () -> cpu.addBreakpoint(0x300, "A == ")
+    );
+  }
+
+  private static void assertMatchesReferenceCore(M6502 cpu) {
+    M6502 ref = new M6502(loadFunctionalTest(), 0x400);
+    int oldPc = 0;
+    while (oldPc != cpu.pc) {
+      oldPc = cpu.pc;
+      cpu.step();
+      ref.stepReference();
+      if (
+        (cpu.pc != ref.pc) ||
+        (cpu.a != ref.a) ||
+        (cpu.x != ref.x) ||
+        (cpu.y != ref.y) ||
+        (cpu.getSP() != ref.getSP()) ||
+        (cpu.getFlags() != ref.getFlags()) ||
+        (cpu.cycles != ref.cycles)
+      ) {
+        assertEquals(ref.dump(), cpu.dump(), "after " + Integer.toHexString(oldPc));
+        assertEquals(ref.cycles, cpu.cycles, "after " + Integer.toHexString(oldPc));
+      }
+    }
     assertEquals(oldPc, 13417);
   }
+
+  @Test
+  public void stepMatchesReferenceCore() {
+    assertMatchesReferenceCore(new M6502(loadFunctionalTest(), 0x400));
+  }
+
+  private static PagedMemory loadPagedFunctionalTest() {
+    PagedMemory mem = new PagedMemory();
+    M6502.Memory image = loadFunctionalTest();
+    for (int where = 0; where < PagedMemory.SIZE; where++) {
+      mem.poke(where, image.read(where));
+    }
+    return mem;
+  }
+
+  @Test
+  public void decodeCacheMatchesReferenceCore() {
+    M6502 cpu = new M6502(loadPagedFunctionalTest(), 0x400);
+    cpu.setDecodeCache(true);
+    // The functional test modifies some of its own code as it goes
+    assertMatchesReferenceCore(cpu);
+    assertTrue(cpu.getDecodeHits() > cpu.getDecodeMisses());
+    assertTrue(cpu.getDecodeInvalidations() > 0);
+  }
+
+  // The functional test stops by looping on JMP * or a branch to itself
+  private static boolean isTrap(PagedMemory mem, int pc) {
+    int op = mem.peek(pc);
+    if (op == 0x4c) {
+      return (mem.peek(pc + 1) | (mem.peek(pc + 2) << 8)) == pc;
+    }
+    return ((op & 0x1f) == 0x10) && (mem.peek(pc + 1) == 0xfe);
+  }
+
+  @Test
+  public void compiledBlocksMatchReferenceCore() {
+    PagedMemory mem = loadPagedFunctionalTest();
+    M6502 cpu = new M6502(mem, 0x400);
+    M6502 ref = new M6502(loadFunctionalTest(), 0x400);
+    cpu.setBlockCompilation(true);
+    int oldPc = 0;
+    while ((cpu.pc != oldPc) || !isTrap(mem, oldPc)) {
+      oldPc = cpu.pc;
+      cpu.runBlock();
+      // A block ends on an instruction boundary, at the same cycle count
+      while (ref.cycles < cpu.cycles) {
+        ref.stepReference();
+      }
+      if (
+        (cpu.pc != ref.pc) ||
+        (cpu.a != ref.a) ||
+        (cpu.x != ref.x) ||
+        (cpu.y != ref.y) ||
+        (cpu.getSP() != ref.getSP()) ||
+        (cpu.getFlags() != ref.getFlags()) ||
+        (cpu.cycles != ref.cycles)
+      ) {
+        assertEquals(ref.dump(), cpu.dump(), "after " + Integer.toHexString(oldPc));
+        assertEquals(ref.cycles, cpu.cycles, "after " + Integer.toHexString(oldPc));
+      }
+    }
+    assertEquals(13417, cpu.pc);
+    assertTrue(cpu.getBlocksCompiled() > 0);
+    assertTrue(cpu.getBlocksInvalidated() > 0);
+  }
+
+  // Decimal mode as an NMOS 6502 computes it, following sequences 1 to 3 in
+  // Bruce Clark's "Decimal Mode" tutorial on 6502.org. Returns the
+  // accumulator in the low byte and N V Z C in the high byte.
+  private static int nmosDecimal(boolean add, int a, int m, int c) {
+    int result;
+    int flags = 0;
+    if (add) {
+      int al = (a & 0x0f) + (m & 0x0f) + c; // 1a, 2a
+      if (al >= 0x0a) {
+        al = ((al + 0x06) & 0x0f) + 0x10; // 1b, 2b
+      }
+      int sum = (a & 0xf0) + (m & 0xf0) + al; // 1c
+      int signed = (byte) (a & 0xf0) + (byte) (m & 0xf0) + al; // 2c
+      if ((signed & 0x80) != 0) {
+        flags |= M6502.nFlag; // 2e
+      }
+      if ((signed < -128) || (signed > 127)) {
+        flags |= M6502.vFlag; // 2f
+      }
+      if (sum >= 0xa0) {
+        sum += 0x60; // 1e
+      }
+      result = sum & 0xff; // 1f
+      if (sum >= 0x100) {
+        flags |= M6502.cFlag; // 1g
+      }
+      if (((a + m + c) & 0xff) == 0) {
+        flags |= M6502.zFlag; // Z as in binary mode
+      }
+    } else {
+      int al = (a & 0x0f) - (m & 0x0f) + c - 1; // 3a
+      if (al < 0) {
+        al = ((al - 0x06) & 0x0f) - 0x10; // 3b
+      }
+      int diff = (a & 0xf0) - (m & 0xf0) + al; // 3c
+      if (diff < 0) {
+        diff -= 0x60; // 3d
+      }
+      result = diff & 0xff; // 3e
+      // All the flags are as in binary mode
+      int binary = a - m - 1 + c;
+      flags |= binary & M6502.nFlag;
+      if ((((a ^ m) & 0x80) != 0) && (((a ^ binary) & 0x80) != 0)) {
+        flags |= M6502.vFlag;
+      }
+      if ((binary & 0xff) == 0) {
+        flags |= M6502.zFlag;
+      }
+      if (binary >= 0) {
+        flags |= M6502.cFlag;
+      }
+    }
+    return (flags << 8) | result;
+  }
+
+  private static int bcdToInt(int v) {
+    return (v >> 4) * 10 + (v & 0x0f);
+  }
+
+  @Test
+  public void decimalModeMatchesNmos() {
+    PagedMemory mem = new PagedMemory();
+    M6502 cpu = new M6502(mem, 0x300);
+    int nvzc = M6502.nFlag | M6502.vFlag | M6502.zFlag | M6502.cFlag;
+    for (int op : new int[] { 0x69, 0xe9 }) { // ADC #, SBC #
+      boolean add = (op == 0x69);
+      mem.poke(0x300, op);
+      for (int c = 0; c < 2; c++) {
+        for (int a = 0; a < 256; a++) {
+          for (int m = 0; m < 256; m++) {
+            mem.poke(0x301, m);
+            cpu.pc = 0x300;
+            cpu.a = a;
+            cpu.setFlags(M6502.rFlag | M6502.dFlag | c);
+            cpu.step();
+            int expected = nmosDecimal(add, a, m, c);
+            String what =
+              (add ? "ADC " : "SBC ") +
+              Integer.toHexString(a) +
+              ", " +
+              Integer.toHexString(m) +
+              ", C=" +
+              c;
+            assertEquals(expected & 0xff, cpu.a, what);
+            assertEquals(expected >> 8, cpu.getFlags() & nvzc, what);
+
+            // Valid BCD gives the decimal result, with carry or borrow
+            if (
+              ((a & 0x0f) < 10) &&
+              (a < 0xa0) &&
+              ((m & 0x0f) < 10) &&
+              (m < 0xa0)
+            ) {
+              int sum = add
+                ? bcdToInt(a) + bcdToInt(m) + c
+                : bcdToInt(a) - bcdToInt(m) - 1 + c + 100;
+              int carry = (sum >= 100) ? M6502.cFlag : 0;
+              assertEquals(sum % 100, bcdToInt(cpu.a), what);
+              assertEquals(carry, cpu.getFlags() & M6502.cFlag, what);
+            }
+          }
+        }
+      }
+    }
+
+    // On an NMOS 6502, 99 + 1 sets N and leaves Z clear even though the
+    // result is 00
+    mem.poke(0x300, 0x69);
+    mem.poke(0x301, 0x01);
+    cpu.pc = 0x300;
+    cpu.a = 0x99;
+    cpu.setFlags(M6502.rFlag | M6502.dFlag);
+    cpu.step();
+    assertEquals(0x00, cpu.a);
+    assertEquals(M6502.nFlag | M6502.cFlag, cpu.getFlags() & nvzc);
+  }
+
+  @Test
+  public void cycleCounts() {
+    final int[] mem = new int[65536];
+    int[] program = {
+      0xa2, 0x01, //       LDX #$01
+      0xbd, 0xff, 0x12, // LDA $12FF,X  (crosses a page)
+      0xbd, 0x00, 0x12, // LDA $1200,X
+      0x9d, 0xff, 0x12, // STA $12FF,X  (stores always take 5)
+      0x18, //             CLC
+      0x90, 0x00, //       BCC *+2      (taken)
+      0xb0, 0x00, //       BCS *+2      (not taken)
+      0x4c, 0xf0, 0x02, // JMP $02F0
+    };
+    for (int i = 0; i < program.length; i++) {
+      mem[0x200 + i] = program[i];
+    }
+    mem[0x2f0] = 0x90; // BCC $0302   (taken, crosses a page)
+    mem[0x2f1] = 0x10;
+    M6502 cpu = new M6502(
+      new M6502.Memory() {
+        @Override
+        public int read(int where) {
+          return mem[where];
+        }
+
+        @Override
+        public void write(int where, int what) {
+          mem[where] = what;
+        }
+      },
+      0x200
+    );
+    int[] expected = { 2, 5, 4, 5, 2, 3, 2, 3, 4 };
+    for (int i = 0; i < expected.length; i++) {
+      long before = cpu.cycles;
+      cpu.step();
+      assertEquals(expected[i], cpu.cycles - before, "instruction " + i);
+    }
+    assertEquals(0x302, cpu.pc);
+  }
 }
@@ -0,0 +1,74 @@
+package a1em;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.StringReader;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import org.junit.jupiter.api.Test;
+
+public class MonLoaderTest {
+
+  private static void checkSameAsTyping(String file, int runAddress)
+    throws IOException {
+    String text = new String(Files.readAllBytes(Paths.get("software", file)));
+    // Leave off the run command, so only the loading is compared
+    String load = text.substring(0, text.lastIndexOf('\n', text.length() - 2));
+
+    Apple1 typed = new Apple1(OutputStream.nullOutputStream(), 0);
+    TestMachines.runUntilIdle(typed);
+    // More than the keyboard buffer holds, so the monitor catches up as it
+    // goes
+    TestMachines.type(typed, load + "\n");
+    TestMachines.runUntilIdle(typed);
+
+    Apple1 fast = new Apple1(OutputStream.nullOutputStream(), 0);
+    TestMachines.runUntilIdle(fast);
+    assertEquals(-1, MonLoader.load(new StringReader(load), fast.getMemory()));
+
+    // The monitor's variables, the stack and the input buffer differ
+    for (int where = 0x280; where <= 0xffff; where++) {
+      assertEquals(
+        typed.getMemory().peek(where),
+        fast.getMemory().peek(where),
+        file + " at " + Integer.toHexString(where)
+      );
+    }
+    assertEquals(
+      runAddress,
+      MonLoader.load(new StringReader(text), new PagedMemory())
+    );
+  }
+
+  @Test
+  public void loadsLikeTypingIntegerBasic() throws IOException {
+    checkSameAsTyping("a1basic.mon", 0xe000);
+  }
+
+  @Test
+  public void loadsLikeTypingForth() throws IOException {
+    checkSameAsTyping("fig6502.mon", 0x380);
+  }
+
+  @Test
+  public void followsMonitorSyntax() throws IOException {
+    PagedMemory mem = new PagedMemory();
+    String text =
+      "0300: A9 01 :02\n" +
+      ": 03\n" +
+      // Typing something that isn't hex cancels the rest of the line
+      "0310: 11 ZZ 12\n" +
+      "FF00.FF0F 30AR\n" +
+      "0320: 55\n";
+    assertEquals(0x30a, MonLoader.load(new StringReader(text), mem));
+    assertEquals(0xa9, mem.peek(0x300));
+    assertEquals(0x01, mem.peek(0x301));
+    assertEquals(0x02, mem.peek(0x302));
+    assertEquals(0x03, mem.peek(0x303));
+    assertEquals(0x11, mem.peek(0x310));
+    assertEquals(0x00, mem.peek(0x311));
+    assertEquals(0x00, mem.peek(0x320));
+  }
+}
@@ -0,0 +1,41 @@
+package a1em;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import org.junit.jupiter.api.Test;
+
+public class PagedMemoryTest {
+
+  @Test
+  public void forksCopyPagesOnWrite() {
+    PagedMemory parent = new PagedMemory();
+    parent.poke(0x1234, 0x11);
+    PagedMemory child = parent.fork();
+    PagedMemory other = parent.fork();
+    assertEquals(0x11, child.peek(0x1234));
+
+    // Writes through the CPU's direct path as well as through write()
+    M6502 cpu = new M6502(child, 0x300);
+    child.write(0x1234, 0x22);
+    child.write(0x1235, 0x33);
+    parent.write(0x1236, 0x44);
+    int[] program = { 0xa9, 0x55, 0x8d, 0x00, 0x13 }; // LDA #$55, STA $1300
+    for (int i = 0; i < program.length; i++) {
+      child.poke(0x300 + i, program[i]);
+    }
+    cpu.step();
+    cpu.step();
+
+    assertEquals(0x11, parent.peek(0x1234));
+    assertEquals(0x00, parent.peek(0x1235));
+    assertEquals(0x44, parent.peek(0x1236));
+    assertEquals(0x00, parent.peek(0x1300));
+    assertEquals(0x22, child.peek(0x1234));
+    assertEquals(0x33, child.peek(0x1235));
+    assertEquals(0x00, child.peek(0x1236));
+    assertEquals(0x55, child.peek(0x1300));
+    assertEquals(0x11, other.peek(0x1234));
+    assertEquals(0x00, other.peek(0x1300));
+    assertEquals(0x00, other.peek(0x300));
+  }
+}
@@ -0,0 +1,100 @@
+package a1em;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import org.junit.jupiter.api.Test;
+
+public class SnapshotTest {
+
+  @Test
+  public void restoredMachineContinuesTheSame() throws IOException {
+    ByteArrayOutputStream originalOut = new ByteArrayOutputStream();
+    Apple1 original = new Apple1(originalOut, 0);
+    TestMachines.loadListing(original, "software/a1basic.mon");
+    TestMachines.type(original, "10 PRINT \"HELLO \";X\n20 X=X+1\n");
+    TestMachines.runUntilIdle(original);
+    // A key typed but not yet read is part of the state too
+    TestMachines.type(original, "3");
+
+    Path file = Files.createTempFile("apple1", ".snapshot");
+    try {
+      original.snapshot().write(file);
+      int mark = originalOut.size();
+      ByteArrayOutputStream restoredOut = new ByteArrayOutputStream();
+      Apple1 restored = new Apple1(restoredOut, 0);
+      restored.restore(Snapshot.read(file));
+
+      M6502 a = original.getCpu();
+      M6502 b = restored.getCpu();
+      assertEquals(a.pc, b.pc);
+      assertEquals(a.a, b.a);
+      assertEquals(a.x, b.x);
+      assertEquals(a.y, b.y);
+      assertEquals(a.getSP(), b.getSP());
+      assertEquals(a.getFlags(), b.getFlags());
+      assertEquals(a.cycles, b.cycles);
+      for (int where = 0; where <= 0xffff; where++) {
+        assertEquals(
+          original.getMemory().peek(where),
+          restored.getMemory().peek(where),
+          "at " + Integer.toHexString(where)
+        );
+      }
+
+      // Both run the same program from here. Stepping the CPUs directly
+      // leaves out idle time, and output is flushed whenever the display
+      // buffer fills, so both print exactly the same.
+      TestMachines.type(original, "0 GOTO 10\nRUN\n");
+      TestMachines.type(restored, "0 GOTO 10\nRUN\n");
+      for (int i = 0; i < 1000000; i++) {
+        a.step();
+        b.step();
+      }
+      assertEquals(a.cycles, b.cycles);
+      assertEquals(a.pc, b.pc);
+      String output = restoredOut.toString();
+      assertTrue(output.contains("HELLO 100"), output);
+      assertEquals(originalOut.toString().substring(mark), output);
+    } finally {
+      Files.delete(file);
+    }
+  }
+
+  // Overwrites the int at offset in file
+  private static void patch(Path file, int offset, int value)
+    throws IOException {
+    try (FileChannel ch = FileChannel.open(file, StandardOpenOption.WRITE)) {
+      ch.write(ByteBuffer.allocate(4).putInt(0, value), offset);
+    }
+  }
+
+  @Test
+  public void rejectsCorruptHeaders() throws IOException {
+    Apple1 machine = new Apple1(OutputStream.nullOutputStream(), 0);
+    Path file = Files.createTempFile("apple1", ".snapshot");
+    try {
+      // RAM's offset follows the magic number and version, then the number
+      // of keys
+      for (int[] field : new int[][] { { 8, 0 }, { 8, -1 }, { 12, -1 } }) {
+        machine.snapshot().write(file);
+        patch(file, field[0], field[1]);
+        assertThrows(IOException.class, () -> Snapshot.read(file));
+      }
+      machine.snapshot().write(file);
+      patch(file, 12, 1);
+      assertThrows(IOException.class, () -> Snapshot.read(file));
+    } finally {
+      Files.delete(file);
+    }
+  }
+}
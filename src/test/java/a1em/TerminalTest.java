@@ -0,0 +1,50 @@
+package a1em;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import org.junit.jupiter.api.Test;
+
+public class TerminalTest {
+
+  private static void write(Terminal terminal, String text) {
+    for (int i = 0; i < text.length(); i++) {
+      terminal.write(text.charAt(i));
+    }
+  }
+
+  @Test
+  public void wrapsAndScrollsLikeAnApple1() {
+    Terminal terminal = new Terminal();
+    write(terminal, "\\\r");
+    terminal.clearDirty();
+    write(terminal, "hello\n" + (char) 0xc1);
+    assertEquals("HELLOA", terminal.toString().substring(41, 47));
+    assertEquals(1, terminal.getCursorRow());
+    assertEquals(6, terminal.getCursorColumn());
+    assertEquals(0, terminal.getDirtyFrom(1));
+    assertEquals(6, terminal.getDirtyTo(1));
+    assertEquals(Terminal.COLUMNS, terminal.getDirtyFrom(0));
+
+    // The 40th character moves the cursor to the next line
+    terminal.clearDirty();
+    write(terminal, "\r" + "0123456789".repeat(4));
+    assertEquals(3, terminal.getCursorRow());
+    assertEquals(0, terminal.getCursorColumn());
+
+    for (int i = 0; i < Terminal.ROWS - 2; i++) {
+      write(terminal, "\r");
+    }
+    assertEquals(2, terminal.takeScrolled());
+    assertEquals(0, terminal.takeScrolled());
+    assertEquals(Terminal.ROWS - 1, terminal.getCursorRow());
+    // The line of digits scrolled from row 2 to the top
+    assertEquals(
+      "0123456789".repeat(4) + "\n",
+      terminal.toString().substring(0, Terminal.COLUMNS + 1)
+    );
+    // and kept its dirty columns
+    assertEquals(0, terminal.getDirtyFrom(0));
+    assertEquals(Terminal.COLUMNS, terminal.getDirtyTo(0));
+    assertEquals(' ', terminal.charAt(Terminal.ROWS - 1, 0));
+  }
+}